@@ -0,0 +1,149 @@
+/*
+ Copyright 2009-2013 The MITRE Corporation.
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ * **************************************************************************
+ *                          NOTICE
+ * This software was produced for the U. S. Government under Contract No.
+ * W15P7T-12-C-F600, and is subject to the Rights in Noncommercial Computer
+ * Software and Noncommercial Computer Software Documentation Clause
+ * 252.227-7014 (JUN 1995)
+ *
+ * (c) 2012 The MITRE Corporation. All Rights Reserved.
+ * **************************************************************************
+ **/
+package org.opensextant.examples;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.opensextant.matching.MatcherFactory;
+import org.opensextant.matching.PlacenameSearcher;
+import org.opensextant.placedata.Place;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the latency of the Lucene fuzzy query (name:X~0.80) with the
+ * trigram fuzzy name search, and how many of the fuzzy query's places the
+ * trigram search also finds.
+ */
+public class FuzzySearchBenchmark {
+
+	/** Log object. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(FuzzySearchBenchmark.class);
+
+	/** Names searched if no file is given, some of them misspelled. */
+	private static final List<String> DEFAULT_NAMES = Arrays.asList("Kabool", "Kabul", "Londun", "Pariss",
+			"Hobokin", "Jalalabad", "Kandahaar", "Mazar-i-Sharif", "Heraat", "Washingtun", "Baghdad", "Moskow");
+
+	/** Untimed passes over the names before measuring. */
+	private static final int WARMUP_PASSES = 2;
+
+	private FuzzySearchBenchmark() {
+
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args
+	 *            file of names, one per line (optional), number of timed
+	 *            passes (optional), solr home (optional)
+	 */
+	public static void main(String[] args) {
+
+		List<String> names = DEFAULT_NAMES;
+		if (args.length > 0 && !args[0].isEmpty()) {
+			try {
+				names = FileUtils.readLines(new File(args[0]), "UTF-8");
+			} catch (IOException e) {
+				LOGGER.error("Exception reading names from file" + args[0], e);
+				return;
+			}
+		}
+		int passes = 5;
+		if (args.length > 1) {
+			passes = Integer.parseInt(args[1]);
+		}
+		String solrHome = "";
+		if (args.length > 2) {
+			solrHome = args[2];
+		}
+
+		MatcherFactory.config(solrHome);
+		MatcherFactory.start();
+		PlacenameSearcher s = MatcherFactory.getSearcher();
+		if (s == null) {
+			LOGGER.error("Got a null Searcher from Factory.");
+			return;
+		}
+
+		List<Double> luceneMs = new ArrayList<Double>();
+		List<Double> trigramMs = new ArrayList<Double>();
+		long luceneFound = 0;
+		long bothFound = 0;
+		for (int pass = 0; pass < WARMUP_PASSES + passes; pass++) {
+			boolean timed = pass >= WARMUP_PASSES;
+			for (String name : names) {
+				long start = System.nanoTime();
+				List<Place> lucene = s.searchByQueryString("name:" + name.replace(" ", "\\ ") + "~0.80");
+				long mid = System.nanoTime();
+				List<Place> trigram = s.searchByPlaceName(name, true);
+				long end = System.nanoTime();
+
+				if (timed) {
+					luceneMs.add((mid - start) / 1.0e6);
+					trigramMs.add((end - mid) / 1.0e6);
+				}
+				if (pass == WARMUP_PASSES) {
+					// recall of the trigram search against the fuzzy query
+					List<String> trigramIds = new ArrayList<String>();
+					for (Place p : trigram) {
+						trigramIds.add(p.getPlaceID() + "/" + p.getPlaceName());
+					}
+					for (Place p : lucene) {
+						luceneFound++;
+						if (trigramIds.contains(p.getPlaceID() + "/" + p.getPlaceName())) {
+							bothFound++;
+						}
+					}
+				}
+			}
+		}
+
+		LOGGER.info("name~0.80 fuzzy query: " + summary(luceneMs));
+		LOGGER.info("trigram fuzzy search:  " + summary(trigramMs));
+		LOGGER.info("trigram search found " + bothFound + " of the " + luceneFound + " places the fuzzy query found");
+
+		s.cleanup();
+	}
+
+	/** Mean, median and 95th percentile of the times. */
+	private static String summary(List<Double> ms) {
+		if (ms.isEmpty()) {
+			return "no searches";
+		}
+		List<Double> sorted = new ArrayList<Double>(ms);
+		Collections.sort(sorted);
+		double total = 0;
+		for (double m : sorted) {
+			total = total + m;
+		}
+		return String.format("mean %.1f ms, median %.1f ms, p95 %.1f ms", total / sorted.size(),
+				sorted.get(sorted.size() / 2), sorted.get((int) Math.min(sorted.size() - 1, sorted.size() * 0.95)));
+	}
+
+}
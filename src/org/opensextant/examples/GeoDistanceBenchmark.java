@@ -0,0 +1,194 @@
+/*
+ Copyright 2009-2013 The MITRE Corporation.
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ * **************************************************************************
+ *                          NOTICE
+ * This software was produced for the U. S. Government under Contract No.
+ * W15P7T-12-C-F600, and is subject to the Rights in Noncommercial Computer
+ * Software and Noncommercial Computer Software Documentation Clause
+ * 252.227-7014 (JUN 1995)
+ *
+ * (c) 2012 The MITRE Corporation. All Rights Reserved.
+ * **************************************************************************
+ **/
+package org.opensextant.examples;
+
+import java.util.Random;
+
+import org.opensextant.placedata.Geocoord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the haversine distance with the chord based comparisons of
+ * Geocoord, on random points: classifying place/evidence pairs against the
+ * Scorer's near and mid range thresholds, and computing the distances from one
+ * point to many. Also checks both give the same answers.
+ */
+public class GeoDistanceBenchmark {
+
+	/** Log object. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(GeoDistanceBenchmark.class);
+
+	/** The Scorer's thresholds, in km. */
+	private static final double INNER_KM = 55.0;
+	private static final double OUTER_KM = 280.0;
+
+	/** Untimed passes before measuring. */
+	private static final int WARMUP_PASSES = 5;
+
+	private GeoDistanceBenchmark() {
+
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args
+	 *            number of places (optional), number of evidence points
+	 *            (optional), number of timed passes (optional)
+	 */
+	public static void main(String[] args) {
+		int placeCount = 100000;
+		if (args.length > 0) {
+			placeCount = Integer.parseInt(args[0]);
+		}
+		int evidenceCount = 10;
+		if (args.length > 1) {
+			evidenceCount = Integer.parseInt(args[1]);
+		}
+		int passes = 10;
+		if (args.length > 2) {
+			passes = Integer.parseInt(args[2]);
+		}
+
+		// places and evidence clustered in a region, so all thresholds are hit
+		Random random = new Random(42);
+		double[] lats = new double[placeCount];
+		double[] lons = new double[placeCount];
+		for (int i = 0; i < placeCount; i++) {
+			lats[i] = 30.0 + random.nextDouble() * 8.0;
+			lons[i] = 60.0 + random.nextDouble() * 10.0;
+		}
+		Geocoord[] evidence = new Geocoord[evidenceCount];
+		for (int i = 0; i < evidenceCount; i++) {
+			evidence[i] = new Geocoord(30.0 + random.nextDouble() * 8.0, 60.0 + random.nextDouble() * 10.0);
+		}
+
+		// the answers must agree
+		int[] haversineClasses = new int[3];
+		int[] chordClasses = new int[3];
+		classifyHaversine(lats, lons, evidence, haversineClasses);
+		classifyChord(lats, lons, evidence, chordClasses);
+		LOGGER.info("near/mid/far pairs, haversine: " + haversineClasses[0] + "/" + haversineClasses[1] + "/"
+				+ haversineClasses[2] + " chord: " + chordClasses[0] + "/" + chordClasses[1] + "/" + chordClasses[2]);
+
+		double[] xyz = new double[placeCount * 3];
+		for (int i = 0; i < placeCount; i++) {
+			Geocoord.unitVector(lats[i], lons[i], xyz, i * 3);
+		}
+		double[] out = new double[placeCount];
+		evidence[0].distances(xyz, placeCount, out);
+		double maxError = 0.0;
+		for (int i = 0; i < placeCount; i++) {
+			double h = Geocoord.distance(evidence[0].getLatitude(), evidence[0].getLongitude(), lats[i], lons[i]);
+			maxError = Math.max(maxError, Math.abs(h - out[i]));
+		}
+		LOGGER.info("largest difference between batch and haversine distances: " + maxError + " km");
+
+		// threshold classification of every place/evidence pair
+		long pairs = (long) placeCount * evidenceCount;
+		for (int i = 0; i < WARMUP_PASSES; i++) {
+			classifyHaversine(lats, lons, evidence, haversineClasses);
+			classifyChord(lats, lons, evidence, chordClasses);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < passes; i++) {
+			classifyHaversine(lats, lons, evidence, haversineClasses);
+		}
+		double haversineNs = (System.nanoTime() - start) / (double) passes / pairs;
+		start = System.nanoTime();
+		for (int i = 0; i < passes; i++) {
+			classifyChord(lats, lons, evidence, chordClasses);
+		}
+		double chordNs = (System.nanoTime() - start) / (double) passes / pairs;
+		LOGGER.info(String.format("thresholds, haversine: %.1f ns per pair, chord: %.1f ns per pair, speedup %.1f",
+				haversineNs, chordNs, haversineNs / chordNs));
+
+		// one point to many
+		for (int i = 0; i < WARMUP_PASSES; i++) {
+			haversineDistances(evidence[i % evidenceCount], lats, lons, out);
+			evidence[i % evidenceCount].distances(xyz, placeCount, out);
+		}
+		start = System.nanoTime();
+		for (int i = 0; i < passes; i++) {
+			haversineDistances(evidence[i % evidenceCount], lats, lons, out);
+		}
+		haversineNs = (System.nanoTime() - start) / (double) passes / placeCount;
+		start = System.nanoTime();
+		for (int i = 0; i < passes; i++) {
+			evidence[i % evidenceCount].distances(xyz, placeCount, out);
+		}
+		chordNs = (System.nanoTime() - start) / (double) passes / placeCount;
+		LOGGER.info(String.format("one to many, haversine: %.1f ns per point, batch: %.1f ns per point, speedup %.1f",
+				haversineNs, chordNs, haversineNs / chordNs));
+	}
+
+	/** Count the pairs in each range as the Scorer used to. */
+	private static void classifyHaversine(double[] lats, double[] lons, Geocoord[] evidence, int[] classes) {
+		classes[0] = 0;
+		classes[1] = 0;
+		classes[2] = 0;
+		for (int i = 0; i < lats.length; i++) {
+			Geocoord place = new Geocoord(lats[i], lons[i]);
+			for (Geocoord ev : evidence) {
+				double dist = place.distance(ev);
+				if (dist < INNER_KM) {
+					classes[0]++;
+				} else if (dist > INNER_KM && dist < OUTER_KM) {
+					classes[1]++;
+				} else {
+					classes[2]++;
+				}
+			}
+		}
+	}
+
+	/** Count the pairs in each range as the Scorer now does. */
+	private static void classifyChord(double[] lats, double[] lons, Geocoord[] evidence, int[] classes) {
+		double inner = Geocoord.chordSquaredOf(INNER_KM);
+		double outer = Geocoord.chordSquaredOf(OUTER_KM);
+		double[] vector = new double[3];
+		classes[0] = 0;
+		classes[1] = 0;
+		classes[2] = 0;
+		for (int i = 0; i < lats.length; i++) {
+			Geocoord.unitVector(lats[i], lons[i], vector, 0);
+			for (Geocoord ev : evidence) {
+				double chord = ev.chordSquared(vector, 0);
+				if (chord < inner) {
+					classes[0]++;
+				} else if (chord > inner && chord < outer) {
+					classes[1]++;
+				} else {
+					classes[2]++;
+				}
+			}
+		}
+	}
+
+	private static void haversineDistances(Geocoord from, double[] lats, double[] lons, double[] out) {
+		for (int i = 0; i < lats.length; i++) {
+			out[i] = from.distance(lats[i], lons[i]);
+		}
+	}
+
+}
@@ -0,0 +1,270 @@
+/*
+ Copyright 2009-2013 The MITRE Corporation.
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ * **************************************************************************
+ *                          NOTICE
+ * This software was produced for the U. S. Government under Contract No.
+ * W15P7T-12-C-F600, and is subject to the Rights in Noncommercial Computer
+ * Software and Noncommercial Computer Software Documentation Clause
+ * 252.227-7014 (JUN 1995)
+ *
+ * (c) 2012 The MITRE Corporation. All Rights Reserved.
+ * **************************************************************************
+ **/
+package org.opensextant.examples;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.opensextant.matching.MatcherFactory;
+import org.opensextant.matching.PlacenameMatcher;
+import org.opensextant.placedata.Geocoord;
+import org.opensextant.placedata.Place;
+import org.opensextant.placedata.PlaceCandidate;
+import org.opensextant.placedata.PlaceCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the PlaceCodec binary encoding of PlaceCandidates with Java
+ * serialization and JSON: the encoded size and the encode and decode
+ * throughput. The candidates come from tagging a directory of text files or,
+ * if none is given, are generated. Java serialization is shown for reference
+ * only, it drops the places, scores and evidence.
+ */
+public class PlaceCodecBenchmark {
+
+	/** Log object. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(PlaceCodecBenchmark.class);
+
+	/** Untimed passes before measuring. */
+	private static final int WARMUP_PASSES = 5;
+
+	/** Generated candidates per document, and distinct names. */
+	private static final int GENERATED_CANDIDATES = 200;
+	private static final int GENERATED_NAMES = 60;
+
+	private PlaceCodecBenchmark() {
+
+	}
+
+	/** An encoding under test. */
+	private interface Codec {
+		byte[] encode(List<PlaceCandidate> candidates) throws IOException;
+
+		Object decode(byte[] bytes) throws IOException;
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args
+	 *            directory of .txt files (optional, empty for generated
+	 *            candidates), number of timed passes (optional), solr home
+	 *            (optional)
+	 */
+	public static void main(String[] args) throws IOException {
+
+		int passes = 20;
+		if (args.length > 1) {
+			passes = Integer.parseInt(args[1]);
+		}
+		String solrHome = "";
+		if (args.length > 2) {
+			solrHome = args[2];
+		}
+
+		// a list of candidates per document
+		List<List<PlaceCandidate>> docs = new ArrayList<List<PlaceCandidate>>();
+		if (args.length > 0 && !args[0].isEmpty()) {
+			MatcherFactory.config(solrHome);
+			MatcherFactory.start();
+			PlacenameMatcher matcher = MatcherFactory.getMatcher();
+			if (matcher == null) {
+				LOGGER.error("Got a null Matcher from Factory.");
+				return;
+			}
+			for (File f : FileUtils.listFiles(new File(args[0]), new String[] { "txt" }, false)) {
+				docs.add(matcher.matchText(FileUtils.readFileToString(f, "UTF-8"), f.getName()));
+			}
+			matcher.cleanup();
+			MatcherFactory.shutdown(true);
+		} else {
+			Random random = new Random(42);
+			for (int i = 0; i < 20; i++) {
+				docs.add(generate(random));
+			}
+		}
+		long candidates = 0;
+		for (List<PlaceCandidate> doc : docs) {
+			candidates = candidates + doc.size();
+		}
+		LOGGER.info(docs.size() + " documents, " + candidates + " candidates");
+		if (candidates == 0) {
+			return;
+		}
+
+		// check the round trip
+		int differences = 0;
+		for (List<PlaceCandidate> doc : docs) {
+			List<PlaceCandidate> copy = PlaceCodec.decode(PlaceCodec.encode(doc));
+			for (int i = 0; i < doc.size(); i++) {
+				if (!doc.get(i).toString().equals(copy.get(i).toString())) {
+					differences++;
+				}
+			}
+		}
+		LOGGER.info(differences + " candidates changed by encoding and decoding");
+
+		final ObjectMapper mapper = new ObjectMapper();
+		run("PlaceCodec", new Codec() {
+			@Override
+			public byte[] encode(List<PlaceCandidate> c) {
+				return PlaceCodec.encode(c);
+			}
+
+			@Override
+			public Object decode(byte[] bytes) throws IOException {
+				return PlaceCodec.decode(bytes);
+			}
+		}, docs, candidates, passes);
+		run("Java serialization", new Codec() {
+			@Override
+			public byte[] encode(List<PlaceCandidate> c) throws IOException {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				ObjectOutputStream out = new ObjectOutputStream(bytes);
+				out.writeObject(new ArrayList<PlaceCandidate>(c));
+				out.close();
+				return bytes.toByteArray();
+			}
+
+			@Override
+			public Object decode(byte[] bytes) throws IOException {
+				try {
+					return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+				} catch (ClassNotFoundException e) {
+					throw new IOException(e);
+				}
+			}
+		}, docs, candidates, passes);
+		run("JSON", new Codec() {
+			@Override
+			public byte[] encode(List<PlaceCandidate> c) throws IOException {
+				return mapper.writeValueAsBytes(c);
+			}
+
+			@Override
+			public Object decode(byte[] bytes) throws IOException {
+				// PlaceCandidate can't be bound from JSON, parse to a tree
+				return mapper.readTree(bytes);
+			}
+		}, docs, candidates, passes);
+	}
+
+	/** Measure and log one encoding. */
+	private static void run(String name, Codec codec, List<List<PlaceCandidate>> docs, long candidates, int passes)
+			throws IOException {
+		List<byte[]> encoded = new ArrayList<byte[]>(docs.size());
+		long size = 0;
+		for (List<PlaceCandidate> doc : docs) {
+			byte[] bytes = codec.encode(doc);
+			encoded.add(bytes);
+			size = size + bytes.length;
+		}
+		for (int i = 0; i < WARMUP_PASSES; i++) {
+			for (int d = 0; d < docs.size(); d++) {
+				codec.decode(codec.encode(docs.get(d)));
+			}
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < passes; i++) {
+			for (List<PlaceCandidate> doc : docs) {
+				codec.encode(doc);
+			}
+		}
+		double encodeSecs = (System.nanoTime() - start) / 1.0e9;
+		start = System.nanoTime();
+		for (int i = 0; i < passes; i++) {
+			for (byte[] bytes : encoded) {
+				codec.decode(bytes);
+			}
+		}
+		double decodeSecs = (System.nanoTime() - start) / 1.0e9;
+
+		LOGGER.info(String.format("%s: %d bytes per candidate, encode %.0f candidates/s, decode %.0f candidates/s",
+				name, size / candidates, passes * candidates / encodeSecs, passes * candidates / decodeSecs));
+	}
+
+	/** Candidates for a made up document, names repeating as in real text. */
+	private static List<PlaceCandidate> generate(Random random) {
+		String[] countries = { "AF", "PK", "IR", "US", "GB", "FR" };
+		String[] featureCodes = { "PPL", "PPLA", "ADM1", "STM", "MT" };
+
+		// the Places of each name
+		List<List<Place>> names = new ArrayList<List<Place>>();
+		for (int n = 0; n < GENERATED_NAMES; n++) {
+			List<Place> places = new ArrayList<Place>();
+			int count = 1 + random.nextInt(random.nextInt(10) == 0 ? 200 : 8);
+			for (int i = 0; i < count; i++) {
+				Place p = new Place(Integer.toString(random.nextInt(10000000)), "Name" + n);
+				p.setNameType("name");
+				p.setNameTypeSystem("NGA");
+				p.setCountryCode(countries[random.nextInt(countries.length)]);
+				p.setAdmin1(Integer.toString(random.nextInt(40)));
+				p.setAdmin2(Integer.toString(random.nextInt(400)));
+				p.setFeatureClass("PopulatedPlace");
+				p.setFeatureCode(featureCodes[random.nextInt(featureCodes.length)]);
+				p.setSource("geonames");
+				p.setLatitude(random.nextDouble() * 180 - 90);
+				p.setLongitude(random.nextDouble() * 360 - 180);
+				p.setNameBias(random.nextFloat());
+				p.setIdBias(random.nextFloat());
+				places.add(p);
+			}
+			names.add(places);
+		}
+
+		List<PlaceCandidate> candidates = new ArrayList<PlaceCandidate>();
+		long offset = 0;
+		for (int c = 0; c < GENERATED_CANDIDATES; c++) {
+			int n = random.nextInt(GENERATED_NAMES);
+			offset = offset + 20 + random.nextInt(200);
+			PlaceCandidate pc = new PlaceCandidate();
+			pc.setStart(offset);
+			pc.setEnd(offset + 6);
+			pc.setPlaceName("Name" + n);
+			for (Place p : names.get(n)) {
+				pc.addPlaceWithScore(p, random.nextDouble());
+			}
+			pc.addRuleAndConfidence("NameRule", random.nextDouble());
+			if (random.nextBoolean()) {
+				pc.addCountryEvidence("CountryRule", 0.5, countries[random.nextInt(countries.length)]);
+			}
+			if (random.nextInt(5) == 0) {
+				pc.addGeocoordEvidence("GeoRule", 1.0, new Geocoord(random.nextDouble() * 180 - 90,
+						random.nextDouble() * 360 - 180));
+			}
+			candidates.add(pc);
+		}
+		return candidates;
+	}
+
+}
@@ -0,0 +1,176 @@
+/*
+ Copyright 2009-2013 The MITRE Corporation.
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ * **************************************************************************
+ *                          NOTICE
+ * This software was produced for the U. S. Government under Contract No.
+ * W15P7T-12-C-F600, and is subject to the Rights in Noncommercial Computer
+ * Software and Noncommercial Computer Software Documentation Clause
+ * 252.227-7014 (JUN 1995)
+ *
+ * (c) 2012 The MITRE Corporation. All Rights Reserved.
+ * **************************************************************************
+ **/
+package org.opensextant.examples;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.solr.common.SolrDocument;
+import org.opensextant.matching.MatcherFactory;
+import org.opensextant.matching.PlacenameSearcher;
+import org.opensextant.placedata.Place;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the memory held by each Place and how fast Places are hydrated
+ * from gazetteer entries. The entries are read from solr first, so only the
+ * building of the Places is timed; the names and ids are shared with the
+ * entries, so the bytes per Place are those of its layout and coded
+ * attributes.
+ */
+public class PlaceLayoutBenchmark {
+
+	/** Log object. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(PlaceLayoutBenchmark.class);
+
+	/** The gazetteer fields a Place is built from. */
+	private static final String[] FIELDS = { "place_id", "name", "name_expanded", "name_type", "name_type_system",
+			"cc", "adm1", "adm2", "feat_class", "feat_code", "source", "geo", "name_bias", "id_bias" };
+
+	/** Untimed passes over the entries before measuring. */
+	private static final int WARMUP_PASSES = 3;
+
+	private PlaceLayoutBenchmark() {
+
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args
+	 *            query selecting the gazetteer entries (optional), most entries
+	 *            to read (optional), number of timed passes (optional), solr
+	 *            home (optional)
+	 */
+	public static void main(String[] args) {
+
+		String query = "*:*";
+		if (args.length > 0 && !args[0].isEmpty()) {
+			query = args[0];
+		}
+		int maxEntries = 500000;
+		if (args.length > 1) {
+			maxEntries = Integer.parseInt(args[1]);
+		}
+		int passes = 10;
+		if (args.length > 2) {
+			passes = Integer.parseInt(args[2]);
+		}
+		String solrHome = "";
+		if (args.length > 3) {
+			solrHome = args[3];
+		}
+
+		MatcherFactory.config(solrHome);
+		MatcherFactory.start();
+		PlacenameSearcher s = MatcherFactory.getSearcher();
+		if (s == null) {
+			LOGGER.error("Got a null Searcher from Factory.");
+			return;
+		}
+
+		// read the entries
+		List<Object[]> entries = new ArrayList<Object[]>();
+		Iterator<SolrDocument> docs = s.dumpDocsIterator(query);
+		while (docs.hasNext() && entries.size() < maxEntries) {
+			SolrDocument doc = docs.next();
+			Object[] entry = new Object[FIELDS.length];
+			for (int i = 0; i < FIELDS.length; i++) {
+				entry[i] = doc.getFirstValue(FIELDS[i]);
+			}
+			entries.add(entry);
+		}
+		s.cleanup();
+		MatcherFactory.shutdown(true);
+		LOGGER.info("Read " + entries.size() + " gazetteer entries matching " + query);
+		if (entries.isEmpty()) {
+			return;
+		}
+
+		// memory held by the Places
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		long before = heapUsed(memory);
+		Place[] places = hydrate(entries);
+		long after = heapUsed(memory);
+		LOGGER.info((after - before) / places.length + " bytes per Place");
+
+		// hydration throughput
+		for (int i = 0; i < WARMUP_PASSES; i++) {
+			places = hydrate(entries);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < passes; i++) {
+			places = hydrate(entries);
+		}
+		double secs = (System.nanoTime() - start) / 1.0e9;
+		LOGGER.info(String.format("%.0f Places hydrated per second", passes * places.length / secs));
+	}
+
+	/** Build a Place from each entry, as the MatcherFactory does. */
+	private static Place[] hydrate(List<Object[]> entries) {
+		Place[] places = new Place[entries.size()];
+		int n = 0;
+		for (Object[] e : entries) {
+			Place place = new Place(string(e[0]), string(e[1]));
+			place.setExpandedPlaceName(string(e[2]));
+			place.setNameType(string(e[3]));
+			place.setNameTypeSystem(string(e[4]));
+			place.setCountryCode(string(e[5]));
+			place.setAdmin1(string(e[6]));
+			place.setAdmin2(string(e[7]));
+			place.setFeatureClass(string(e[8]));
+			place.setFeatureCode(string(e[9]));
+			place.setSource(string(e[10]));
+			String geo = string(e[11]);
+			if (geo != null) {
+				int comma = geo.indexOf(',');
+				place.setLatitude(Double.parseDouble(geo.substring(0, comma)));
+				place.setLongitude(Double.parseDouble(geo.substring(comma + 1)));
+			}
+			if (e[12] != null) {
+				place.setNameBias(((Number) e[12]).doubleValue());
+			}
+			if (e[13] != null) {
+				place.setIdBias(((Number) e[13]).doubleValue());
+			}
+			places[n++] = place;
+		}
+		return places;
+	}
+
+	private static String string(Object o) {
+		return o == null ? null : o.toString();
+	}
+
+	/** Heap in use after a (requested) full GC. */
+	private static long heapUsed(MemoryMXBean memory) {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+
+}
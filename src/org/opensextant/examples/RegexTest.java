@@ -163,6 +163,7 @@ public class RegexTest {
 
 		iter.close();
 		LOGGER.info("Tagged and scored  " + lineCount + " test lines");
+		LOGGER.info("Rules skipped by the prefilter:\n" + reger.getSkipReport());
 
 		// cleanup
 		try {
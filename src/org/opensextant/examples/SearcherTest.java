@@ -76,6 +76,7 @@ public class SearcherTest {
 
 		// parameters used in the sample searches
 		String genericQuery = "source:ADHOC";
+		String exportQuery = "cc:AF";
 
 		String nameQuery = "Kabul";
 		Double lat = 34.51667;
@@ -107,6 +108,13 @@ public class SearcherTest {
 					+ p.getPlace().getLongitude() + ") is " + p.getScore() + " kms from center");
 		}
 
+		// the nearest few places to the same point
+		List<ScoredPlace> nearest = s.searchNearest(lat, lon, distance, 5);
+		LOGGER.info("The " + nearest.size() + " nearest places to (" + lat + "," + lon + ")");
+		for (ScoredPlace p : nearest) {
+			LOGGER.info("\t" + p.getPlace().getPlaceName() + " is " + p.getScore() + " kms from center");
+		}
+
 		// do a search by passing in an arbitrary solr query
 		LOGGER.info("Doing generic query");
 		placesFound = s.searchByQueryString(genericQuery);
@@ -115,6 +123,11 @@ public class SearcherTest {
 			LOGGER.info("\t" + p + " (" + p.getGeocoord() + ")");
 		}
 
+		// stream every place in a country without holding them all in memory
+		LOGGER.info("Doing streaming export");
+		long count = s.searchStream(exportQuery).filter(p -> "PPL".equals(p.getFeatureCode())).count();
+		LOGGER.info("Found " + count + " populated places using query= \"" + exportQuery + "\"");
+
 		s.cleanup();
 
 	}
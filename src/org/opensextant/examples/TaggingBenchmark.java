@@ -0,0 +1,178 @@
+/*
+ Copyright 2009-2013 The MITRE Corporation.
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ * **************************************************************************
+ *                          NOTICE
+ * This software was produced for the U. S. Government under Contract No.
+ * W15P7T-12-C-F600, and is subject to the Rights in Noncommercial Computer
+ * Software and Noncommercial Computer Software Documentation Clause
+ * 252.227-7014 (JUN 1995)
+ *
+ * (c) 2012 The MITRE Corporation. All Rights Reserved.
+ * **************************************************************************
+ **/
+package org.opensextant.examples;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.opensextant.matching.MatchHandler;
+import org.opensextant.matching.MatcherFactory;
+import org.opensextant.matching.PlacenameMatcher;
+import org.opensextant.placedata.PlaceCandidate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the speed of the two tagging engines on a directory of text files:
+ * requests to the /tag handler through the EmbeddedSolrServer versus the
+ * in-process tagger. Also checks both find the same place candidates, and
+ * reports the memory allocated per candidate by each engine.
+ */
+public class TaggingBenchmark {
+
+	/** Log object. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(TaggingBenchmark.class);
+
+	/** Untimed passes over the documents before measuring. */
+	private static final int WARMUP_PASSES = 3;
+
+	private TaggingBenchmark() {
+
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args
+	 *            directory of .txt files, number of timed passes (optional),
+	 *            solr home (optional)
+	 */
+	public static void main(String[] args) {
+
+		File testDir = new File(args[0]);
+		int passes = 20;
+		if (args.length > 1) {
+			passes = Integer.parseInt(args[1]);
+		}
+		String solrHome = "";
+		if (args.length > 2) {
+			solrHome = args[2];
+		}
+
+		// read all the test documents
+		List<String> docs = new ArrayList<String>();
+		long chars = 0;
+		for (File f : FileUtils.listFiles(testDir, new String[] { "txt" }, false)) {
+			try {
+				String txt = FileUtils.readFileToString(f, "UTF-8");
+				docs.add(txt);
+				chars = chars + txt.length();
+			} catch (IOException e) {
+				LOGGER.error("Exception reading text from file" + f.getName(), e);
+			}
+		}
+		LOGGER.info("Read " + docs.size() + " documents, " + chars + " characters");
+
+		MatcherFactory.config(solrHome);
+		MatcherFactory.start();
+
+		// one matcher of each kind
+		MatcherFactory.setInProcessTagging(false);
+		PlacenameMatcher requestMatcher = MatcherFactory.getMatcher();
+		MatcherFactory.setInProcessTagging(true);
+		PlacenameMatcher inProcessMatcher = MatcherFactory.getMatcher();
+		if (requestMatcher == null || inProcessMatcher == null) {
+			LOGGER.error("Got a null Matcher from Factory.");
+			return;
+		}
+
+		// compare the results
+		int differences = 0;
+		for (String doc : docs) {
+			List<PlaceCandidate> a = requestMatcher.matchText(doc, "benchmark");
+			List<PlaceCandidate> b = inProcessMatcher.matchText(doc, "benchmark");
+			if (a.size() != b.size()) {
+				differences++;
+				continue;
+			}
+			for (int i = 0; i < a.size(); i++) {
+				if (a.get(i).getStart() != b.get(i).getStart() || a.get(i).getEnd() != b.get(i).getEnd()
+						|| a.get(i).getPlaces().size() != b.get(i).getPlaces().size()) {
+					differences++;
+					break;
+				}
+			}
+		}
+		LOGGER.info(differences + " of " + docs.size() + " documents tagged differently by the two engines");
+
+		double requestMs = time(requestMatcher, docs, passes);
+		double inProcessMs = time(inProcessMatcher, docs, passes);
+		LOGGER.info("/tag request handler: " + requestMs + " ms per pass");
+		LOGGER.info("in-process tagger:    " + inProcessMs + " ms per pass");
+		LOGGER.info("speedup: " + requestMs / inProcessMs);
+
+		LOGGER.info("/tag request handler: " + allocated(requestMatcher, docs) + " bytes allocated per candidate");
+		LOGGER.info("in-process tagger:    " + allocated(inProcessMatcher, docs) + " bytes allocated per candidate");
+
+		requestMatcher.cleanup();
+		inProcessMatcher.cleanup();
+	}
+
+	/**
+	 * Bytes allocated by this thread per PlaceCandidate found, tagging all the
+	 * documents once. Work done on other threads (e.g. solr's) isn't counted.
+	 */
+	private static long allocated(PlacenameMatcher matcher, List<String> docs) {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+		long id = Thread.currentThread().getId();
+
+		final long[] candidates = { 0 };
+		MatchHandler<PlaceCandidate> counter = new MatchHandler<PlaceCandidate>() {
+			@Override
+			public void handle(PlaceCandidate pc) {
+				candidates[0]++;
+			}
+		};
+		long before = sunThreads.getThreadAllocatedBytes(id);
+		for (String doc : docs) {
+			matcher.matchText(doc, "benchmark", counter);
+		}
+		long bytes = sunThreads.getThreadAllocatedBytes(id) - before;
+		return candidates[0] == 0 ? 0 : bytes / candidates[0];
+	}
+
+	/** Average time in ms to tag all the documents once. */
+	private static double time(PlacenameMatcher matcher, List<String> docs, int passes) {
+		for (int i = 0; i < WARMUP_PASSES; i++) {
+			for (String doc : docs) {
+				matcher.matchText(doc, "warmup");
+			}
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < passes; i++) {
+			for (String doc : docs) {
+				matcher.matchText(doc, "benchmark");
+			}
+		}
+		return (System.nanoTime() - start) / 1.0e6 / passes;
+	}
+
+}
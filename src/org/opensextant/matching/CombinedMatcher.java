@@ -0,0 +1,90 @@
+package org.opensextant.matching;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.opensextant.placedata.PlaceCandidate;
+import org.opensextant.vocab.VocabMatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tags a text against both the gazetteer and the vocabulary in one call. The
+ * two cores are tagged at the same time, so the call takes as long as the
+ * slower of the two rather than both one after the other.
+ * <p>
+ * Thread safe if the matchers it wraps are.
+ */
+public class CombinedMatcher {
+
+	private final PlacenameMatcher placeMatcher;
+	private final VocabMatcher vocabMatcher;
+
+	/** Log object. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(CombinedMatcher.class);
+
+	/**
+	 * @param placeMatcher
+	 *            the matcher for the gazetteer
+	 * @param vocabMatcher
+	 *            the matcher for the vocabulary
+	 */
+	public CombinedMatcher(PlacenameMatcher placeMatcher, VocabMatcher vocabMatcher) {
+		this.placeMatcher = placeMatcher;
+		this.vocabMatcher = vocabMatcher;
+	}
+
+	/**
+	 * Tag the buffer against both cores. The vocabulary is tagged on the
+	 * MatcherFactory's request executor while this thread tags the gazetteer.
+	 *
+	 * @param buffer
+	 *            the text to be tagged
+	 * @param docName
+	 *            name of the document, used for logging
+	 * @return the PlaceCandidates and VocabMatches found
+	 */
+	public CombinedMatches matchText(String buffer, String docName) {
+		CompletableFuture<List<VocabMatch>> vocab = vocabMatcher.matchTextAsync(buffer, docName);
+		List<PlaceCandidate> places = placeMatcher.matchText(buffer, docName);
+
+		List<VocabMatch> vocabMatches;
+		try {
+			vocabMatches = vocab.join();
+		} catch (CompletionException e) {
+			LOGGER.error("Got exception when attempting to match vocabulary in " + docName, e.getCause());
+			vocabMatches = new ArrayList<VocabMatch>();
+		}
+		return new CombinedMatches(places, vocabMatches);
+	}
+
+	/**
+	 * Tag the buffer against both cores without waiting for the responses.
+	 *
+	 * @param buffer
+	 *            the text to be tagged
+	 * @param docName
+	 *            name of the document, used for logging
+	 * @return a future completed with the PlaceCandidates and VocabMatches
+	 */
+	public CompletableFuture<CombinedMatches> matchTextAsync(String buffer, String docName) {
+		return placeMatcher.matchTextAsync(buffer, docName).thenCombine(vocabMatcher.matchTextAsync(buffer, docName),
+				CombinedMatches::new);
+	}
+
+	public PlacenameMatcher getPlacenameMatcher() {
+		return placeMatcher;
+	}
+
+	public VocabMatcher getVocabMatcher() {
+		return vocabMatcher;
+	}
+
+	/** Release both matchers. */
+	public void cleanup() {
+		placeMatcher.cleanup();
+		vocabMatcher.cleanup();
+	}
+}
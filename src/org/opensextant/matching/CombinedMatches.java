@@ -0,0 +1,29 @@
+package org.opensextant.matching;
+
+import java.util.List;
+
+import org.opensextant.placedata.PlaceCandidate;
+import org.opensextant.vocab.VocabMatch;
+
+/**
+ * The place candidates and vocabulary matches found in one text by a
+ * {@link CombinedMatcher}.
+ */
+public class CombinedMatches {
+
+	private final List<PlaceCandidate> placeCandidates;
+	private final List<VocabMatch> vocabMatches;
+
+	public CombinedMatches(List<PlaceCandidate> placeCandidates, List<VocabMatch> vocabMatches) {
+		this.placeCandidates = placeCandidates;
+		this.vocabMatches = vocabMatches;
+	}
+
+	public List<PlaceCandidate> getPlaceCandidates() {
+		return placeCandidates;
+	}
+
+	public List<VocabMatch> getVocabMatches() {
+		return vocabMatches;
+	}
+}
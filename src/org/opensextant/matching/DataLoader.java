@@ -21,95 +21,161 @@
  */
 package org.opensextant.matching;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.LineIterator;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.util.Accountable;
 import org.apache.solr.client.solrj.SolrClient;
-import org.apache.solr.client.solrj.request.ContentStreamUpdateRequest;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.client.solrj.response.SolrResponseBase;
-import org.apache.solr.common.params.ModifiableSolrParams;
-import org.apache.solr.common.util.ContentStream;
-import org.apache.solr.common.util.ContentStreamBase;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.internal.csv.CSVParser;
+import org.apache.solr.internal.csv.CSVStrategy;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Loads a gazetteer or vocabulary into solr, or applies a changeset (see
+ * {@link GazetteerDelta}) to a gazetteer already loaded. Rows are parsed on the main
+ * thread and sent as batches of SolrInputDocuments by a number of worker
+ * threads, reporting progress as it goes. A gazetteer load also writes the
+ * attribute store (see {@link GazetteerStore}) from the same rows, can be
+ * limited to part of the gazetteer with a filter profile (see
+ * {@link GazetteerFilter}) named by the gazetteer.filter system property, and
+ * ends with a report of the index size and, given text to tag named by the
+ * gazetteer.report.text system property, the tagging throughput.
+ */
 public class DataLoader {
 
-	private static ModifiableSolrParams loadParams = new ModifiableSolrParams();
-	private static String requestHandler = "/update";
+	/** Number of documents sent per update request. */
+	private static final int BATCH_SIZE = 1000;
+
+	/** Timed passes over the report text. */
+	private static final int REPORT_PASSES = 5;
+
+	/** Log progress after this many rows. */
+	private static final int PROGRESS_ROWS = 100000;
 
 	/** Log object. */
 	private static final Logger LOGGER = LoggerFactory.getLogger(DataLoader.class);
 
-	/** Some common params. */
-	static {
-		loadParams.set("update.contentType", "text/csv");
-		loadParams.set("skipLines", "1");
-		loadParams.set("optimize", "true");
-		loadParams.set("separator", "\t");
-		loadParams.set("header", "false");
-		loadParams.set("trim", "on");
-		loadParams.set("overwrite", "false");
-		loadParams.set("debug", "true");
-	}
-
 	private DataLoader() {
 	}
 
 	public static void main(String[] args) throws Exception {
 
-		if (args.length < 3 || args.length > 4) {
+		if (args.length < 3 || args.length > 5) {
 			usage();
+			return;
 		}
 
 		String scheme = args[0];
 		String inputForm = args[1];
-		String csvFilePath = args[2];
+		String inputFilePath = args[2];
 		String solrhome = "";
-		if (args.length == 4) {
+		if (args.length >= 4) {
 			solrhome = args[3];
 		}
+		int threads = Runtime.getRuntime().availableProcessors();
+		if (args.length == 5) {
+			threads = Integer.parseInt(args[4]);
+		}
+
+		boolean isGazetteer = "gazetteer".equalsIgnoreCase(scheme);
 
 		// get a SolrServer with the proper core
 		SolrClient solrServer = getSolrServer(scheme, solrhome);
 
-		// convert indexed content to flat list
-		// currently creates a temp file, could stream?
-		if ("index".equalsIgnoreCase(inputForm)) {
-			csvFilePath = flatten(csvFilePath);
-		}
-
 		try {
+			// apply a changeset to the gazetteer already loaded
+			if ("delta".equalsIgnoreCase(inputForm)) {
+				if (!isGazetteer) {
+					LOGGER.error("Only the gazetteer can be updated from a delta");
+					return;
+				}
+				GazetteerDelta delta = GazetteerDelta.read(new File(inputFilePath));
+				MatcherFactory.applyGazetteerDelta(delta).join();
+				return;
+			}
 
-			// set the fieldnames param for the selected schema
-			final ModifiableSolrParams params = new ModifiableSolrParams(loadParams);
-			if ("gazetteer".equalsIgnoreCase(scheme)) {
-				params.set("fieldnames", MatcherFactory.getGazetteerFieldNamesLoader());
+			// the rows to load, read straight from the input
+			Iterator<String[]> rows;
+			String[] fieldNames;
+			if ("index".equalsIgnoreCase(inputForm)) {
+				rows = new IndexRows(new File(inputFilePath));
+				fieldNames = MatcherFactory.getVocabFieldNames().split(",");
 			} else {
-				params.set("fieldnames", MatcherFactory.getVocabFieldNames());
+				rows = new CsvRows(new File(inputFilePath));
+				if (isGazetteer) {
+					fieldNames = MatcherFactory.getGazetteerFieldNamesLoader().split(",");
+				} else {
+					fieldNames = MatcherFactory.getVocabFieldNames().split(",");
+				}
 			}
 
-			// build the update request
-			final ContentStreamUpdateRequest updateRequest = new ContentStreamUpdateRequest(requestHandler);
-			updateRequest.setParams(params);
+			// the attribute store matchers read Places from
+			GazetteerStore.Writer storeWriter = null;
+			File storeFile = null;
+			if (isGazetteer) {
+				storeFile = MatcherFactory.getAttributeStoreFile();
+				if (storeFile != null) {
+					storeWriter = new GazetteerStore.Writer(storeFile);
+				} else {
+					LOGGER.info("Solr home is not local, not writing a gazetteer attribute store");
+				}
+			}
 
-			ContentStream inStream = new ContentStreamBase.FileStream(new File(csvFilePath));
+			// load only the selected part of the gazetteer
+			GazetteerFilter filter = null;
+			String profile = System.getProperty("gazetteer.filter");
+			if (isGazetteer && profile != null && !profile.isEmpty()) {
+				filter = GazetteerFilter.load(new File(profile));
+				LOGGER.info("Loading with " + filter);
+			}
 
-			// add the input file as a stream to the request
-			updateRequest.addContentStream(inStream);
+			boolean loaded = load(solrServer, rows, fieldNames, threads, isGazetteer, filter, storeWriter);
 
-			// make the call
-			SolrResponseBase response = null;
-			try {
-				response = updateRequest.process(solrServer);
-				// see what happened
-				printResponse(response);
-			} catch (Exception e) {
-				LOGGER.error("Exception in submitting Solr request " + e);
+			if (storeWriter != null) {
+				if (loaded) {
+					storeWriter.close();
+					LOGGER.info("Wrote gazetteer attribute store " + storeFile + " with " + storeWriter.size()
+							+ " entries");
+				} else {
+					LOGGER.error("Not writing gazetteer attribute store, the load failed");
+				}
+			}
+
+			if (isGazetteer) {
+				report(filter, System.getProperty("gazetteer.report.text"));
 			}
 
 		} finally {
@@ -118,105 +184,384 @@ public class DataLoader {
 		}
 	}
 
-	private static void usage() {
-		String tmp = "DataLoader <scheme> <inputformat> <inputfilepath> <solrhome> where\n";
-		tmp = tmp + " <scheme> = gazetteer | vocabulary\n";
-		tmp = tmp + " <inputformat> = csv | index\n";
-		tmp = tmp + " <inputfilepath> = file to be loaded\n";
-		tmp = tmp + " <solrhome> = path to solr home (optional)\n";
-
-		LOGGER.info(tmp);
-	}
+	/**
+	 * Send the rows to solr using several threads, then commit and optimize.
+	 *
+	 * @return true if every row was loaded
+	 */
+	static boolean load(final SolrClient solrServer, Iterator<String[]> rows, String[] fieldNames,
+			int threads, boolean isGazetteer, GazetteerFilter filter, GazetteerStore.Writer storeWriter)
+			throws IOException, SolrServerException {
+
+		final List<SolrInputDocument> endOfInput = new ArrayList<SolrInputDocument>();
+		final BlockingQueue<List<SolrInputDocument>> batches = new ArrayBlockingQueue<List<SolrInputDocument>>(
+				threads * 2);
+		final AtomicLong sent = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+
+		// the workers send batches until they see the end of the input
+		List<Thread> workers = new ArrayList<Thread>(threads);
+		for (int i = 0; i < threads; i++) {
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						List<SolrInputDocument> batch;
+						try {
+							batch = batches.take();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							return;
+						}
+						if (batch == endOfInput) {
+							return;
+						}
+						UpdateRequest req = new UpdateRequest();
+						req.setParam("overwrite", "false");
+						req.add(batch);
+						try {
+							req.process(solrServer);
+							sent.addAndGet(batch.size());
+						} catch (SolrServerException | IOException | RuntimeException e) {
+							LOGGER.error("Exception in submitting Solr request " + e);
+							failed.addAndGet(batch.size());
+						}
+					}
+				}
+			}, "opensextant-loader-" + i);
+			t.start();
+			workers.add(t);
+		}
 
-	private static String flatten(String currentPath) {
+		long start = System.nanoTime();
+		long count = 0;
+		long skipped = 0;
+		try {
+			List<SolrInputDocument> batch = new ArrayList<SolrInputDocument>(BATCH_SIZE);
+			while (rows.hasNext()) {
+				SolrInputDocument doc = toDocument(fieldNames, rows.next());
+				count++;
+				if (count % PROGRESS_ROWS == 0) {
+					logProgress(count, sent.get(), start);
+				}
+				if (filter != null && !filter.accept(doc)) {
+					continue;
+				}
+				if (storeWriter != null && !addToStore(storeWriter, doc)) {
+					skipped++;
+				}
+				if (isGazetteer) {
+					MatcherFactory.addFuzzyName(doc);
+				}
 
-		File topDir = new File(currentPath).getParentFile();
+				batch.add(doc);
+				if (batch.size() == BATCH_SIZE) {
+					batches.put(batch);
+					batch = new ArrayList<SolrInputDocument>(BATCH_SIZE);
+				}
+			}
+			if (!batch.isEmpty()) {
+				batches.put(batch);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading", e);
+		} finally {
+			// stop the workers and wait for them; the queue may still be full
+			boolean interrupted = false;
+			for (int i = 0; i < workers.size(); i++) {
+				while (true) {
+					try {
+						batches.put(endOfInput);
+						break;
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			}
+			for (Thread t : workers) {
+				while (t.isAlive()) {
+					try {
+						t.join();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		logProgress(count, sent.get(), start);
+		if (skipped > 0) {
+			LOGGER.warn(skipped + " rows could not be converted to Places for the attribute store");
+		}
 
-		File input = new File(currentPath);
+		printResponse(solrServer.commit());
+		printResponse(solrServer.optimize());
 
-		Map<File, String> index = new HashMap<File, String>();
+		if (failed.get() > 0) {
+			LOGGER.error(failed.get() + " of " + count + " rows failed to load");
+			return false;
+		}
+		return true;
+	}
 
-		// read the index file into the index Map
+	/**
+	 * The document for a row, its values named by the field names. Empty
+	 * values are left out.
+	 */
+	static SolrInputDocument toDocument(String[] fieldNames, String[] values) {
+		SolrInputDocument doc = new SolrInputDocument();
+		for (int i = 0; i < fieldNames.length && i < values.length; i++) {
+			// empty values are not indexed
+			String v = values[i].trim();
+			if (!v.isEmpty()) {
+				doc.setField(fieldNames[i], v);
+			}
+		}
+		return doc;
+	}
 
-		// loop over the lines of the index file
-		LineIterator indexIter = null;
+	/** Add the Place for a gazetteer row to the attribute store. */
+	private static boolean addToStore(GazetteerStore.Writer storeWriter, SolrInputDocument doc) throws IOException {
+		Object id = doc.getFieldValue("id");
+		if (id == null) {
+			return false;
+		}
 		try {
-			indexIter = FileUtils.lineIterator(input, "UTF-8");
-		} catch (IOException e) {
-			LOGGER.error("Couldnt read from " + input.getName() + ":", e);
-			return null;
+			storeWriter.add(Integer.parseInt(id.toString()), MatcherFactory.createPlace(doc));
+			return true;
+		} catch (IllegalStateException | NumberFormatException e) {
+			return false;
 		}
+	}
 
-		if (indexIter != null) {
-			while (indexIter.hasNext()) {
-				// get next line
-				String line = indexIter.next();
-				String[] pieces = line.split(":");
-				File subFile = new File(topDir, pieces[0]);
-				String tmpVal = pieces[1];
+	/**
+	 * Report what was loaded: the filter's counts, the size of the index on
+	 * disk, the heap its readers hold (mostly the terms index FSTs the tagger
+	 * walks) and, given some text, the tagging throughput. Run once with the
+	 * full gazetteer and once filtered to compare.
+	 */
+	private static void report(GazetteerFilter filter, String textPath) {
+		if (filter != null) {
+			LOGGER.info("Gazetteer filter: " + filter.getReport());
+		}
 
-				if (pieces.length >= 3) {
-					tmpVal = tmpVal + ":" + pieces[2];
+		CoreContainer container = MatcherFactory.getSolrContainer();
+		if (container != null) {
+			SolrCore core = container.getCore("gazetteer");
+			RefCounted<SolrIndexSearcher> searcherRef = core.getSearcher();
+			try {
+				IndexReader reader = searcherRef.get().getIndexReader();
+				long diskBytes = 0;
+				long heapBytes = 0;
+				for (LeafReaderContext leaf : reader.leaves()) {
+					LeafReader r = FilterLeafReader.unwrap(leaf.reader());
+					if (r instanceof SegmentReader) {
+						diskBytes = diskBytes + ((SegmentReader) r).getSegmentInfo().sizeInBytes();
+					}
+					if (r instanceof Accountable) {
+						heapBytes = heapBytes + ((Accountable) r).ramBytesUsed();
+					}
 				}
+				LOGGER.info("Gazetteer index: " + reader.numDocs() + " entries, " + diskBytes / 1024 / 1024
+						+ " MB on disk, " + heapBytes / 1024 / 1024 + " MB of index heap");
+			} catch (IOException e) {
+				LOGGER.error("Could not measure the gazetteer index", e);
+			} finally {
+				searcherRef.decref();
+				core.close();
+			}
+		}
 
-				index.put(subFile, tmpVal);
+		if (textPath == null || textPath.isEmpty()) {
+			return;
+		}
+		List<String> texts = new ArrayList<String>();
+		long chars = 0;
+		File textFile = new File(textPath);
+		Collection<File> files = textFile.isDirectory() ? FileUtils.listFiles(textFile, new String[] { "txt" },
+				false) : Collections.singletonList(textFile);
+		for (File f : files) {
+			try {
+				String txt = FileUtils.readFileToString(f, "UTF-8");
+				texts.add(txt);
+				chars = chars + txt.length();
+			} catch (IOException e) {
+				LOGGER.error("Exception reading text from file" + f.getName(), e);
+			}
+		}
 
+		PlacenameMatcher matcher = MatcherFactory.getMatcher();
+		long candidates = 0;
+		long start = 0;
+		for (int pass = 0; pass < REPORT_PASSES + 1; pass++) {
+			// the first pass warms up
+			if (pass == 1) {
+				start = System.nanoTime();
+				candidates = 0;
+			}
+			for (String txt : texts) {
+				candidates = candidates + matcher.matchText(txt, "report").size();
 			}
 		}
-		File tmp = null;
-		try {
-			tmp = File.createTempFile("vocab", "txt");
-		} catch (IOException e) {
-			LOGGER.error("Could not create temp file when flattening vocab:", e);
-			return null;
-		}
-
-		// loop over the files mentioned in the index and write to temp file
-		int indexID = 0;
-		for (File in : index.keySet()) {
-			String[] catAndTax = index.get(in).split(":");
-			String cat = catAndTax[0];
-			String tax = "";
-			if (catAndTax.length > 1) {
-				tax = catAndTax[1];
-			} else {
-				tax = "NONE";
+		double secs = (System.nanoTime() - start) / 1.0e9;
+		matcher.cleanup();
+		LOGGER.info("Tagging: " + Math.round(chars * REPORT_PASSES / secs) + " chars/sec, "
+				+ candidates / REPORT_PASSES + " place candidates in " + texts.size() + " texts");
+
+		long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+		LOGGER.info("Heap in use: " + heapUsed / 1024 / 1024 + " MB");
+	}
+
+	private static void logProgress(long read, long sent, long startNanos) {
+		double secs = (System.nanoTime() - startNanos) / 1.0e9;
+		LOGGER.info("Read " + read + " rows, loaded " + sent + " (" + Math.round(sent / Math.max(secs, 0.001))
+				+ " rows/sec)");
+	}
+
+	private static void usage() {
+		String tmp = "DataLoader <scheme> <inputformat> <inputfilepath> <solrhome> <threads> where\n";
+		tmp = tmp + " <scheme> = gazetteer | vocabulary\n";
+		tmp = tmp + " <inputformat> = csv | index | delta (a gazetteer changeset)\n";
+		tmp = tmp + " <inputfilepath> = file to be loaded\n";
+		tmp = tmp + " <solrhome> = path to solr home (optional)\n";
+		tmp = tmp + " <threads> = number of loading threads (optional, default one per processor)\n";
+
+		LOGGER.info(tmp);
+	}
+
+	/** The rows of a tab separated file, after its header line. */
+	static class CsvRows implements Iterator<String[]> {
+
+		/**
+		 * Tab separated, fields may be quoted with '"' (and a tab, newline or
+		 * doubled '"' inside the quotes is part of the value), as read by the
+		 * solr CSV handler the gazetteer was loaded with before.
+		 */
+		private static final CSVStrategy TSV = new CSVStrategy('\t', '"', CSVStrategy.COMMENTS_DISABLED,
+				CSVStrategy.ESCAPE_DISABLED, false, false, false, true);
+
+		private final File file;
+		private final BufferedReader reader;
+		private final CSVParser parser;
+		private String[] nextRow;
+
+		CsvRows(File csvFile) throws IOException {
+			file = csvFile;
+			reader = new BufferedReader(
+					new InputStreamReader(new FileInputStream(csvFile), StandardCharsets.UTF_8));
+			parser = new CSVParser(reader, TSV);
+			// skip the header line
+			parser.getLine();
+			nextRow = read();
+		}
+
+		private String[] read() throws IOException {
+			String[] row = parser.getLine();
+			if (row == null) {
+				reader.close();
 			}
+			return row;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return nextRow != null;
+		}
 
-			// loop over the lines of the subfiles file
-			// write the new flat contents to the temp file
-			LineIterator contentIter = null;
+		@Override
+		public String[] next() {
+			if (nextRow == null) {
+				throw new NoSuchElementException();
+			}
+			String[] row = nextRow;
 			try {
-				contentIter = FileUtils.lineIterator(in, "UTF-8");
+				nextRow = read();
 			} catch (IOException e) {
-				LOGGER.error("Couldnt read from " + in.getName(), e);
-				return null;
+				throw new UncheckedIOException("Could not read " + file, e);
 			}
+			return row;
+		}
+	}
 
-			if (contentIter != null) {
-				while (contentIter.hasNext()) {
+	/**
+	 * The vocabulary rows described by an index file. Each line of the index
+	 * is file:category[:taxonomy]; each line of those files is a phrase. Rows
+	 * are id, phrase, category, taxonomy.
+	 */
+	private static class IndexRows implements Iterator<String[]> {
+
+		private final Iterator<Map.Entry<File, String>> files;
+		private LineIterator lines;
+		private String cat;
+		private String tax;
+		private int indexID;
+
+		IndexRows(File indexFile) throws IOException {
+			File topDir = indexFile.getParentFile();
+			Map<File, String> index = new LinkedHashMap<File, String>();
+
+			// read the index file into the index Map
+			LineIterator indexIter = FileUtils.lineIterator(indexFile, "UTF-8");
+			try {
+				while (indexIter.hasNext()) {
 					// get next line
-					String line = contentIter.next();
-
-					// concat the pieces
-					String out = indexID + "\t" + line + "\t" + cat + "\t" + tax + "\n";
+					String line = indexIter.next();
+					String[] pieces = line.split(":");
+					File subFile = new File(topDir, pieces[0]);
+					String tmpVal = pieces[1];
 
-					// write all pieces to temp
-
-					try {
-						FileUtils.writeStringToFile(tmp, out, "UTF-8", true);
-					} catch (IOException e) {
-						LOGGER.error("Could not write to temp file when flattening vocab:", e);
+					if (pieces.length >= 3) {
+						tmpVal = tmpVal + ":" + pieces[2];
 					}
-					indexID++;
 
+					index.put(subFile, tmpVal);
 				}
+			} finally {
+				indexIter.close();
 			}
+			files = index.entrySet().iterator();
 		}
-		LOGGER.info("Flattened " + indexID + " vocabulary entries to temp file");
-		// return temp file path
 
-		return tmp.getAbsolutePath();
+		@Override
+		public boolean hasNext() {
+			while (lines == null || !lines.hasNext()) {
+				if (lines != null) {
+					lines.close();
+					lines = null;
+				}
+				if (!files.hasNext()) {
+					LOGGER.info("Read " + indexID + " vocabulary entries");
+					return false;
+				}
+				Map.Entry<File, String> entry = files.next();
+				String[] catAndTax = entry.getValue().split(":");
+				cat = catAndTax[0];
+				if (catAndTax.length > 1) {
+					tax = catAndTax[1];
+				} else {
+					tax = "NONE";
+				}
+				try {
+					lines = FileUtils.lineIterator(entry.getKey(), "UTF-8");
+				} catch (IOException e) {
+					LOGGER.error("Couldnt read from " + entry.getKey().getName(), e);
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public String[] next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			String[] row = { Integer.toString(indexID), lines.next(), cat, tax };
+			indexID++;
+			return row;
+		}
 	}
 
 	private static void printResponse(SolrResponseBase response) {
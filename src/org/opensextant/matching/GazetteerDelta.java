@@ -0,0 +1,138 @@
+package org.opensextant.matching;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.LineIterator;
+import org.apache.solr.common.SolrInputDocument;
+
+/**
+ * A changeset for the live gazetteer: entries to add or modify and entries to
+ * delete, keyed by gazetteer id (the solr uniqueKey). Applied with
+ * {@link MatcherFactory#applyGazetteerDelta(GazetteerDelta)}.
+ * <p>
+ * A changeset file is tab separated with a header line, like the gazetteer
+ * CSV given to the DataLoader but with an extra first column holding the
+ * operation: add, modify or delete. A delete only needs the id.
+ */
+public class GazetteerDelta {
+
+	/** Entries to add or replace, by id. */
+	private final Map<Integer, SolrInputDocument> upserts = new LinkedHashMap<Integer, SolrInputDocument>();
+
+	/** Ids to delete. */
+	private final Set<Integer> deletes = new LinkedHashSet<Integer>();
+
+	/**
+	 * Add a new gazetteer entry or replace the one with the same id. Replaces
+	 * an earlier change to that id in this changeset.
+	 *
+	 * @param entry
+	 *            a complete gazetteer entry, including its id
+	 */
+	public void upsert(SolrInputDocument entry) {
+		Object id = entry.getFieldValue("id");
+		if (id == null) {
+			throw new IllegalArgumentException("Gazetteer entry has no id");
+		}
+		int key = Integer.parseInt(id.toString());
+		deletes.remove(key);
+		upserts.put(key, entry);
+	}
+
+	/**
+	 * Delete a gazetteer entry. Replaces an earlier change to that id in this
+	 * changeset.
+	 *
+	 * @param id
+	 *            the gazetteer id
+	 */
+	public void delete(int id) {
+		upserts.remove(id);
+		deletes.add(id);
+	}
+
+	public Map<Integer, SolrInputDocument> getUpserts() {
+		return Collections.unmodifiableMap(upserts);
+	}
+
+	public Collection<Integer> getDeletes() {
+		return Collections.unmodifiableSet(deletes);
+	}
+
+	/** The number of ids changed. */
+	public int size() {
+		return upserts.size() + deletes.size();
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * Read a changeset file.
+	 *
+	 * @param deltaFile
+	 *            the changeset file
+	 * @return the changeset
+	 * @throws IOException
+	 *             if the file can't be read or has a bad operation or id
+	 */
+	public static GazetteerDelta read(File deltaFile) throws IOException {
+		String[] fieldNames = MatcherFactory.getGazetteerFieldNamesLoader().split(",");
+		GazetteerDelta delta = new GazetteerDelta();
+
+		LineIterator lines = FileUtils.lineIterator(deltaFile, "UTF-8");
+		try {
+			// skip the header line
+			if (lines.hasNext()) {
+				lines.next();
+			}
+			int lineNumber = 1;
+			while (lines.hasNext()) {
+				lineNumber++;
+				String line = lines.next();
+				if (line.trim().isEmpty()) {
+					continue;
+				}
+				String[] values = line.split("\t", -1);
+				String op = values[0].trim();
+				try {
+					if ("delete".equalsIgnoreCase(op)) {
+						delta.delete(Integer.parseInt(values[1].trim()));
+					} else if ("add".equalsIgnoreCase(op) || "modify".equalsIgnoreCase(op)) {
+						SolrInputDocument doc = new SolrInputDocument();
+						for (int i = 0; i < fieldNames.length && i + 1 < values.length; i++) {
+							// empty values are not indexed
+							String v = values[i + 1].trim();
+							if (!v.isEmpty()) {
+								doc.setField(fieldNames[i], v);
+							}
+						}
+						delta.upsert(doc);
+					} else {
+						throw new IOException("Unknown operation \"" + op + "\" on line " + lineNumber + " of "
+								+ deltaFile);
+					}
+				} catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+					throw new IOException("Bad id on line " + lineNumber + " of " + deltaFile, e);
+				}
+			}
+		} finally {
+			lines.close();
+		}
+		return delta;
+	}
+
+	@Override
+	public String toString() {
+		return "GazetteerDelta upserts=" + upserts.size() + " deletes=" + deletes.size();
+	}
+}
@@ -0,0 +1,165 @@
+package org.opensextant.matching;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.solr.common.SolrInputDocument;
+
+/**
+ * Selects the gazetteer entries to load, to build a smaller tagging index
+ * (e.g. for an edge deployment). A filter profile is a properties file; each
+ * setting left out or empty lets everything through:
+ * 
+ * <pre>
+ * partitions     = comma separated partitions to keep
+ * featureClasses = comma separated feature classes (A,P,...) to keep
+ * countries      = comma separated country codes to keep
+ * nameTypes      = comma separated name types (name,abbrev,code) to keep
+ * minNameBias    = the lowest name_bias to keep
+ * </pre>
+ * 
+ * Counts of the entries each setting rejected are kept for reporting.
+ */
+public class GazetteerFilter {
+
+	private Set<String> partitions;
+	private Set<String> featureClasses;
+	private Set<String> countries;
+	private Set<String> nameTypes;
+	private Double minNameBias;
+
+	private long accepted;
+	private long rejectedPartition;
+	private long rejectedFeatureClass;
+	private long rejectedCountry;
+	private long rejectedNameType;
+	private long rejectedNameBias;
+
+	/**
+	 * Read a filter profile.
+	 * 
+	 * @param profile
+	 *            the properties file
+	 * @return the filter
+	 * @throws IOException
+	 *             if the profile can't be read
+	 */
+	public static GazetteerFilter load(File profile) throws IOException {
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(profile);
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+
+		GazetteerFilter filter = new GazetteerFilter();
+		filter.partitions = toSet(props.getProperty("partitions"));
+		filter.featureClasses = toSet(props.getProperty("featureClasses"));
+		filter.countries = toSet(props.getProperty("countries"));
+		filter.nameTypes = toSet(props.getProperty("nameTypes"));
+		String bias = props.getProperty("minNameBias", "").trim();
+		if (!bias.isEmpty()) {
+			try {
+				filter.minNameBias = Double.valueOf(bias);
+			} catch (NumberFormatException e) {
+				throw new IOException("Bad minNameBias " + bias + " in " + profile, e);
+			}
+		}
+		return filter;
+	}
+
+	private static Set<String> toSet(String list) {
+		if (list == null || list.trim().isEmpty()) {
+			return null;
+		}
+		Set<String> values = new HashSet<String>();
+		for (String v : list.split(",")) {
+			if (!v.trim().isEmpty()) {
+				values.add(v.trim());
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Should the entry be loaded?
+	 * 
+	 * @param entry
+	 *            a gazetteer entry as read by the loader
+	 * @return true to load it
+	 */
+	public boolean accept(SolrInputDocument entry) {
+		if (!matches(partitions, entry, "partition")) {
+			rejectedPartition++;
+			return false;
+		}
+		if (!matches(featureClasses, entry, "feat_class")) {
+			rejectedFeatureClass++;
+			return false;
+		}
+		if (!matches(countries, entry, "cc")) {
+			rejectedCountry++;
+			return false;
+		}
+		if (!matches(nameTypes, entry, "name_type")) {
+			rejectedNameType++;
+			return false;
+		}
+		if (minNameBias != null) {
+			Object bias = entry.getFieldValue("name_bias");
+			try {
+				if (bias == null || Double.parseDouble(bias.toString()) < minNameBias) {
+					rejectedNameBias++;
+					return false;
+				}
+			} catch (NumberFormatException e) {
+				rejectedNameBias++;
+				return false;
+			}
+		}
+		accepted++;
+		return true;
+	}
+
+	private static boolean matches(Set<String> allowed, SolrInputDocument entry, String field) {
+		if (allowed == null) {
+			return true;
+		}
+		Object v = entry.getFieldValue(field);
+		return v != null && allowed.contains(v.toString());
+	}
+
+	/** The number of entries accepted so far. */
+	public long getAcceptedCount() {
+		return accepted;
+	}
+
+	/** The number of entries rejected so far. */
+	public long getRejectedCount() {
+		return rejectedPartition + rejectedFeatureClass + rejectedCountry + rejectedNameType + rejectedNameBias;
+	}
+
+	@Override
+	public String toString() {
+		return "GazetteerFilter partitions=" + describe(partitions) + " featureClasses=" + describe(featureClasses)
+				+ " countries=" + describe(countries) + " nameTypes=" + describe(nameTypes) + " minNameBias="
+				+ (minNameBias == null ? "any" : minNameBias);
+	}
+
+	/** The counts of entries accepted and rejected by each setting. */
+	public String getReport() {
+		return "accepted=" + accepted + " rejected: partition=" + rejectedPartition + " featureClass="
+				+ rejectedFeatureClass + " country=" + rejectedCountry + " nameType=" + rejectedNameType
+				+ " nameBias=" + rejectedNameBias;
+	}
+
+	private static String describe(Set<String> values) {
+		return values == null ? "any" : values.toString();
+	}
+}
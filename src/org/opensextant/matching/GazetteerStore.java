@@ -0,0 +1,449 @@
+package org.opensextant.matching;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.opensextant.placedata.Place;
+
+/**
+ * A compact, memory mapped, read only store of the gazetteer attributes needed
+ * to build a Place, keyed by gazetteer id. With a store available the tagger
+ * only needs to return ids; Places are then read from the mapped file instead
+ * of from Solr's stored fields.
+ * <p>
+ * The file is columnar: a header, a dictionary of the low cardinality strings
+ * (country, admin and feature codes, source, name types), one column per
+ * attribute with an entry per row sorted by id, then a heap of the
+ * variable length strings (names and place ids).
+ */
+public class GazetteerStore implements Closeable {
+
+	private static final int MAGIC = 0x4F534753;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	/** Code/offset used for a null string. */
+	private static final int NULL = -1;
+
+	/** The columns, in file order, with the width of each entry. */
+	private static final int ID = 0;
+	private static final int LAT = 1;
+	private static final int LON = 2;
+	private static final int NAME_BIAS = 3;
+	private static final int ID_BIAS = 4;
+	private static final int PLACE_ID = 5;
+	private static final int NAME = 6;
+	private static final int NAME_EXPANDED = 7;
+	private static final int CC = 8;
+	private static final int ADM1 = 9;
+	private static final int ADM2 = 10;
+	private static final int FEAT_CLASS = 11;
+	private static final int FEAT_CODE = 12;
+	private static final int SOURCE = 13;
+	private static final int NAME_TYPE = 14;
+	private static final int NAME_TYPE_SYSTEM = 15;
+	private static final int[] WIDTHS = { 4, 8, 8, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4 };
+
+	private RandomAccessFile file;
+	private int rowCount;
+	private String[] dictionary;
+	private MappedByteBuffer[] columns = new MappedByteBuffer[WIDTHS.length];
+	private MappedByteBuffer heap;
+
+	private GazetteerStore() {
+	}
+
+	/**
+	 * Open and map a store file.
+	 *
+	 * @param storeFile
+	 *            a file created by a {@link Writer}
+	 * @return the opened store
+	 * @throws IOException
+	 *             if the file can't be read or isn't a store
+	 */
+	public static GazetteerStore open(File storeFile) throws IOException {
+		GazetteerStore store = new GazetteerStore();
+		store.file = new RandomAccessFile(storeFile, "r");
+		try {
+			store.map();
+		} catch (IOException | RuntimeException e) {
+			store.close();
+			throw e;
+		}
+		return store;
+	}
+
+	private void map() throws IOException {
+		FileChannel ch = file.getChannel();
+
+		ByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+		if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+			throw new IOException("Not a gazetteer store (or wrong version)");
+		}
+		rowCount = header.getInt();
+		int dictBytes = header.getInt();
+
+		// read the dictionary strings onto the heap
+		ByteBuffer dict = ch.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, dictBytes);
+		dictionary = new String[dict.getInt()];
+		for (int i = 0; i < dictionary.length; i++) {
+			byte[] b = new byte[dict.getInt()];
+			dict.get(b);
+			dictionary[i] = new String(b, StandardCharsets.UTF_8);
+		}
+
+		// map each column and the string heap
+		long pos = HEADER_SIZE + dictBytes;
+		for (int c = 0; c < WIDTHS.length; c++) {
+			long size = (long) rowCount * WIDTHS[c];
+			columns[c] = ch.map(FileChannel.MapMode.READ_ONLY, pos, size);
+			pos = pos + size;
+		}
+		int heapSize = ch.map(FileChannel.MapMode.READ_ONLY, pos, 4).getInt();
+		heap = ch.map(FileChannel.MapMode.READ_ONLY, pos + 4, heapSize);
+	}
+
+	/** The number of gazetteer entries in the store. */
+	public int size() {
+		return rowCount;
+	}
+
+	/**
+	 * Read the Place for a gazetteer id.
+	 *
+	 * @param id
+	 *            the gazetteer id
+	 * @return a new Place or null if the id isn't in the store
+	 */
+	public Place getPlace(int id) {
+		int row = findRow(id);
+		if (row < 0) {
+			return null;
+		}
+		return placeAt(row);
+	}
+
+	private Place placeAt(int row) {
+		Place place = new Place(heapString(intAt(PLACE_ID, row)), heapString(intAt(NAME, row)));
+		place.setExpandedPlaceName(heapString(intAt(NAME_EXPANDED, row)));
+		place.setNameType(dictString(intAt(NAME_TYPE, row)));
+		place.setNameTypeSystem(dictString(intAt(NAME_TYPE_SYSTEM, row)));
+		place.setCountryCode(dictString(intAt(CC, row)));
+		place.setAdmin1(dictString(intAt(ADM1, row)));
+		place.setAdmin2(dictString(intAt(ADM2, row)));
+		place.setFeatureClass(dictString(intAt(FEAT_CLASS, row)));
+		place.setFeatureCode(dictString(intAt(FEAT_CODE, row)));
+		place.setSource(dictString(intAt(SOURCE, row)));
+		place.setLatitude(columns[LAT].getDouble(row * 8));
+		place.setLongitude(columns[LON].getDouble(row * 8));
+		place.setNameBias(columns[NAME_BIAS].getFloat(row * 4));
+		place.setIdBias(columns[ID_BIAS].getFloat(row * 4));
+		return place;
+	}
+
+	/** The id of a row, rows being in id order. */
+	int idAt(int row) {
+		return intAt(ID, row);
+	}
+
+	double latitudeAt(int row) {
+		return columns[LAT].getDouble(row * 8);
+	}
+
+	double longitudeAt(int row) {
+		return columns[LON].getDouble(row * 8);
+	}
+
+	/** Binary search the (sorted) id column. */
+	private int findRow(int id) {
+		int lo = 0;
+		int hi = rowCount - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int midId = intAt(ID, mid);
+			if (midId < id) {
+				lo = mid + 1;
+			} else if (midId > id) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	private int intAt(int column, int row) {
+		return columns[column].getInt(row * 4);
+	}
+
+	private String dictString(int code) {
+		if (code == NULL) {
+			return null;
+		}
+		return dictionary[code];
+	}
+
+	private String heapString(int offset) {
+		if (offset == NULL) {
+			return null;
+		}
+		int len = heap.getShort(offset) & 0xFFFF;
+		byte[] b = new byte[len];
+		for (int i = 0; i < len; i++) {
+			b[i] = heap.get(offset + 2 + i);
+		}
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Close the file. The mappings stay valid until the buffers are collected,
+	 * so readers still using a store replaced by a newer one are unaffected.
+	 */
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * Writes a store file. Places can be added in any id order; they are
+	 * sorted by id when the writer is closed.
+	 */
+	public static class Writer implements Closeable {
+
+		private File out;
+		private File heapFile;
+		private DataOutputStream heapOut;
+		private int heapSize;
+
+		private Map<String, Integer> dictCodes = new HashMap<String, Integer>();
+		private List<String> dictStrings = new ArrayList<String>();
+
+		private int rows;
+		private int[] ids = new int[1024];
+		private double[] lats = new double[1024];
+		private double[] lons = new double[1024];
+		private float[] nameBiases = new float[1024];
+		private float[] idBiases = new float[1024];
+		/** The int columns from PLACE_ID onwards, indexed by column - PLACE_ID. */
+		private int[][] intColumns = new int[WIDTHS.length - PLACE_ID][1024];
+
+		public Writer(File out) throws IOException {
+			this.out = out;
+			heapFile = File.createTempFile("gazstore", ".heap");
+			heapOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(heapFile)));
+		}
+
+		/**
+		 * Add the Place for a gazetteer id.
+		 *
+		 * @param id
+		 *            the gazetteer id
+		 * @param place
+		 *            the Place as createPlace would have made it
+		 * @throws IOException
+		 *             if the string heap can't be written
+		 */
+		public void add(int id, Place place) throws IOException {
+			if (rows == ids.length) {
+				grow();
+			}
+			ids[rows] = id;
+			lats[rows] = place.getLatitude();
+			lons[rows] = place.getLongitude();
+			nameBiases[rows] = (float) place.getNameBias();
+			idBiases[rows] = (float) place.getIdBias();
+			setInt(PLACE_ID, addToHeap(place.getPlaceID()));
+			setInt(NAME, addToHeap(place.getPlaceName()));
+			setInt(NAME_EXPANDED, addToHeap(place.getExpandedPlaceName()));
+			setInt(CC, code(place.getCountryCode()));
+			setInt(ADM1, code(place.getAdmin1()));
+			setInt(ADM2, code(place.getAdmin2()));
+			setInt(FEAT_CLASS, code(place.getFeatureClass()));
+			setInt(FEAT_CODE, code(place.getFeatureCode()));
+			setInt(SOURCE, code(place.getSource()));
+			setInt(NAME_TYPE, code(place.getNameType()));
+			setInt(NAME_TYPE_SYSTEM, code(place.getNameTypeSystem()));
+			rows++;
+		}
+
+		/**
+		 * Copy the entries of an existing store, except those given.
+		 *
+		 * @param from
+		 *            the store to copy
+		 * @param skip
+		 *            ids not to copy, e.g. because they have changed
+		 * @throws IOException
+		 *             if the string heap can't be written
+		 */
+		public void addAll(GazetteerStore from, Set<Integer> skip) throws IOException {
+			for (int row = 0; row < from.rowCount; row++) {
+				int id = from.intAt(ID, row);
+				if (!skip.contains(id)) {
+					add(id, from.placeAt(row));
+				}
+			}
+		}
+
+		/** The number of Places added so far. */
+		public int size() {
+			return rows;
+		}
+
+		private void setInt(int column, int value) {
+			intColumns[column - PLACE_ID][rows] = value;
+		}
+
+		private void grow() {
+			int len = ids.length * 2;
+			ids = Arrays.copyOf(ids, len);
+			lats = Arrays.copyOf(lats, len);
+			lons = Arrays.copyOf(lons, len);
+			nameBiases = Arrays.copyOf(nameBiases, len);
+			idBiases = Arrays.copyOf(idBiases, len);
+			for (int c = 0; c < intColumns.length; c++) {
+				intColumns[c] = Arrays.copyOf(intColumns[c], len);
+			}
+		}
+
+		private int code(String s) {
+			if (s == null) {
+				return NULL;
+			}
+			Integer code = dictCodes.get(s);
+			if (code == null) {
+				code = dictStrings.size();
+				dictStrings.add(s);
+				dictCodes.put(s, code);
+			}
+			return code;
+		}
+
+		private int addToHeap(String s) throws IOException {
+			if (s == null) {
+				return NULL;
+			}
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			if (b.length > 0xFFFF) {
+				b = Arrays.copyOf(b, 0xFFFF);
+			}
+			if ((long) heapSize + 2 + b.length > Integer.MAX_VALUE) {
+				throw new IOException("Gazetteer store string heap is full");
+			}
+			int offset = heapSize;
+			heapOut.writeShort(b.length);
+			heapOut.write(b);
+			heapSize = heapSize + 2 + b.length;
+			return offset;
+		}
+
+		/**
+		 * Sort by id and write the store file. The file is written alongside
+		 * and then moved into place, so a store already mapped by a reader is
+		 * never truncated under it.
+		 */
+		@Override
+		public void close() throws IOException {
+			heapOut.close();
+			File tmp = new File(out.getPath() + ".tmp");
+			try {
+				int[] order = sortedOrder();
+
+				DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+				try {
+					// header and dictionary
+					int dictBytes = 4;
+					List<byte[]> dictEncoded = new ArrayList<byte[]>(dictStrings.size());
+					for (String s : dictStrings) {
+						byte[] b = s.getBytes(StandardCharsets.UTF_8);
+						dictEncoded.add(b);
+						dictBytes = dictBytes + 4 + b.length;
+					}
+					dos.writeInt(MAGIC);
+					dos.writeInt(VERSION);
+					dos.writeInt(rows);
+					dos.writeInt(dictBytes);
+					dos.writeInt(dictEncoded.size());
+					for (byte[] b : dictEncoded) {
+						dos.writeInt(b.length);
+						dos.write(b);
+					}
+
+					// the columns, in id order
+					for (int r : order) {
+						dos.writeInt(ids[r]);
+					}
+					for (int r : order) {
+						dos.writeDouble(lats[r]);
+					}
+					for (int r : order) {
+						dos.writeDouble(lons[r]);
+					}
+					for (int r : order) {
+						dos.writeFloat(nameBiases[r]);
+					}
+					for (int r : order) {
+						dos.writeFloat(idBiases[r]);
+					}
+					for (int[] col : intColumns) {
+						for (int r : order) {
+							dos.writeInt(col[r]);
+						}
+					}
+
+					// and the string heap
+					dos.writeInt(heapSize);
+					Files.copy(heapFile.toPath(), dos);
+				} finally {
+					dos.close();
+				}
+				Files.move(tmp.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				heapFile.delete();
+				tmp.delete();
+			}
+		}
+
+		/** The row indices in ascending id order. */
+		private int[] sortedOrder() {
+			int[] order = new int[rows];
+			boolean sorted = true;
+			for (int r = 0; r < rows; r++) {
+				order[r] = r;
+				if (r > 0 && ids[r] < ids[r - 1]) {
+					sorted = false;
+				}
+			}
+			if (sorted) {
+				return order;
+			}
+			// sort (id,row) pairs packed into longs
+			long[] keys = new long[rows];
+			for (int r = 0; r < rows; r++) {
+				keys[r] = ((long) ids[r] << 32) | r;
+			}
+			Arrays.sort(keys);
+			for (int r = 0; r < rows; r++) {
+				order[r] = (int) keys[r];
+			}
+			return order;
+		}
+	}
+}
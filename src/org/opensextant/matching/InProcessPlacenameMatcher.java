@@ -0,0 +1,257 @@
+package org.opensextant.matching;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.IntsRef;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.BitDocSet;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SyntaxError;
+import org.apache.solr.util.RefCounted;
+import org.opensextant.placedata.Place;
+import org.opensextant.placedata.PlaceCandidate;
+import org.opensextant.solrtexttagger.TagClusterReducer;
+import org.opensextant.solrtexttagger.Tagger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A PlacenameMatcher which runs the SolrTextTagger directly against the
+ * gazetteer core's index in this JVM, instead of sending a request through
+ * the EmbeddedSolrServer. The tagger walks the name4matching terms (an FST
+ * when using the Memory postings format) and each tag is turned straight into
+ * a PlaceCandidate, so there is no NamedList response, no SolrDocumentList and
+ * no boxed id lists to build and then take apart again.
+ * <p>
+ * Only available when the MatcherFactory is running embedded; see
+ * {@link MatcherFactory#setInProcessTagging(boolean)}.
+ */
+public class InProcessPlacenameMatcher extends PlacenameMatcher {
+
+	private CoreContainer container;
+	private String coreName;
+	private Set<String> storedFields;
+
+	/**
+	 * The gazetteer id of each doc of the newest searcher, one int per doc,
+	 * shared by every instance.
+	 */
+	private static volatile DocToId docToId;
+	private static final Object DOC_TO_ID_LOCK = new Object();
+
+	/** Number of doc id lists the tagger keeps per call. */
+	private static final int DOCIDS_CACHE_SIZE = 2000;
+
+	private static final Set<String> ID_FIELD = Collections.singleton("id");
+
+	/** Log object. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(InProcessPlacenameMatcher.class);
+
+	protected InProcessPlacenameMatcher(SolrClient svr, ModifiableSolrParams prms, CoreContainer container,
+			String coreName) {
+		super(svr, prms);
+		this.container = container;
+		this.coreName = coreName;
+		storedFields = new HashSet<String>();
+		Collections.addAll(storedFields, MatcherFactory.getGazetteerFieldNames().split(","));
+	}
+
+	@Override
+	protected int tag(final String buffer, String docName, final MatchHandler<PlaceCandidate> handler) {
+
+		SolrCore core = container.getCore(coreName);
+		if (core == null) {
+			LOGGER.error("No core named " + coreName + " when attempting to match " + docName);
+			return TAG_FAILED;
+		}
+
+		ModifiableSolrParams prms = getMatchParams();
+		String field = prms.get("field");
+		final int[] count = { 0 };
+		// read before the searcher, which is then at least this new
+		final long version = MatcherFactory.getGazetteerVersion();
+		SolrQueryRequest req = new LocalSolrQueryRequest(core, prms);
+		RefCounted<SolrIndexSearcher> searcherRef = core.getSearcher();
+
+		try {
+			final SolrIndexSearcher searcher = searcherRef.get();
+			final IndexSchema schema = core.getLatestSchema();
+			Terms terms = searcher.getLeafReader().terms(field);
+			if (terms == null) {
+				return 0;
+			}
+			Bits docBits = getDocBits(req, searcher);
+			Analyzer analyzer = schema.getField(field).getType().getQueryAnalyzer();
+
+			final TagScratch scratch = TagScratch.get();
+			try (TokenStream tokenStream = analyzer.tokenStream("", new StringReader(buffer))) {
+				final int[] docToId = getDocToId(searcher);
+
+				Tagger tagger = new Tagger(terms, docBits, tokenStream, TagClusterReducer.LONGEST_DOMINANT_RIGHT,
+						false, false) {
+					@Override
+					protected void tagCallback(int startOffset, int endOffset, Object docIdsKey) {
+						IntsRef docIds = lookupDocIds(docIdsKey);
+						scratch.clearPlaces();
+						try {
+							for (int i = docIds.offset; i < docIds.offset + docIds.length; i++) {
+								scratch.addPlace(getPlace(searcher, schema, docToId, docIds.ints[i], version));
+							}
+						} catch (IOException e) {
+							throw new IllegalStateException("Could not read gazetteer entry", e);
+						}
+						PlaceCandidate pc = createCandidate(buffer, startOffset, endOffset, scratch);
+						if (pc != null) {
+							handler.handle(pc);
+							count[0]++;
+						}
+					}
+				};
+				tagger.enableDocIdsCache(DOCIDS_CACHE_SIZE);
+				tagger.process();
+			} finally {
+				scratch.release();
+			}
+		} catch (IOException | SyntaxError | IllegalStateException e) {
+			LOGGER.error("Got exception when attempting to match " + docName, e);
+			count[0] = TAG_FAILED;
+		} finally {
+			searcherRef.decref();
+			req.close();
+			core.close();
+		}
+
+		return count[0];
+	}
+
+	/**
+	 * The documents which may be tagged: those matching the filter queries of
+	 * the match params, as the /tag request handler does.
+	 */
+	private Bits getDocBits(SolrQueryRequest req, final SolrIndexSearcher searcher)
+			throws SyntaxError, IOException {
+		String[] filterQueries = req.getParams().getParams(CommonParams.FQ);
+		if (filterQueries == null || filterQueries.length == 0) {
+			return searcher.getLeafReader().getLiveDocs();
+		}
+
+		List<Query> queries = new ArrayList<Query>(filterQueries.length);
+		for (String fq : filterQueries) {
+			queries.add(QParser.getParser(fq, null, req).getQuery());
+		}
+
+		// hopefully in the filter cache
+		final DocSet docSet = searcher.getDocSet(queries);
+		if (docSet instanceof BitDocSet) {
+			return ((BitDocSet) docSet).getBits();
+		}
+		return new Bits() {
+			@Override
+			public boolean get(int index) {
+				return docSet.exists(index);
+			}
+
+			@Override
+			public int length() {
+				return searcher.maxDoc();
+			}
+		};
+	}
+
+	/**
+	 * The gazetteer id of each Lucene doc of a searcher, filled in as docs are
+	 * seen. Holds id + 1 so that 0 means not yet known. Replaced when a newer
+	 * searcher is first used; tags still running on an older one get null.
+	 */
+	private static int[] getDocToId(SolrIndexSearcher searcher) {
+		DocToId d = docToId;
+		if (d != null && d.searcher == searcher) {
+			return d.ids;
+		}
+		synchronized (DOC_TO_ID_LOCK) {
+			d = docToId;
+			if (d != null && d.searcher == searcher) {
+				return d.ids;
+			}
+			if (d != null && d.searcher.getOpenNanoTime() - searcher.getOpenNanoTime() > 0) {
+				return null;
+			}
+			d = new DocToId(searcher);
+			docToId = d;
+			return d.ids;
+		}
+	}
+
+	/**
+	 * Get the Place for a Lucene doc, from the shared Place cache or the
+	 * attribute store if there.
+	 */
+	private Place getPlace(SolrIndexSearcher searcher, IndexSchema schema, int[] docToId, int docId,
+			long version) throws IOException {
+		// racing writers store the same value
+		int id = docToId == null ? -1 : docToId[docId] - 1;
+		if (id < 0) {
+			Document idDoc = searcher.doc(docId, ID_FIELD);
+			id = idDoc.getField("id").numericValue().intValue();
+			if (docToId != null) {
+				docToId[docId] = id + 1;
+			}
+		}
+
+		Place place = MatcherFactory.getCachedPlace(id, version);
+		if (place == null) {
+			place = MatcherFactory.createPlace(toSolrDocument(searcher.doc(docId, storedFields), schema));
+			MatcherFactory.getPlaceCache().put(id, place, version);
+		}
+		return place;
+	}
+
+	/** A searcher and the gazetteer ids of its docs. */
+	private static class DocToId {
+		private final SolrIndexSearcher searcher;
+		private final int[] ids;
+
+		DocToId(SolrIndexSearcher searcher) {
+			this.searcher = searcher;
+			ids = new int[searcher.maxDoc()];
+		}
+	}
+
+	/** Convert the stored fields of a Lucene doc as the response writer would. */
+	private static SolrDocument toSolrDocument(Document doc, IndexSchema schema) {
+		SolrDocument solrDoc = new SolrDocument();
+		for (IndexableField f : doc) {
+			SchemaField sf = schema.getFieldOrNull(f.name());
+			if (sf != null) {
+				solrDoc.addField(f.name(), sf.getType().toObject(f));
+			} else {
+				solrDoc.addField(f.name(), f.stringValue());
+			}
+		}
+		return solrDoc;
+	}
+}
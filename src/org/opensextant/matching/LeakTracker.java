@@ -0,0 +1,150 @@
+package org.opensextant.matching;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the objects handed out which must be released (e.g. by
+ * cleanup()), without keeping them alive. An object which is garbage
+ * collected without having been released has leaked: it is counted, logged
+ * (with where it was handed out, if allocation sites are being recorded) and
+ * passed to a callback, e.g. so a pool can reclaim its slot.
+ *
+ * @param <T>
+ *            the type of object tracked
+ */
+public class LeakTracker<T> {
+
+	/** Record where each tracked object was handed out. Costs a stack trace each. */
+	private static volatile boolean recordAllocationSites;
+
+	private final String kind;
+	private final Consumer<Object> onLeak;
+	private final ReferenceQueue<T> queue = new ReferenceQueue<T>();
+	private final Map<T, Ref<T>> live = Collections.synchronizedMap(new WeakHashMap<T, Ref<T>>());
+	private final AtomicLong leaks = new AtomicLong();
+
+	/** Log object. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(LeakTracker.class);
+
+	/**
+	 * @param kind
+	 *            what is tracked, for the log
+	 * @param onLeak
+	 *            called with the tracking token of each leaked object (see
+	 *            {@link #track(Object, Object)}), may be null
+	 */
+	public LeakTracker(String kind, Consumer<Object> onLeak) {
+		this.kind = kind;
+		this.onLeak = onLeak;
+	}
+
+	/**
+	 * Record the place each object is handed out, so leaks can be traced to
+	 * the code that didn't release them.
+	 * 
+	 * @param record
+	 *            true to record allocation sites
+	 */
+	public static void setRecordAllocationSites(boolean record) {
+		recordAllocationSites = record;
+	}
+
+	/** Start tracking an object. */
+	public void track(T obj) {
+		track(obj, null);
+	}
+
+	/**
+	 * Start tracking an object.
+	 * 
+	 * @param obj
+	 *            the object handed out
+	 * @param token
+	 *            passed to the leak callback if the object leaks
+	 */
+	public void track(T obj, Object token) {
+		expunge();
+		Throwable site = recordAllocationSites ? new Throwable(kind + " handed out here") : null;
+		live.put(obj, new Ref<T>(obj, queue, token, site));
+	}
+
+	/**
+	 * Stop tracking an object, which has been properly released.
+	 * 
+	 * @return true if it was being tracked
+	 */
+	public boolean release(T obj) {
+		Ref<T> ref = live.remove(obj);
+		expunge();
+		if (ref == null) {
+			return false;
+		}
+		// a cleared reference is never enqueued, so isn't a leak
+		ref.clear();
+		return true;
+	}
+
+	/** Is the object being tracked, i.e. handed out and not yet released? */
+	public boolean isTracked(T obj) {
+		return live.containsKey(obj);
+	}
+
+	/** The number of objects handed out and not yet released. */
+	public int size() {
+		expunge();
+		return live.size();
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/** The number of objects found to have leaked. */
+	public long getLeakCount() {
+		expunge();
+		return leaks.get();
+	}
+
+	/**
+	 * Deal with the objects collected since last time, counting them as
+	 * leaked and passing them to the callback. Done by every other method,
+	 * call it directly when waiting on what the callback frees.
+	 */
+	@SuppressWarnings("unchecked")
+	public void expunge() {
+		Ref<T> ref;
+		while ((ref = (Ref<T>) queue.poll()) != null) {
+			leaks.incrementAndGet();
+			if (ref.site != null) {
+				LOGGER.warn("A " + kind + " was garbage collected without being released", ref.site);
+			} else {
+				LOGGER.warn("A " + kind + " was garbage collected without being released."
+						+ " Call LeakTracker.setRecordAllocationSites(true) to see where it came from.");
+			}
+			if (onLeak != null) {
+				onLeak.accept(ref.token);
+			}
+		}
+	}
+
+	/** A weak reference to a tracked object with its token and allocation site. */
+	private static class Ref<T> extends WeakReference<T> {
+		private final Object token;
+		private final Throwable site;
+
+		Ref(T obj, ReferenceQueue<T> queue, Object token, Throwable site) {
+			super(obj, queue);
+			this.token = token;
+			this.site = site;
+		}
+	}
+}
@@ -0,0 +1,304 @@
+package org.opensextant.matching;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.request.IsUpdateRequest;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A SolrClient which spreads requests over several solr nodes serving the
+ * same core. Each read goes to the live node with the lowest recent latency
+ * weighted by the number of requests it already has in flight. A node which
+ * can't be connected to is ejected and the read retried on another node; any
+ * other failure (e.g. a slow query timing out) is the request's, not the
+ * node's, and is thrown as is. Ejected nodes are pinged in the background and
+ * re-admitted as soon as they answer.
+ * <p>
+ * Updates, commits and optimizes go to every node, so the replicas stay the
+ * same; if any node fails one, an exception names the nodes which failed.
+ */
+public class LoadBalancedSolrClient extends SolrClient {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Weight of the newest latency sample in a node's average. */
+	private static final double LATENCY_ALPHA = 0.2;
+
+	private final List<Node> nodes;
+	private final transient ScheduledExecutorService healthChecker;
+	private final AtomicInteger nextStart = new AtomicInteger();
+
+	/** Log object. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(LoadBalancedSolrClient.class);
+
+	/**
+	 * @param urls
+	 *            the core URL on each node
+	 * @param httpClient
+	 *            the (pooled) http client shared by all the nodes
+	 * @param healthCheckMs
+	 *            interval between health checks of the nodes
+	 */
+	public LoadBalancedSolrClient(List<String> urls, HttpClient httpClient, long healthCheckMs) {
+		List<Node> tmp = new ArrayList<Node>(urls.size());
+		for (String url : urls) {
+			tmp.add(new Node(new HttpSolrClient(url, httpClient)));
+		}
+		nodes = Collections.unmodifiableList(tmp);
+
+		healthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "opensextant-healthcheck");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		healthChecker.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				checkHealth();
+			}
+		}, healthCheckMs, healthCheckMs, TimeUnit.MILLISECONDS);
+	}
+
+	// SolrClient declares the request raw
+	@Override
+	@SuppressWarnings("rawtypes")
+	public NamedList<Object> request(SolrRequest request, String collection) throws SolrServerException,
+			IOException {
+		SolrRequest<?> req = request;
+		if (req instanceof IsUpdateRequest) {
+			return update(req, collection);
+		}
+		Exception last = null;
+
+		// try the live nodes, best first, then as a last resort the dead ones
+		List<Node> candidates = rank(true);
+		candidates.addAll(rank(false));
+		for (Node node : candidates) {
+			node.inFlight.incrementAndGet();
+			long start = System.nanoTime();
+			try {
+				NamedList<Object> rsp = node.client.request(req, collection);
+				node.succeeded(System.nanoTime() - start);
+				return rsp;
+			} catch (SolrServerException | IOException e) {
+				if (!isConnectFailure(e)) {
+					// the node is there, the request failed
+					throw e;
+				}
+				if (node.alive) {
+					LOGGER.warn("Ejecting solr node " + node.getUrl() + ": " + e.getMessage());
+				}
+				node.failed();
+				last = e;
+			} finally {
+				node.inFlight.decrementAndGet();
+			}
+		}
+
+		throw new SolrServerException("No solr node could handle the request", last);
+	}
+
+	/** Send an update to every node, live or not. */
+	private NamedList<Object> update(SolrRequest<?> req, String collection) throws SolrServerException {
+		NamedList<Object> first = null;
+		Exception failure = null;
+		List<String> failed = new ArrayList<String>();
+		for (Node node : nodes) {
+			node.inFlight.incrementAndGet();
+			long start = System.nanoTime();
+			try {
+				NamedList<Object> rsp = node.client.request(req, collection);
+				node.succeeded(System.nanoTime() - start);
+				if (first == null) {
+					first = rsp;
+				}
+			} catch (SolrServerException | IOException | RuntimeException e) {
+				if (isConnectFailure(e)) {
+					if (node.alive) {
+						LOGGER.warn("Ejecting solr node " + node.getUrl() + ": " + e.getMessage());
+					}
+					node.failed();
+				}
+				failed.add(node.getUrl());
+				if (failure == null) {
+					failure = e;
+				}
+			} finally {
+				node.inFlight.decrementAndGet();
+			}
+		}
+		if (!failed.isEmpty()) {
+			throw new SolrServerException("Update failed on solr nodes " + failed + " of " + nodes.size()
+					+ ", their cores may now differ from the others", failure);
+		}
+		return first;
+	}
+
+	/** Did the request fail because the node couldn't be reached? */
+	private static boolean isConnectFailure(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof ConnectException || t instanceof ConnectTimeoutException
+					|| t instanceof NoRouteToHostException || t instanceof UnknownHostException
+					|| t instanceof NoHttpResponseException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** The nodes in the given state, lowest expected wait first. */
+	private List<Node> rank(boolean alive) {
+		List<Node> ranked = new ArrayList<Node>(nodes.size());
+		// rotate the starting point so equally good nodes share the load
+		int start = Math.abs(nextStart.getAndIncrement() % nodes.size());
+		for (int i = 0; i < nodes.size(); i++) {
+			Node n = nodes.get((start + i) % nodes.size());
+			if (n.alive == alive) {
+				ranked.add(n);
+			}
+		}
+		Collections.sort(ranked, (a, b) -> Double.compare(a.cost(), b.cost()));
+		return ranked;
+	}
+
+	/** Ping every node, ejecting or re-admitting it. */
+	private void checkHealth() {
+		for (Node node : nodes) {
+			long start = System.nanoTime();
+			try {
+				if (node.client.ping().getStatus() != 0) {
+					throw new SolrServerException("ping status not OK");
+				}
+				if (!node.alive) {
+					LOGGER.info("Re-admitting solr node " + node.getUrl());
+				}
+				node.succeeded(System.nanoTime() - start);
+			} catch (SolrServerException | IOException | RuntimeException e) {
+				if (node.alive) {
+					LOGGER.warn("Ejecting solr node " + node.getUrl() + " after failed health check: "
+							+ e.getMessage());
+				}
+				node.failed();
+			}
+		}
+	}
+
+	/** @return the nodes with their statistics */
+	public List<Node> getNodes() {
+		return nodes;
+	}
+
+	@Override
+	public void close() {
+		healthChecker.shutdownNow();
+		for (Node node : nodes) {
+			try {
+				node.client.close();
+			} catch (IOException e) {
+				LOGGER.error("Error trying close solr node " + node.getUrl() + e.getMessage());
+			}
+		}
+	}
+
+	/** @deprecated use {@link #close()} */
+	@Override
+	@Deprecated
+	public void shutdown() {
+		close();
+	}
+
+	/** A solr node and its request statistics. */
+	public static class Node {
+		private final HttpSolrClient client;
+		private volatile boolean alive = true;
+		/** Recent latency in nanos, exponentially weighted. */
+		private volatile double latency;
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final AtomicLong requests = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+
+		Node(HttpSolrClient client) {
+			this.client = client;
+		}
+
+		private void succeeded(long nanos) {
+			requests.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			latency = latency == 0 ? nanos : LATENCY_ALPHA * nanos + (1 - LATENCY_ALPHA) * latency;
+			alive = true;
+		}
+
+		private void failed() {
+			failures.incrementAndGet();
+			alive = false;
+		}
+
+		private double cost() {
+			return latency * (1 + inFlight.get());
+		}
+
+		public String getUrl() {
+			return client.getBaseURL();
+		}
+
+		public boolean isAlive() {
+			return alive;
+		}
+
+		/** @return successful requests and health checks */
+		public long getRequestCount() {
+			return requests.get();
+		}
+
+		public long getFailureCount() {
+			return failures.get();
+		}
+
+		public int getInFlight() {
+			return inFlight.get();
+		}
+
+		/** @return the mean latency of successful requests in ms */
+		public double getMeanLatency() {
+			long n = requests.get();
+			return n == 0 ? 0.0 : totalNanos.get() / 1.0e6 / n;
+		}
+
+		/** @return the recent (weighted) latency in ms */
+		public double getRecentLatency() {
+			return latency / 1.0e6;
+		}
+
+		@Override
+		public String toString() {
+			return getUrl() + (alive ? " up" : " DOWN") + " requests=" + getRequestCount() + " failures="
+					+ getFailureCount() + " mean=" + String.format("%.1f", getMeanLatency()) + "ms recent="
+					+ String.format("%.1f", getRecentLatency()) + "ms";
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package org.opensextant.matching;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+import org.opensextant.tagger.Match;
+
+/**
+ * A bounded, thread safe cache of the matches found in a text, keyed by a
+ * hash of the text's content, so a text seen before is not tagged again.
+ * <p>
+ * Each entry is weighed (e.g. by the number of matches and Places it holds)
+ * and the least recently used entries are evicted when the total weight
+ * exceeds the maximum. Matches are copied on the way in and on the way out,
+ * so callers may score and modify what they get without corrupting the cache.
+ *
+ * @param <T>
+ *            the type of match cached
+ */
+public class MatchCache<T extends Match> {
+
+	/** Default length of the longest text cached. */
+	public static final int DEFAULT_MAX_TEXT_LENGTH = 10000;
+
+	private final long maxWeight;
+	private final int maxTextLength;
+	private final Function<T, T> copier;
+	private final ToIntFunction<T> weigher;
+
+	/** Entries by content hash, least recently used first. */
+	private final LinkedHashMap<ByteBuffer, Entry<T>> entries = new LinkedHashMap<ByteBuffer, Entry<T>>(16, 0.75f,
+			true);
+	private long weight;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param maxWeight
+	 *            the maximum total weight of the cached entries
+	 * @param maxTextLength
+	 *            texts longer than this are not cached
+	 * @param copier
+	 *            makes a deep copy of a match
+	 * @param weigher
+	 *            the weight of a single match; each entry also weighs 1
+	 */
+	public MatchCache(long maxWeight, int maxTextLength, Function<T, T> copier, ToIntFunction<T> weigher) {
+		this.maxWeight = maxWeight;
+		this.maxTextLength = maxTextLength;
+		this.copier = copier;
+		this.weigher = weigher;
+	}
+
+	/** Is the text short enough to be cached? */
+	public boolean accepts(String text) {
+		return text.length() <= maxTextLength;
+	}
+
+	/**
+	 * Get copies of the matches cached for a text.
+	 *
+	 * @param text
+	 *            the text
+	 * @return the matches or null if the text isn't cached
+	 */
+	public List<T> get(String text) {
+		ByteBuffer key = hash(text);
+		Entry<T> e;
+		synchronized (this) {
+			e = entries.get(key);
+		}
+		if (e == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return copy(e.matches);
+	}
+
+	/**
+	 * Cache (copies of) the matches found in a text.
+	 *
+	 * @param text
+	 *            the text
+	 * @param matches
+	 *            all the matches found in it
+	 */
+	public void put(String text, List<T> matches) {
+		if (!accepts(text)) {
+			return;
+		}
+		Entry<T> e = new Entry<T>(copy(matches));
+		for (T m : e.matches) {
+			e.weight = e.weight + weigher.applyAsInt(m);
+		}
+		if (e.weight > maxWeight) {
+			return;
+		}
+
+		ByteBuffer key = hash(text);
+		synchronized (this) {
+			Entry<T> old = entries.put(key, e);
+			if (old != null) {
+				weight = weight - old.weight;
+			}
+			weight = weight + e.weight;
+
+			// evict least recently used entries until under the limit
+			Iterator<Entry<T>> iter = entries.values().iterator();
+			while (weight > maxWeight && iter.hasNext()) {
+				Entry<T> eldest = iter.next();
+				iter.remove();
+				weight = weight - eldest.weight;
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/** Empty the cache. The statistics are kept. */
+	public synchronized void clear() {
+		entries.clear();
+		weight = 0;
+	}
+
+	/** The number of texts currently cached. */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/** The total weight of the cached entries. */
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/** Fraction of lookups satisfied by the cache, 0.0 if none yet. */
+	public double getHitRate() {
+		long h = hits.get();
+		long total = h + misses.get();
+		if (total == 0) {
+			return 0.0;
+		}
+		return (double) h / total;
+	}
+
+	@Override
+	public String toString() {
+		return "MatchCache size=" + size() + " weight=" + getWeight() + "/" + maxWeight + " hits=" + hits.get()
+				+ " misses=" + misses.get() + " evictions=" + evictions.get() + " hitRate=" + getHitRate();
+	}
+
+	private List<T> copy(List<T> matches) {
+		List<T> copies = new ArrayList<T>(matches.size());
+		for (T m : matches) {
+			copies.add(copier.apply(m));
+		}
+		return copies;
+	}
+
+	/** A 128 bit hash of the text, so the texts themselves aren't kept. */
+	private static ByteBuffer hash(String text) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			return ByteBuffer.wrap(md.digest(text.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			// every JVM has MD5
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/** The matches of one text and their weight. */
+	private static class Entry<T> {
+		private final List<T> matches;
+		private long weight = 1;
+
+		Entry(List<T> matches) {
+			this.matches = matches;
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package org.opensextant.matching;
+
+import org.opensextant.tagger.Match;
+
+/**
+ * Receives matches one at a time as a matcher produces them, so callers can
+ * process results without holding the full list for a document.
+ *
+ * @param <T>
+ *            the type of match produced (PlaceCandidate, VocabMatch ...)
+ */
+public interface MatchHandler<T extends Match> {
+
+	/**
+	 * Called once for each match, in document order.
+	 *
+	 * @param match
+	 *            the newly created match
+	 */
+	void handle(T match);
+}
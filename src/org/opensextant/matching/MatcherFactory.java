@@ -6,18 +6,44 @@ import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
 
 import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
 import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.client.solrj.response.SolrPingResponse;
 import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.util.DateUtil;
@@ -32,30 +58,79 @@ public class MatcherFactory {
 	/** The name of environment var and system property for solr. */
 	private static String envParam = "solr.home";
 
-	/** String specifying solr home, could be file path or URL. */
+	/**
+	 * String specifying solr home, could be file path or URL, or a comma
+	 * separated list of URLs.
+	 */
 	private static String homeLocation;
 
 	/**
 	 * States of solr server and thus the MatcherFactory is solr accessed via
 	 * URL (remote) or embedded?
 	 */
-	private static boolean isRemote;
+	private static volatile boolean isRemote;
 	/** Do we have a valid solr home? */
-	private static boolean isConfigured;
+	private static volatile boolean isConfigured;
 	/** Have we started solr? */
-	private static boolean isStarted;
+	private static volatile boolean isStarted;
 
 	/** The solr servers which are the heart of the MatcherFactory. */
 	private static SolrClient solrServerGeo;
 	private static SolrClient solrServerVocab;
 
+	/** Settings of the http connection pool used when solr is remote. */
+	private static int maxConnections = 128;
+	private static int maxConnectionsPerHost = 32;
+	private static int connectionTimeout = 15000;
+	private static int socketTimeout = 60000;
+	private static long keepAlive = 60000;
+
+	/** Interval between health checks when load balancing over several nodes. */
+	private static long healthCheckInterval = 10000;
+
+	/** The pooled http client shared by the remote solr servers. */
+	private static CloseableHttpClient httpClient;
+
+	/** The container of the cores, only when running embedded. */
+	private static CoreContainer solrContainer;
+
+	/**
+	 * When embedded, tag with the in-process tagger instead of going through
+	 * the EmbeddedSolrServer.
+	 */
+	private static boolean inProcessTagging;
+
 	/**
 	 * All of the Matchers,Searchers and VocabMatchers the Factory has created
-	 * weak references so they can be GC'ed.
+	 * and which haven't been cleaned up yet. Only weakly referenced, so they
+	 * can be GC'ed; any GC'ed before cleanup() is logged as a leak.
 	 */
-	static Map<PlacenameMatcher, Boolean> matchers = new WeakHashMap<PlacenameMatcher, Boolean>();
-	static Map<PlacenameSearcher, Boolean> searchers = new WeakHashMap<PlacenameSearcher, Boolean>();
-	static Map<VocabMatcher, Boolean> vocabers = new WeakHashMap<VocabMatcher, Boolean>();
+	static final LeakTracker<PlacenameMatcher> matchers = new LeakTracker<PlacenameMatcher>("PlacenameMatcher", null);
+	static final LeakTracker<PlacenameSearcher> searchers = new LeakTracker<PlacenameSearcher>("PlacenameSearcher",
+			null);
+	static final LeakTracker<VocabMatcher> vocabers = new LeakTracker<VocabMatcher>("VocabMatcher", null);
+
+	/** Default size of each pool of matchers, searchers or vocab matchers. */
+	public static final int DEFAULT_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+
+	/** Default time a borrower waits for a pooled object, in ms. */
+	public static final long DEFAULT_BORROW_TIMEOUT = 30000;
+
+	/** The pools, created on first use. */
+	private static ObjectPool<PlacenameMatcher> matcherPool;
+	private static ObjectPool<PlacenameSearcher> searcherPool;
+	private static ObjectPool<VocabMatcher> vocabMatcherPool;
+	private static int poolSize = DEFAULT_POOL_SIZE;
+	private static volatile long borrowTimeout = DEFAULT_BORROW_TIMEOUT;
+
+	/**
+	 * The shared (thread safe) matchers, keyed by their options, and the
+	 * number of users of each one.
+	 */
+	private static Map<String, PlacenameMatcher> sharedMatchers = new HashMap<String, PlacenameMatcher>();
+	private static Map<PlacenameMatcher, Integer> sharedMatcherUsers = new HashMap<PlacenameMatcher, Integer>();
+	private static VocabMatcher sharedVocabMatcher;
+	private static int sharedVocabMatcherUsers;
 
 	/** The fields of the geo match and query response. */
 	private static String gazetteerFieldNames = "id,place_id,name,name_expanded,lat,lon,geo,feat_class,feat_code,"
@@ -87,6 +162,57 @@ public class MatcherFactory {
 	/** The matching request handler. */
 	private static final String MATCH_REQUESTHANDLER = "/tag";
 
+	/** Default number of Places held in the shared Place cache. */
+	public static final int DEFAULT_PLACE_CACHE_SIZE = 50000;
+
+	/**
+	 * Places already created from gazetteer entries, shared by all matchers
+	 * and searchers.
+	 */
+	private static volatile PlaceCache placeCache = new PlaceCache(DEFAULT_PLACE_CACHE_SIZE);
+
+	/** Name of the attribute store file in the gazetteer core directory. */
+	public static final String ATTRIBUTE_STORE_NAME = "gazetteer-attributes.bin";
+
+	/** Explicitly set attribute store file, else the default location is used. */
+	private static File attributeStoreFile;
+
+	/**
+	 * Memory mapped gazetteer attributes, when available. Matchers then only
+	 * ask solr for ids and read the Places from here.
+	 */
+	private static volatile GazetteerStore attributeStore;
+
+	/**
+	 * Places changed by gazetteer deltas which the attribute store doesn't
+	 * have yet.
+	 */
+	private static final Map<Integer, Place> changedPlaces = new ConcurrentHashMap<Integer, Place>();
+
+	/** Incremented whenever a gazetteer delta becomes visible. */
+	private static volatile long gazetteerVersion;
+
+	/**
+	 * The reverse geocoding index and the gazetteer version it was built
+	 * from, read without locking. Builds, which can take minutes, hold only
+	 * SPATIAL_INDEX_LOCK.
+	 */
+	private static volatile BuiltSpatialIndex spatialIndex;
+	private static final Object SPATIAL_INDEX_LOCK = new Object();
+	/** Incremented each time the spatial index is dropped. */
+	private static volatile long spatialIndexDrops;
+
+	/** Deltas are applied one at a time. */
+	private static final Object DELTA_LOCK = new Object();
+
+	/** Bounded pool of threads used to tag chunks of large documents. */
+	private static ExecutorService taggingExecutor;
+
+	/** Threads which make the (blocking) solr calls behind the async APIs. */
+	private static ExecutorService requestExecutor;
+	/** The number of request threads, 0 to size them to suit the mode. */
+	private static int requestThreads;
+
 	/** Log object. */
 	private static final Logger LOGGER = LoggerFactory.getLogger(MatcherFactory.class);
 
@@ -138,9 +264,10 @@ public class MatcherFactory {
 	 * Configure this MatcherFctory.
 	 * 
 	 * @param home
-	 *            solr home as a file path or URL
+	 *            solr home as a file path or URL, or a comma separated list of
+	 *            URLs of solr nodes serving the same cores
 	 */
-	public static void config(String home) {
+	public static synchronized void config(String home) {
 
 		if (isStarted) {
 			// already running
@@ -156,6 +283,7 @@ public class MatcherFactory {
 			isStarted = false;
 			solrServerGeo = null;
 			solrServerVocab = null;
+			solrContainer = null;
 		}
 
 		// get value for home
@@ -182,7 +310,7 @@ public class MatcherFactory {
 	/**
 	 * Start this MatcherFactory.
 	 */
-	public static void start() {
+	public static synchronized void start() {
 
 		if (!isConfigured) {
 			// can't start not configured
@@ -196,17 +324,27 @@ public class MatcherFactory {
 			return;
 		}
 
-		// if remote, use HttpSolrServer
+		// if remote, use HttpSolrServers sharing one connection pool
 		if (isRemote) {
-			HttpSolrClient server = new HttpSolrClient(homeLocation+"gazetteer");
-			server.setAllowCompression(true);
-			solrServerGeo = server;
-			server = new HttpSolrClient(homeLocation+"vocabulary");
-			server.setAllowCompression(true);
-			solrServerVocab = server;
+			httpClient = createHttpClient();
+			String[] nodeURLs = homeLocation.split(",");
+			if (nodeURLs.length == 1) {
+				solrServerGeo = new HttpSolrClient(homeLocation + "gazetteer", httpClient);
+				solrServerVocab = new HttpSolrClient(homeLocation + "vocabulary", httpClient);
+			} else {
+				List<String> geoURLs = new ArrayList<String>();
+				List<String> vocabURLs = new ArrayList<String>();
+				for (String url : nodeURLs) {
+					geoURLs.add(url.trim() + "gazetteer");
+					vocabURLs.add(url.trim() + "vocabulary");
+				}
+				solrServerGeo = new LoadBalancedSolrClient(geoURLs, httpClient, healthCheckInterval);
+				solrServerVocab = new LoadBalancedSolrClient(vocabURLs, httpClient, healthCheckInterval);
+				LOGGER.info("Load balancing over " + nodeURLs.length + " solr nodes");
+			}
 		} else { // must be local, use EmbeddedSolrServer
 
-			CoreContainer solrContainer = new CoreContainer(homeLocation);
+			solrContainer = new CoreContainer(homeLocation);
 
 			solrContainer.load();
 			EmbeddedSolrServer serverGeo = new EmbeddedSolrServer(solrContainer, "gazetteer");
@@ -249,11 +387,173 @@ public class MatcherFactory {
 			isStarted = false;
 		}
 
+		if (isStarted) {
+			openAttributeStore();
+		}
+
 		// do warmup here?
 		return;
 
 	}
 
+	/**
+	 * Size the http connection pool used when solr is remote. Must be called
+	 * before start().
+	 * 
+	 * @param maxTotal
+	 *            maximum number of connections
+	 * @param maxPerHost
+	 *            maximum number of connections to one solr node
+	 */
+	public static void setRemoteConnectionPool(int maxTotal, int maxPerHost) {
+		maxConnections = maxTotal;
+		maxConnectionsPerHost = maxPerHost;
+	}
+
+	/**
+	 * Set the timeouts used when solr is remote. Must be called before start().
+	 * 
+	 * @param connectTimeoutMs
+	 *            time allowed to open a connection
+	 * @param socketTimeoutMs
+	 *            time allowed waiting for data on an open connection
+	 * @param keepAliveMs
+	 *            how long an idle pooled connection is kept open
+	 */
+	public static void setRemoteTimeouts(int connectTimeoutMs, int socketTimeoutMs, long keepAliveMs) {
+		connectionTimeout = connectTimeoutMs;
+		socketTimeout = socketTimeoutMs;
+		keepAlive = keepAliveMs;
+	}
+
+	/** Create the pooled http client for the remote solr servers. */
+	private static CloseableHttpClient createHttpClient() {
+		PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager();
+		pool.setMaxTotal(maxConnections);
+		pool.setDefaultMaxPerRoute(maxConnectionsPerHost);
+		pool.setDefaultSocketConfig(SocketConfig.custom().setSoTimeout(socketTimeout).build());
+
+		// compressed responses are accepted and decoded by default
+		CloseableHttpClient client = HttpClientBuilder.create().setConnectionManager(pool)
+				.setDefaultRequestConfig(RequestConfig.custom().setConnectTimeout(connectionTimeout)
+						.setSocketTimeout(socketTimeout).build())
+				// reuse connections for keepAlive unless the server says otherwise
+				.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+					@Override
+					public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+						long duration = super.getKeepAliveDuration(response, context);
+						return duration > 0 ? Math.min(duration, keepAlive) : keepAlive;
+					}
+				}).build();
+		LOGGER.info("Remote solr connection pool: " + maxConnections + " connections (" + maxConnectionsPerHost
+				+ " per host), timeouts " + connectionTimeout + "/" + socketTimeout + " ms");
+		return client;
+	}
+
+	/**
+	 * Set how often the nodes are health checked when load balancing over
+	 * several remote solr nodes. Must be called before start().
+	 * 
+	 * @param intervalMs
+	 *            interval between checks
+	 */
+	public static void setHealthCheckInterval(long intervalMs) {
+		healthCheckInterval = intervalMs;
+	}
+
+	/**
+	 * Get the solr nodes and their request/latency statistics when load
+	 * balancing over several remote nodes.
+	 * 
+	 * @return the gazetteer then vocabulary nodes, empty if not load balancing
+	 */
+	public static List<LoadBalancedSolrClient.Node> getRemoteNodes() {
+		List<LoadBalancedSolrClient.Node> nodes = new ArrayList<LoadBalancedSolrClient.Node>();
+		if (solrServerGeo instanceof LoadBalancedSolrClient) {
+			nodes.addAll(((LoadBalancedSolrClient) solrServerGeo).getNodes());
+		}
+		if (solrServerVocab instanceof LoadBalancedSolrClient) {
+			nodes.addAll(((LoadBalancedSolrClient) solrServerVocab).getNodes());
+		}
+		return nodes;
+	}
+
+	/**
+	 * Use the given attribute store file instead of the default location.
+	 * Must be called before start(); null returns to the default.
+	 * 
+	 * @param storeFile
+	 *            the store written by the DataLoader
+	 */
+	public static void setAttributeStore(File storeFile) {
+		attributeStoreFile = storeFile;
+	}
+
+	/**
+	 * Get the attribute store file: the explicitly set one, else
+	 * gazetteer/{@value #ATTRIBUTE_STORE_NAME} under a local solr home.
+	 * 
+	 * @return the store file, or null if there is no local solr home
+	 */
+	protected static File getAttributeStoreFile() {
+		if (attributeStoreFile != null) {
+			return attributeStoreFile;
+		}
+		if (homeLocation == null || isRemote) {
+			return null;
+		}
+		File home = new File(homeLocation);
+		if (validFileURL(homeLocation)) {
+			try {
+				home = new File(new URL(homeLocation).toURI());
+			} catch (MalformedURLException | URISyntaxException e) {
+				return null;
+			}
+		}
+		return new File(new File(home, "gazetteer"), ATTRIBUTE_STORE_NAME);
+	}
+
+	/** Open the attribute store if there is one and only fetch ids when matching. */
+	private static void openAttributeStore() {
+		File storeFile = getAttributeStoreFile();
+		if (storeFile == null || !storeFile.exists()) {
+			LOGGER.debug("No gazetteer attribute store found");
+			return;
+		}
+		try {
+			GazetteerStore store = GazetteerStore.open(storeFile);
+
+			// a store which doesn't cover the index would lose places
+			long indexed = solrServerGeo.query(new SolrQuery("*:*").setRows(0)).getResults().getNumFound();
+			if (indexed != store.size()) {
+				LOGGER.warn("Not using gazetteer attribute store " + storeFile + ": it has " + store.size()
+						+ " entries but the gazetteer has " + indexed + ". Reload the gazetteer to rebuild it.");
+				store.close();
+				return;
+			}
+
+			attributeStore = store;
+			matchParams.set(CommonParams.FL, "id");
+			LOGGER.info("Using gazetteer attribute store " + storeFile + " with " + store.size() + " entries");
+		} catch (IOException | SolrServerException e) {
+			LOGGER.error("Could not open gazetteer attribute store " + storeFile, e);
+		}
+	}
+
+	private static void closeAttributeStore() {
+		dropSpatialIndex();
+		GazetteerStore store = attributeStore;
+		if (store != null) {
+			attributeStore = null;
+			matchParams.set(CommonParams.FL, gazetteerFieldNames);
+			try {
+				store.close();
+			} catch (IOException e) {
+				LOGGER.error("Error trying close gazetteer attribute store" + e.getMessage());
+			}
+		}
+	}
+
 	/** Set the value for solr home. */
 	private static boolean setHome(String home) {
 
@@ -302,6 +602,17 @@ public class MatcherFactory {
 			return true;
 		}
 
+		// several nodes, all must be remote
+		if (homeLocation.contains(",")) {
+			for (String url : homeLocation.split(",")) {
+				if (!validRemoteURL(url.trim())) {
+					return false;
+				}
+			}
+			isRemote = true;
+			return true;
+		}
+
 		if (validFileURL(homeLocation)) {
 			isRemote = false;
 			return true;
@@ -316,6 +627,31 @@ public class MatcherFactory {
 
 	}
 
+	/**
+	 * Choose the tagging engine used by matchers created from now on. If true
+	 * and solr is embedded, matchers run the tagger directly against the
+	 * gazetteer index (see {@link InProcessPlacenameMatcher}); otherwise they
+	 * send requests to the /tag handler. Ignored when solr is remote.
+	 * 
+	 * @param inProcess
+	 *            true to use the in-process tagger when possible
+	 */
+	public static void setInProcessTagging(boolean inProcess) {
+		inProcessTagging = inProcess;
+	}
+
+	public static boolean isInProcessTagging() {
+		return inProcessTagging;
+	}
+
+	/** Create a matcher using the selected tagging engine. */
+	private static PlacenameMatcher newMatcher() {
+		if (inProcessTagging && !isRemote && solrContainer != null) {
+			return new InProcessPlacenameMatcher(solrServerGeo, matchParams, solrContainer, "gazetteer");
+		}
+		return new PlacenameMatcher(solrServerGeo, matchParams);
+	}
+
 	/**
 	 * Get a PlacenameMatcher.
 	 * 
@@ -327,15 +663,15 @@ public class MatcherFactory {
 		if (isConfigured) {
 
 			if (isStarted) {
-				PlacenameMatcher tmp = new PlacenameMatcher(solrServerGeo, matchParams);
-				matchers.put(tmp, true);
+				PlacenameMatcher tmp = newMatcher();
+				matchers.track(tmp);
 				return tmp;
 			} else {
 				// configured but not started
 				start();
 				LOGGER.debug("Autostarting MatcherFactory");
-				PlacenameMatcher tmp = new PlacenameMatcher(solrServerGeo, matchParams);
-				matchers.put(tmp, true);
+				PlacenameMatcher tmp = newMatcher();
+				matchers.track(tmp);
 				return tmp;
 			}
 		} else {
@@ -346,8 +682,8 @@ public class MatcherFactory {
 			if (isConfigured) {
 				LOGGER.debug("Default config worked. Try to start");
 				start();
-				PlacenameMatcher tmp = new PlacenameMatcher(solrServerGeo, matchParams);
-				matchers.put(tmp, true);
+				PlacenameMatcher tmp = newMatcher();
+				matchers.track(tmp);
 				return tmp;
 			} else {
 				LOGGER.error("MatcherFactory not configured and default config didn't work");
@@ -356,6 +692,56 @@ public class MatcherFactory {
 		}
 	}
 
+	/**
+	 * Get a PlacenameMatcher which is shared by all callers asking for the same
+	 * options. Matchers are thread safe, so one instance can serve every
+	 * thread, e.g. every duplicate of a GATE pipeline. Each caller must call
+	 * cleanup() once when done; the matcher is released when the last caller
+	 * has done so. Callers must not change the options of a shared matcher.
+	 * 
+	 * @param tagAbbreviations
+	 *            tag placenames which are abbreviations or codes
+	 * @param chunkSize
+	 *            tag texts longer than this in parallel chunks, 0 = never
+	 * @return the shared PlacenameMatcher
+	 */
+	public static synchronized PlacenameMatcher getSharedMatcher(boolean tagAbbreviations, int chunkSize) {
+		String key = tagAbbreviations + "/" + chunkSize;
+		PlacenameMatcher shared = sharedMatchers.get(key);
+		if (shared == null) {
+			shared = getMatcher();
+			if (shared == null) {
+				return null;
+			}
+			shared.tagAbbreviations(tagAbbreviations);
+			if (chunkSize > 0) {
+				shared.setChunking(chunkSize, PlacenameMatcher.DEFAULT_CHUNK_OVERLAP);
+			}
+			sharedMatchers.put(key, shared);
+			sharedMatcherUsers.put(shared, 0);
+		}
+		sharedMatcherUsers.put(shared, sharedMatcherUsers.get(shared) + 1);
+		return shared;
+	}
+
+	/**
+	 * Get a VocabMatcher which is shared by all callers. See
+	 * {@link #getSharedMatcher(boolean, int)}.
+	 * 
+	 * @return the shared VocabMatcher
+	 */
+	public static synchronized VocabMatcher getSharedVocabMatcher() {
+		if (sharedVocabMatcher == null) {
+			sharedVocabMatcher = getVocabMatcher();
+			if (sharedVocabMatcher == null) {
+				return null;
+			}
+			sharedVocabMatcherUsers = 0;
+		}
+		sharedVocabMatcherUsers++;
+		return sharedVocabMatcher;
+	}
+
 	/**
 	 * Get a PlacenameSearcher.
 	 * 
@@ -368,14 +754,14 @@ public class MatcherFactory {
 
 			if (isStarted) {
 				PlacenameSearcher tmp = new PlacenameSearcher(solrServerGeo, searchParams);
-				searchers.put(tmp, true);
+				searchers.track(tmp);
 				return tmp;
 			} else {
 				// configured but not started
 				start();
 				LOGGER.debug("Autostarting MatcherFactory");
 				PlacenameSearcher tmp = new PlacenameSearcher(solrServerGeo, searchParams);
-				searchers.put(tmp, true);
+				searchers.track(tmp);
 				return tmp;
 			}
 		} else {
@@ -387,7 +773,7 @@ public class MatcherFactory {
 				LOGGER.debug("Default config worked. Try to start");
 				start();
 				PlacenameSearcher tmp = new PlacenameSearcher(solrServerGeo, searchParams);
-				searchers.put(tmp, true);
+				searchers.track(tmp);
 				return tmp;
 			} else {
 				LOGGER.error("MatcherFactory not configured and default config did'nt work");
@@ -410,14 +796,14 @@ public class MatcherFactory {
 
 			if (isStarted) {
 				VocabMatcher tmp = new VocabMatcher(solrServerVocab, vocabParams);
-				vocabers.put(tmp, true);
+				vocabers.track(tmp);
 				return tmp;
 			} else {
 				// configured but not started
 				start();
 				LOGGER.debug("Autostarting MatcherFactory");
 				VocabMatcher tmp = new VocabMatcher(solrServerVocab, vocabParams);
-				vocabers.put(tmp, true);
+				vocabers.track(tmp);
 				return tmp;
 			}
 		} else {
@@ -429,7 +815,7 @@ public class MatcherFactory {
 				LOGGER.debug("Default config worked. Try to start");
 				start();
 				VocabMatcher tmp = new VocabMatcher(solrServerVocab, vocabParams);
-				vocabers.put(tmp, true);
+				vocabers.track(tmp);
 				return tmp;
 			} else {
 				LOGGER.error("MatcherFactory not configured and default config did'nt work");
@@ -440,12 +826,185 @@ public class MatcherFactory {
 
 	}
 
+	/**
+	 * Get a CombinedMatcher, which tags the gazetteer and vocabulary at once.
+	 * 
+	 * @return a CombinedMatcher with its own PlacenameMatcher and VocabMatcher
+	 */
+	public static CombinedMatcher getCombinedMatcher() {
+		PlacenameMatcher placeMatcher = getMatcher();
+		if (placeMatcher == null) {
+			return null;
+		}
+		VocabMatcher vocabMatcher = getVocabMatcher();
+		if (vocabMatcher == null) {
+			placeMatcher.cleanup();
+			return null;
+		}
+		return new CombinedMatcher(placeMatcher, vocabMatcher);
+	}
+
+	/**
+	 * Borrow a PlacenameMatcher from the pool, waiting if all are in use.
+	 * Return it by calling its cleanup(). Pooled matchers are shared over
+	 * time, so borrowers must not change their options.
+	 * 
+	 * @return a PlacenameMatcher, or null if none came free in time
+	 */
+	public static PlacenameMatcher borrowMatcher() {
+		PlacenameMatcher m = getMatcherPool().borrow(borrowTimeout);
+		if (m == null) {
+			LOGGER.error("No PlacenameMatcher available: " + matcherPool);
+		}
+		return m;
+	}
+
+	/**
+	 * Borrow a PlacenameSearcher from the pool, see {@link #borrowMatcher()}.
+	 * 
+	 * @return a PlacenameSearcher, or null if none came free in time
+	 */
+	public static PlacenameSearcher borrowSearcher() {
+		PlacenameSearcher s = getSearcherPool().borrow(borrowTimeout);
+		if (s == null) {
+			LOGGER.error("No PlacenameSearcher available: " + searcherPool);
+		}
+		return s;
+	}
+
+	/**
+	 * Borrow a VocabMatcher from the pool, see {@link #borrowMatcher()}.
+	 * 
+	 * @return a VocabMatcher, or null if none came free in time
+	 */
+	public static VocabMatcher borrowVocabMatcher() {
+		VocabMatcher v = getVocabMatcherPool().borrow(borrowTimeout);
+		if (v == null) {
+			LOGGER.error("No VocabMatcher available: " + vocabMatcherPool);
+		}
+		return v;
+	}
+
+	/**
+	 * @return the pool of PlacenameMatchers, e.g. to report its metrics
+	 */
+	public static synchronized ObjectPool<PlacenameMatcher> getMatcherPool() {
+		if (matcherPool == null) {
+			matcherPool = new ObjectPool<PlacenameMatcher>("PlacenameMatcher", poolSize, MatcherFactory::getMatcher,
+					m -> m.cleanup());
+		}
+		return matcherPool;
+	}
+
+	/**
+	 * @return the pool of PlacenameSearchers, e.g. to report its metrics
+	 */
+	public static synchronized ObjectPool<PlacenameSearcher> getSearcherPool() {
+		if (searcherPool == null) {
+			searcherPool = new ObjectPool<PlacenameSearcher>("PlacenameSearcher", poolSize,
+					MatcherFactory::getSearcher, s -> s.cleanup());
+		}
+		return searcherPool;
+	}
+
+	/**
+	 * @return the pool of VocabMatchers, e.g. to report its metrics
+	 */
+	public static synchronized ObjectPool<VocabMatcher> getVocabMatcherPool() {
+		if (vocabMatcherPool == null) {
+			vocabMatcherPool = new ObjectPool<VocabMatcher>("VocabMatcher", poolSize, MatcherFactory::getVocabMatcher,
+					v -> v.cleanup());
+		}
+		return vocabMatcherPool;
+	}
+
+	/**
+	 * Set the size of each pool. Only affects pools not yet created.
+	 * 
+	 * @param size
+	 *            the most objects in each pool
+	 */
+	public static synchronized void setPoolSize(int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Pool size must be positive");
+		}
+		poolSize = size;
+	}
+
+	/**
+	 * Set how long a borrower waits for a pooled object.
+	 * 
+	 * @param timeoutMs
+	 *            the wait in ms
+	 */
+	public static void setBorrowTimeout(long timeoutMs) {
+		borrowTimeout = timeoutMs;
+	}
+
+	/**
+	 * The number of matchers, searchers and vocab matchers which were garbage
+	 * collected without cleanup() being called.
+	 * 
+	 * @return the number leaked
+	 */
+	public static long getLeakCount() {
+		return matchers.getLeakCount() + searchers.getLeakCount() + vocabers.getLeakCount();
+	}
+
+	/** Close the pools, cleaning up their idle objects. */
+	private static void closePools() {
+		List<ObjectPool<?>> pools = new ArrayList<ObjectPool<?>>();
+		synchronized (MatcherFactory.class) {
+			if (matcherPool != null) {
+				pools.add(matcherPool);
+			}
+			if (searcherPool != null) {
+				pools.add(searcherPool);
+			}
+			if (vocabMatcherPool != null) {
+				pools.add(vocabMatcherPool);
+			}
+			matcherPool = null;
+			searcherPool = null;
+			vocabMatcherPool = null;
+		}
+		// closing cleans up the idle objects, which must not hold the lock
+		for (ObjectPool<?> pool : pools) {
+			LOGGER.info("Closing " + pool);
+			pool.close();
+		}
+	}
+
+	/** Forget the shared matchers; later cleanup() calls by their users are harmless. */
+	private static synchronized void clearSharedMatchers() {
+		sharedMatchers.clear();
+		sharedMatcherUsers.clear();
+		sharedVocabMatcher = null;
+		sharedVocabMatcherUsers = 0;
+	}
+
 	/**
 	 * @param mtcher
 	 *            the matcher which is requesting the shutdown
 	 */
 	protected static void shutdown(PlacenameMatcher mtcher) {
-		matchers.remove(mtcher);
+		synchronized (MatcherFactory.class) {
+			Integer users = sharedMatcherUsers.get(mtcher);
+			if (users != null) {
+				// shared, only release when the last user is done
+				if (users > 1) {
+					sharedMatcherUsers.put(mtcher, users - 1);
+					return;
+				}
+				sharedMatcherUsers.remove(mtcher);
+				sharedMatchers.values().remove(mtcher);
+			}
+			// borrowed, go back to the pool
+			if (matcherPool != null && matcherPool.giveBack(mtcher)) {
+				return;
+			}
+		}
+		matchers.release(mtcher);
 		MatcherFactory.shutdown(false);
 	}
 
@@ -456,12 +1015,32 @@ public class MatcherFactory {
 	 *            the searcher which is request the shutdown
 	 */
 	protected static void shutdown(PlacenameSearcher srcher) {
-		searchers.remove(srcher);
+		synchronized (MatcherFactory.class) {
+			// borrowed, go back to the pool
+			if (searcherPool != null && searcherPool.giveBack(srcher)) {
+				return;
+			}
+		}
+		searchers.release(srcher);
 		MatcherFactory.shutdown(false);
 	}
 
 	protected static void shutdown(VocabMatcher vocabMatcher) {
-		vocabers.remove(vocabMatcher);
+		synchronized (MatcherFactory.class) {
+			if (vocabMatcher == sharedVocabMatcher) {
+				// shared, only release when the last user is done
+				sharedVocabMatcherUsers--;
+				if (sharedVocabMatcherUsers > 0) {
+					return;
+				}
+				sharedVocabMatcher = null;
+			}
+			// borrowed, go back to the pool
+			if (vocabMatcherPool != null && vocabMatcherPool.giveBack(vocabMatcher)) {
+				return;
+			}
+		}
+		vocabers.release(vocabMatcher);
 		MatcherFactory.shutdown(false);
 	}
 
@@ -475,6 +1054,17 @@ public class MatcherFactory {
 	public static void shutdown(boolean force) {
 
 		if (force) {
+			closePools();
+		}
+
+		if (force || !factoryInUse()) {
+			shutdownTaggingExecutor();
+			shutdownRequestExecutor();
+		}
+
+		if (force) {
+			// bound to the clients about to be closed, never hand them out again
+			clearSharedMatchers();
 			try {
 				if (solrServerGeo != null) {
 					solrServerGeo.close();
@@ -486,6 +1076,8 @@ public class MatcherFactory {
 				LOGGER.error("Error trying close MatcherFactory" + e.getMessage());
 			}
 			isStarted = false;
+			closeAttributeStore();
+			closeHttpClient();
 		} else {
 			try {
 				if (solrServerGeo != null && !factoryInUse()) {
@@ -499,7 +1091,110 @@ public class MatcherFactory {
 			} catch (IOException e) {
 				LOGGER.error("Error trying close MatcherFactory" + e.getMessage());
 			}
+			if (!isStarted) {
+				closeAttributeStore();
+				closeHttpClient();
+			}
+		}
+	}
 
+	/**
+	 * Get the executor used to tag chunks of large documents in parallel. It
+	 * has one thread per processor and a bounded queue; when the queue is
+	 * full the submitting thread tags the chunk itself.
+	 * 
+	 * @return the shared tagging executor
+	 */
+	protected static synchronized ExecutorService getTaggingExecutor() {
+		if (taggingExecutor == null) {
+			int threads = Runtime.getRuntime().availableProcessors();
+			taggingExecutor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(threads * 4), new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "opensextant-tagger-" + count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					}, new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+		return taggingExecutor;
+	}
+
+	private static synchronized void shutdownTaggingExecutor() {
+		if (taggingExecutor != null) {
+			taggingExecutor.shutdown();
+			taggingExecutor = null;
+		}
+	}
+
+	/**
+	 * Set the number of threads which make the solr calls behind the async
+	 * APIs. By default there is one per connection of the remote connection
+	 * pool, or one per processor when embedded, where the calls tag on the
+	 * thread making them. Must be called before the first async call.
+	 * 
+	 * @param threads
+	 *            the number of threads, 0 for the default
+	 */
+	public static synchronized void setRequestThreads(int threads) {
+		requestThreads = Math.max(0, threads);
+	}
+
+	/**
+	 * Get the executor which runs the solr calls behind the async APIs, so
+	 * the calling thread is free while the request is in flight. See
+	 * {@link #setRequestThreads(int)} for its size.
+	 * 
+	 * @return the shared request executor
+	 */
+	protected static synchronized ExecutorService getRequestExecutor() {
+		if (requestExecutor == null) {
+			int threads = requestThreads;
+			if (threads == 0) {
+				threads = isRemote ? maxConnections : Runtime.getRuntime().availableProcessors();
+			}
+			ThreadPoolExecutor exec = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "opensextant-request-" + count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			exec.allowCoreThreadTimeOut(true);
+			requestExecutor = exec;
+		}
+		return requestExecutor;
+	}
+
+	/**
+	 * Run a (blocking) solr call on the request executor.
+	 * 
+	 * @param call
+	 *            the call to make
+	 * @return a future completed with the result of the call
+	 */
+	protected static <T> CompletableFuture<T> async(Supplier<T> call) {
+		return CompletableFuture.supplyAsync(call, getRequestExecutor());
+	}
+
+	private static synchronized void shutdownRequestExecutor() {
+		if (requestExecutor != null) {
+			requestExecutor.shutdown();
+			requestExecutor = null;
+		}
+	}
+
+	private static void closeHttpClient() {
+		if (httpClient != null) {
+			HttpClientUtil.close(httpClient);
+			httpClient = null;
 		}
 	}
 
@@ -603,6 +1298,13 @@ public class MatcherFactory {
 		return vocabFieldNames;
 	}
 
+	/**
+	 * @return the container of the embedded cores, null if solr is remote
+	 */
+	protected static CoreContainer getSolrContainer() {
+		return solrContainer;
+	}
+
 	protected static SolrClient getSolrServerGeo() {
 		return solrServerGeo;
 	}
@@ -740,6 +1442,302 @@ public class MatcherFactory {
 		return in;
 	}
 
+	/**
+	 * Get the Place for a gazetteer entry, from the shared Place cache if it
+	 * has been seen before, otherwise by creating it and adding it to the
+	 * cache. When the attribute store is in use the entry may hold only the
+	 * id; null is returned if the store doesn't have it.
+	 * 
+	 * @param gazEntry
+	 *            a solr document describing a Place
+	 * @param version
+	 *            the gazetteer version when the request for the document was
+	 *            sent
+	 * @return the (shared, read only) Place for the entry
+	 */
+	protected static Place getPlace(SolrDocument gazEntry, long version) {
+		int id = getInteger(gazEntry, "id");
+		Place place = getCachedPlace(id, version);
+		if (place == null && gazEntry.containsKey("geo")) {
+			place = createPlace(gazEntry);
+			placeCache.put(id, place, version);
+		}
+		return place;
+	}
+
+	/**
+	 * Get a Place by gazetteer id without a solr document: from the shared
+	 * Place cache, else from the attribute store (adding it to the cache).
+	 * 
+	 * @param id
+	 *            the gazetteer id
+	 * @return the Place or null if neither has it
+	 */
+	protected static Place getCachedPlace(int id) {
+		return getCachedPlace(id, gazetteerVersion);
+	}
+
+	/** See {@link #getCachedPlace(int)}, version as for {@link #getPlace(SolrDocument, long)}. */
+	protected static Place getCachedPlace(int id, long version) {
+		PlaceCache cache = placeCache;
+		Place place = cache.get(id);
+		GazetteerStore store = attributeStore;
+		if (place == null && store != null) {
+			place = changedPlaces.get(id);
+			if (place == null) {
+				place = store.getPlace(id);
+			}
+			if (place != null) {
+				cache.put(id, place, version);
+			}
+		}
+		return place;
+	}
+
+	/**
+	 * Apply a changeset to the live gazetteer without reloading or optimizing
+	 * it. This happens in the background: the changes are sent to solr and
+	 * committed, which opens and warms a new searcher (and its tagger) while
+	 * the current one carries on serving. The changed Places are dropped from
+	 * the Place cache before anything is sent, and Places for them read from
+	 * the old searcher are refused from then on. Once the attribute store, if
+	 * in use, has been rewritten the gazetteer version is incremented, which
+	 * invalidates the matchers' result caches and the spatial index.
+	 * 
+	 * @param delta
+	 *            the changes
+	 * @return a future completed once matchers see the changes, or completed
+	 *         exceptionally if solr rejected them
+	 */
+	public static CompletableFuture<Void> applyGazetteerDelta(final GazetteerDelta delta) {
+		return async(() -> {
+			synchronized (DELTA_LOCK) {
+				try {
+					updateGazetteer(delta);
+				} catch (SolrServerException | IOException e) {
+					LOGGER.error("Could not apply gazetteer delta " + delta, e);
+					throw new CompletionException(e);
+				}
+			}
+			return null;
+		});
+	}
+
+	private static void updateGazetteer(GazetteerDelta delta) throws SolrServerException, IOException {
+		if (delta.isEmpty()) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+
+		// matchers only fetching ids need the new Places from the moment
+		// solr can return the new entries
+		Map<Integer, Place> upserts = new HashMap<Integer, Place>();
+		for (Map.Entry<Integer, SolrInputDocument> e : delta.getUpserts().entrySet()) {
+			upserts.put(e.getKey(), createPlace(e.getValue()));
+		}
+		if (attributeStore != null) {
+			changedPlaces.putAll(upserts);
+		}
+
+		// only Places read once the delta is visible may be cached again
+		long next = gazetteerVersion + 1;
+		PlaceCache cache = placeCache;
+		for (Integer id : delta.getUpserts().keySet()) {
+			cache.invalidate(id, next);
+		}
+		for (Integer id : delta.getDeletes()) {
+			cache.invalidate(id, next);
+		}
+
+		try {
+			UpdateRequest req = new UpdateRequest();
+			for (SolrInputDocument entry : delta.getUpserts().values()) {
+				addFuzzyName(entry);
+				req.add(entry);
+			}
+			for (Integer id : delta.getDeletes()) {
+				req.deleteById(id.toString());
+			}
+			req.process(solrServerGeo);
+
+			// no optimize: the new segments are merged in over time as usual
+			solrServerGeo.commit(true, true);
+
+			rewriteAttributeStore(upserts, delta.getDeletes());
+		} finally {
+			// anything built from this version on sees the new searcher and
+			// attribute store
+			gazetteerVersion = next;
+		}
+		// searches from before the previous delta are long done
+		placeCache.prune(next);
+		LOGGER.info("Applied " + delta + " in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/** Rewrite the attribute store with the changes and switch to it. */
+	private static void rewriteAttributeStore(Map<Integer, Place> upserts, Collection<Integer> deletes)
+			throws IOException {
+		GazetteerStore oldStore = attributeStore;
+		File storeFile = getAttributeStoreFile();
+		if (oldStore == null || storeFile == null) {
+			return;
+		}
+
+		Set<Integer> skip = new HashSet<Integer>(upserts.keySet());
+		skip.addAll(deletes);
+		GazetteerStore.Writer writer = new GazetteerStore.Writer(storeFile);
+		writer.addAll(oldStore, skip);
+		for (Map.Entry<Integer, Place> e : upserts.entrySet()) {
+			writer.add(e.getKey(), e.getValue());
+		}
+		writer.close();
+
+		attributeStore = GazetteerStore.open(storeFile);
+		changedPlaces.keySet().removeAll(upserts.keySet());
+		oldStore.close();
+		LOGGER.info("Rewrote gazetteer attribute store " + storeFile + " with " + writer.size() + " entries");
+	}
+
+	/**
+	 * The gazetteer version, incremented each time a delta is applied, so
+	 * anything derived from gazetteer entries can tell when it is stale.
+	 * 
+	 * @return the version
+	 */
+	public static long getGazetteerVersion() {
+		return gazetteerVersion;
+	}
+
+	/**
+	 * Get the in-memory spatial index of the gazetteer for reverse geocoding,
+	 * building it on first use and again after a gazetteer delta. It is built
+	 * from the attribute store if there is one, otherwise by reading every
+	 * gazetteer entry from solr, which holds all the Places in memory.
+	 * 
+	 * @return the index
+	 */
+	public static SpatialIndex getSpatialIndex() {
+		BuiltSpatialIndex built = spatialIndex;
+		if (built != null && built.version == gazetteerVersion) {
+			return built.index;
+		}
+		synchronized (SPATIAL_INDEX_LOCK) {
+			// the version is read before the gazetteer it describes
+			long version = gazetteerVersion;
+			built = spatialIndex;
+			if (built != null && built.version == version) {
+				return built.index;
+			}
+			long drops = spatialIndexDrops;
+			SpatialIndex index;
+			GazetteerStore store = attributeStore;
+			if (store != null) {
+				index = SpatialIndex.build(store);
+			} else {
+				PlacenameSearcher searcher = new PlacenameSearcher(solrServerGeo, searchParams);
+				index = SpatialIndex.build(searcher, "*:*");
+			}
+			// not kept if dropped (e.g. on shutdown) while building
+			if (drops == spatialIndexDrops) {
+				spatialIndex = new BuiltSpatialIndex(index, version);
+			}
+			return index;
+		}
+	}
+
+	private static void dropSpatialIndex() {
+		spatialIndexDrops++;
+		spatialIndex = null;
+	}
+
+	/** A spatial index and the gazetteer version it was built from. */
+	private static class BuiltSpatialIndex {
+		private final SpatialIndex index;
+		private final long version;
+
+		BuiltSpatialIndex(SpatialIndex index, long version) {
+			this.index = index;
+			this.version = version;
+		}
+	}
+
+	/**
+	 * @return true if Places are read from the attribute store, so a search
+	 *         only needs to fetch ids
+	 */
+	protected static boolean hasAttributeStore() {
+		return attributeStore != null;
+	}
+
+	/**
+	 * Get the shared Place cache, e.g. to report its statistics.
+	 * 
+	 * @return the Place cache
+	 */
+	public static PlaceCache getPlaceCache() {
+		return placeCache;
+	}
+
+	/**
+	 * Replace the shared Place cache with an empty one of the given size. It
+	 * still refuses the stale Places the old one did.
+	 * 
+	 * @param maxSize
+	 *            the maximum number of Places to cache, 0 to disable caching
+	 */
+	public static void setPlaceCacheSize(int maxSize) {
+		PlaceCache cache = new PlaceCache(maxSize);
+		synchronized (DELTA_LOCK) {
+			cache.copyInvalidations(placeCache);
+			placeCache = cache;
+		}
+		LOGGER.info("Place cache size set to " + maxSize);
+	}
+
+	/**
+	 * Map a gazetteer feature class code to the expression used on Place.
+	 * 
+	 * @param featClass
+	 *            the gazetteer code, e.g. "P"
+	 * @return the Place feature class, or null if unknown
+	 */
+	protected static String mapFeatureClass(String featClass) {
+		return featureCodeMap.get(featClass);
+	}
+
+	/**
+	 * Add the name_fuzzy and name_fuzzy_len fields, which fuzzy name searches
+	 * use, to a gazetteer entry about to be loaded.
+	 * 
+	 * @param entry
+	 *            a gazetteer entry
+	 */
+	protected static void addFuzzyName(SolrInputDocument entry) {
+		Object name = entry.getFieldValue("name");
+		if (name != null) {
+			String key = PlacenameSearcher.fuzzyKey(name.toString());
+			entry.setField(PlacenameSearcher.FUZZY_NAME_FIELD, key);
+			entry.setField(PlacenameSearcher.FUZZY_LENGTH_FIELD, key.length());
+		}
+	}
+
+	/**
+	 * Create a Place from a gazetteer entry about to be loaded, just as if it
+	 * had come back from solr.
+	 * 
+	 * @param row
+	 *            a gazetteer entry with lat and lon
+	 * @return the Place created from the entry
+	 */
+	protected static Place createPlace(SolrInputDocument row) {
+		SolrDocument gazEntry = new SolrDocument();
+		for (String name : row.getFieldNames()) {
+			gazEntry.setField(name, row.getFieldValue(name));
+		}
+		gazEntry.setField("geo", row.getFieldValue("lat") + "," + row.getFieldValue("lon"));
+		return createPlace(gazEntry);
+	}
+
 	/**
 	 * Create a Place object from a Solr document.
 	 * 
@@ -755,23 +1753,25 @@ public class MatcherFactory {
 		// add the expanded name
 		place.setExpandedPlaceName(getString(gazEntry, "name_expanded"));
 
+		// the coded attributes need no interning, Place shares their values
+
 		// set name type and nameTypeSystem
-		place.setNameType(internString(getString(gazEntry, "name_type")));
-		place.setNameTypeSystem(internString(getString(gazEntry, "name_type_system")));
+		place.setNameType(getString(gazEntry, "name_type"));
+		place.setNameTypeSystem(getString(gazEntry, "name_type_system"));
 
 		// set country coude using the cc (ISO2) value
-		place.setCountryCode(internString(getString(gazEntry, "cc")));
+		place.setCountryCode(getString(gazEntry, "cc"));
 
 		// Set the admin values
-		place.setAdmin1(internString(getString(gazEntry, "adm1")));
-		place.setAdmin2(internString(getString(gazEntry, "adm2")));
+		place.setAdmin1(getString(gazEntry, "adm1"));
+		place.setAdmin2(getString(gazEntry, "adm2"));
 
 		// map and set the feature class and code
-		place.setFeatureClass(internString(featureCodeMap.get(getString(gazEntry, "feat_class"))));
-		place.setFeatureCode(internString(getString(gazEntry, "feat_code")));
+		place.setFeatureClass(featureCodeMap.get(getString(gazEntry, "feat_class")));
+		place.setFeatureCode(getString(gazEntry, "feat_code"));
 
 		// set the source
-		place.setSource(internString(getString(gazEntry, "source")));
+		place.setSource(getString(gazEntry, "source"));
 
 		// set the geo
 		double[] xy = getCoordinate(gazEntry, "geo");
@@ -0,0 +1,215 @@
+package org.opensextant.matching;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A bounded, thread safe pool of matchers or searchers. Callers borrow an
+ * object, use it and return it; at most maxSize are ever out or idle at once,
+ * further borrowers wait. Borrowed objects which are dropped without being
+ * returned are detected when garbage collected and their slot is reclaimed.
+ * <p>
+ * Keeps the metrics needed to size the pool: objects active and idle, the
+ * time borrowers wait, and leaks.
+ *
+ * @param <T>
+ *            the type of object pooled
+ */
+public class ObjectPool<T> {
+
+	/**
+	 * Longest wait for a slot between looking for leaked objects, whose slots
+	 * are only reclaimed when looked for.
+	 */
+	private static final long ACQUIRE_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final String name;
+	private final int maxSize;
+	private final Supplier<T> creator;
+	private final Consumer<T> destroyer;
+
+	private final Semaphore slots;
+	private final LinkedBlockingDeque<T> idle = new LinkedBlockingDeque<T>();
+	private final LeakTracker<T> borrowed;
+	private volatile boolean closed;
+
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong borrows = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	/**
+	 * @param name
+	 *            what is pooled, for the log
+	 * @param maxSize
+	 *            the most objects the pool creates
+	 * @param creator
+	 *            creates a new object, may return null on failure
+	 * @param destroyer
+	 *            releases an object the pool no longer needs
+	 */
+	public ObjectPool(String name, int maxSize, Supplier<T> creator, Consumer<T> destroyer) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Pool size must be positive");
+		}
+		this.name = name;
+		this.maxSize = maxSize;
+		this.creator = creator;
+		this.destroyer = destroyer;
+		slots = new Semaphore(maxSize, true);
+		// a leaked object's slot can be used again
+		borrowed = new LeakTracker<T>("pooled " + name, token -> slots.release());
+	}
+
+	/**
+	 * Borrow an object, waiting for one to be returned if all are out.
+	 * 
+	 * @param timeoutMs
+	 *            how long to wait
+	 * @return an object, or null if none came free in time or one couldn't be
+	 *         created
+	 */
+	public T borrow(long timeoutMs) {
+		if (closed) {
+			throw new IllegalStateException("The " + name + " pool is closed");
+		}
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMs));
+		try {
+			borrowed.expunge();
+			long slice = Math.min(ACQUIRE_SLICE_NANOS, deadline - start);
+			while (!slots.tryAcquire(slice, TimeUnit.NANOSECONDS)) {
+				// objects leaked since free their slots
+				borrowed.expunge();
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					if (slots.tryAcquire()) {
+						break;
+					}
+					timeouts.incrementAndGet();
+					return null;
+				}
+				slice = Math.min(ACQUIRE_SLICE_NANOS, remaining);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		long wait = System.nanoTime() - start;
+		totalWaitNanos.addAndGet(wait);
+		maxWaitNanos.accumulateAndGet(wait, Math::max);
+		borrows.incrementAndGet();
+
+		T obj = idle.pollFirst();
+		if (obj == null) {
+			obj = creator.get();
+			if (obj == null) {
+				slots.release();
+				return null;
+			}
+			created.incrementAndGet();
+		}
+		borrowed.track(obj, Boolean.TRUE);
+		return obj;
+	}
+
+	/**
+	 * Return a borrowed object to the pool.
+	 * 
+	 * @param obj
+	 *            the object
+	 * @return false if it wasn't borrowed from this pool (or already returned)
+	 */
+	public boolean giveBack(T obj) {
+		if (!borrowed.release(obj)) {
+			return false;
+		}
+		if (closed) {
+			destroyer.accept(obj);
+		} else {
+			// most recently used first, so idle objects stay warm
+			idle.offerFirst(obj);
+		}
+		slots.release();
+		return true;
+	}
+
+	/** Is the object currently borrowed from this pool? */
+	public boolean isBorrowed(T obj) {
+		return borrowed.isTracked(obj);
+	}
+
+	/** Close the pool, destroying the idle objects; borrowed ones are destroyed when returned. */
+	public void close() {
+		closed = true;
+		List<T> drained = new ArrayList<T>();
+		idle.drainTo(drained);
+		for (T obj : drained) {
+			destroyer.accept(obj);
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/** The number of objects currently borrowed. */
+	public int getActiveCount() {
+		return borrowed.size();
+	}
+
+	/** The number of objects waiting in the pool. */
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	/** The number of threads waiting to borrow. */
+	public int getWaitingCount() {
+		return slots.getQueueLength();
+	}
+
+	public long getCreatedCount() {
+		return created.get();
+	}
+
+	public long getBorrowCount() {
+		return borrows.get();
+	}
+
+	/** The number of borrows which gave up waiting. */
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	/** The number of borrowed objects never returned. */
+	public long getLeakCount() {
+		return borrowed.getLeakCount();
+	}
+
+	/** Mean time a borrow waited for an object, in ms. */
+	public double getMeanBorrowWait() {
+		long n = borrows.get();
+		return n == 0 ? 0.0 : totalWaitNanos.get() / 1.0e6 / n;
+	}
+
+	/** Longest time a borrow waited for an object, in ms. */
+	public double getMaxBorrowWait() {
+		return maxWaitNanos.get() / 1.0e6;
+	}
+
+	@Override
+	public String toString() {
+		return name + " pool active=" + getActiveCount() + " idle=" + getIdleCount() + "/" + maxSize + " waiting="
+				+ getWaitingCount() + " created=" + getCreatedCount() + " borrows=" + getBorrowCount() + " timeouts="
+				+ getTimeoutCount() + " leaks=" + getLeakCount() + " meanWait="
+				+ String.format("%.2f", getMeanBorrowWait()) + "ms maxWait=" + String.format("%.2f", getMaxBorrowWait())
+				+ "ms";
+	}
+}
@@ -0,0 +1,254 @@
+package org.opensextant.matching;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opensextant.placedata.Place;
+
+/**
+ * A bounded, thread safe cache of Places keyed by gazetteer id. The cache is
+ * split into a number of independently locked segments, each of which evicts
+ * its least recently used entry when full, so concurrent matchers rarely
+ * contend on the same lock.
+ * <p>
+ * Places handed out by the cache are shared by every caller and must be
+ * treated as read only.
+ * <p>
+ * A Place is put with the gazetteer version current when it was read (see
+ * {@link MatcherFactory#getGazetteerVersion()}). Once an entry has been
+ * invalidated by a gazetteer delta, Places read before the delta's version
+ * are no longer accepted for it, so a search still running against the old
+ * gazetteer can't put back what the delta changed. That is remembered until
+ * a later delta has been published (see {@link #prune(long)}).
+ */
+public class PlaceCache {
+
+	/** Number of independently locked segments. */
+	private static final int SEGMENT_COUNT = 16;
+
+	private final Segment[] segments;
+	private final int maxSize;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param maxSize
+	 *            the maximum number of Places held, 0 disables caching
+	 */
+	public PlaceCache(int maxSize) {
+		this.maxSize = Math.max(0, maxSize);
+		int perSegment = (this.maxSize + SEGMENT_COUNT - 1) / SEGMENT_COUNT;
+		segments = new Segment[SEGMENT_COUNT];
+		for (int i = 0; i < SEGMENT_COUNT; i++) {
+			segments[i] = new Segment(perSegment);
+		}
+	}
+
+	/**
+	 * Get the cached Place for a gazetteer id.
+	 *
+	 * @param id
+	 *            the gazetteer id
+	 * @return the Place or null if not cached
+	 */
+	public Place get(int id) {
+		if (maxSize == 0) {
+			misses.incrementAndGet();
+			return null;
+		}
+		Segment seg = segmentFor(id);
+		Place p;
+		synchronized (seg) {
+			p = seg.get(id);
+		}
+		if (p == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return p;
+	}
+
+	/**
+	 * Add a Place known to be current to the cache, possibly evicting the
+	 * least recently used entry of its segment.
+	 *
+	 * @param id
+	 *            the gazetteer id
+	 * @param place
+	 *            the Place for that id
+	 */
+	public void put(int id, Place place) {
+		put(id, place, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Add a Place to the cache, unless the entry has changed since it was
+	 * read.
+	 *
+	 * @param id
+	 *            the gazetteer id
+	 * @param place
+	 *            the Place for that id
+	 * @param version
+	 *            the gazetteer version when the Place was read
+	 */
+	public void put(int id, Place place, long version) {
+		if (maxSize == 0 || place == null) {
+			return;
+		}
+		Segment seg = segmentFor(id);
+		synchronized (seg) {
+			Long changed = seg.changedAt.get(id);
+			if (changed == null || version >= changed) {
+				seg.put(id, place);
+			}
+		}
+	}
+
+	/** Remove a single entry. */
+	public void remove(int id) {
+		Segment seg = segmentFor(id);
+		synchronized (seg) {
+			seg.remove(id);
+		}
+	}
+
+	/**
+	 * Remove an entry whose gazetteer record changes in a version, and from
+	 * then on refuse Places for it read before that version.
+	 *
+	 * @param id
+	 *            the gazetteer id
+	 * @param version
+	 *            the first gazetteer version with the change
+	 */
+	public void invalidate(int id, long version) {
+		Segment seg = segmentFor(id);
+		synchronized (seg) {
+			Long changed = seg.changedAt.get(id);
+			if (changed == null || changed < version) {
+				seg.changedAt.put(id, version);
+			}
+			seg.remove(id);
+		}
+	}
+
+	/**
+	 * Forget the invalidations made before a version, once searches reading
+	 * Places older than that are no longer expected to be running.
+	 *
+	 * @param version
+	 *            the oldest gazetteer version still read from
+	 */
+	public void prune(long version) {
+		for (Segment seg : segments) {
+			synchronized (seg) {
+				seg.changedAt.values().removeIf(changed -> changed < version);
+			}
+		}
+	}
+
+	/**
+	 * Take over the invalidations of another cache, which this one replaces.
+	 *
+	 * @param other
+	 *            the cache replaced
+	 */
+	void copyInvalidations(PlaceCache other) {
+		for (Segment from : other.segments) {
+			Map<Integer, Long> changed;
+			synchronized (from) {
+				changed = new HashMap<Integer, Long>(from.changedAt);
+			}
+			for (Map.Entry<Integer, Long> e : changed.entrySet()) {
+				invalidate(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	/** Empty the cache. The statistics are kept. */
+	public void clear() {
+		for (Segment seg : segments) {
+			synchronized (seg) {
+				seg.clear();
+			}
+		}
+	}
+
+	/** The number of Places currently held. */
+	public int size() {
+		int total = 0;
+		for (Segment seg : segments) {
+			synchronized (seg) {
+				total += seg.size();
+			}
+		}
+		return total;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/** Fraction of lookups satisfied by the cache, 0.0 if none yet. */
+	public double getHitRate() {
+		long h = hits.get();
+		long total = h + misses.get();
+		if (total == 0) {
+			return 0.0;
+		}
+		return (double) h / total;
+	}
+
+	@Override
+	public String toString() {
+		return "PlaceCache size=" + size() + "/" + maxSize + " hits=" + hits.get() + " misses=" + misses.get()
+				+ " evictions=" + evictions.get() + " hitRate=" + getHitRate();
+	}
+
+	private Segment segmentFor(int id) {
+		// spread sequential ids across the segments
+		int h = id * 0x9E3779B9;
+		return segments[(h >>> 16) & (SEGMENT_COUNT - 1)];
+	}
+
+	/** An access ordered map which drops its eldest entry when full. */
+	@SuppressWarnings("serial")
+	private class Segment extends LinkedHashMap<Integer, Place> {
+
+		private final int capacity;
+		/** The version each invalidated id last changed in, until pruned. */
+		private final Map<Integer, Long> changedAt = new HashMap<Integer, Long>();
+
+		Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Place> eldest) {
+			if (size() > capacity) {
+				evictions.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	}
+}
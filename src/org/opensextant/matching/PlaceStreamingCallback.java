@@ -0,0 +1,35 @@
+package org.opensextant.matching;
+
+import org.apache.solr.client.solrj.StreamingResponseCallback;
+import org.apache.solr.common.SolrDocument;
+import org.opensextant.placedata.Place;
+
+/**
+ * Converts gazetteer documents to Places as they are read off the tag
+ * response, so the SolrDocumentList is never materialized.
+ */
+class PlaceStreamingCallback extends StreamingResponseCallback {
+
+	/** Holds the map of gazetteer id to Place being populated. */
+	private TagScratch scratch;
+	/** The gazetteer version when the request was sent. */
+	private final long version;
+
+	PlaceStreamingCallback(TagScratch scratch, long version) {
+		this.scratch = scratch;
+		this.version = version;
+	}
+
+	@Override
+	public void streamSolrDocument(SolrDocument solrDoc) {
+		Place place = MatcherFactory.getPlace(solrDoc, version);
+		if (place != null) {
+			scratch.putPlace((Integer) solrDoc.getFirstValue("id"), place);
+		}
+	}
+
+	@Override
+	public void streamDocListInfo(long numFound, long start, Float maxScore) {
+		// nothing needed, the map grows as documents arrive
+	}
+}
@@ -2,19 +2,19 @@ package org.opensextant.matching;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
-import org.apache.commons.lang.StringUtils;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrRequest;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.QueryResponse;
-import org.apache.solr.common.SolrDocument;
-import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.util.NamedList;
 import org.opensextant.placedata.Place;
@@ -22,15 +22,44 @@ import org.opensextant.placedata.PlaceCandidate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Finds candidate place names in text by tagging it against the gazetteer.
+ * <p>
+ * A PlacenameMatcher keeps no per-document state, so a single instance can be
+ * used by many threads at once (see
+ * {@link MatcherFactory#getSharedMatcher(boolean, int)}). Its options should
+ * be set before it is shared.
+ */
 public class PlacenameMatcher {
 
 	private SolrClient solrServer;
 	private ModifiableSolrParams matchParams;
 
 	private static final String APRIORI_NAME_RULE = "AprioriNameBias";
-	private SolrTaggerRequest tagRequest;
-	private Map<Integer, Place> placeIDMap = new HashMap<Integer, Place>(100);
-	private boolean tagAbbrev;
+	private volatile boolean tagAbbrev;
+
+	/**
+	 * Texts longer than chunkSize are split into chunks of about this size
+	 * which are tagged in parallel. 0 means never chunk.
+	 */
+	private volatile int chunkSize;
+	/** Number of characters shared by neighbouring chunks. */
+	private volatile int chunkOverlap = DEFAULT_CHUNK_OVERLAP;
+
+	/** Default chunk overlap, comfortably longer than any place name. */
+	public static final int DEFAULT_CHUNK_OVERLAP = 500;
+
+	/** Maximum size of the joined buffer sent by matchTexts. */
+	private static final int MAX_BATCH_CHARS = 1000000;
+
+	/** Returned by tag() when the text could not be tagged. */
+	protected static final int TAG_FAILED = -1;
+
+	/** Candidates already found in short texts, null if not caching. */
+	private volatile MatchCache<PlaceCandidate> resultCache;
+
+	/** The gazetteer version the result cache was filled from. */
+	private volatile long resultCacheVersion = MatcherFactory.getGazetteerVersion();
 
 	/** Log object. */
 	private static final Logger LOGGER = LoggerFactory.getLogger(PlacenameMatcher.class);
@@ -42,108 +71,433 @@ public class PlacenameMatcher {
 
 	public void tagAbbreviations(boolean b) {
 		tagAbbrev = b;
+		MatchCache<PlaceCandidate> cache = resultCache;
+		if (cache != null) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Remember the PlaceCandidates found in short texts, so an identical text
+	 * is answered without tagging it again. The cache is bounded by weight:
+	 * one per text, plus one per candidate and one per Place on each
+	 * candidate.
+	 * 
+	 * @param maxWeight
+	 *            the maximum weight of the cache, 0 to turn caching off
+	 */
+	public void enableResultCache(long maxWeight) {
+		if (maxWeight <= 0) {
+			resultCache = null;
+			return;
+		}
+		resultCache = new MatchCache<PlaceCandidate>(maxWeight, MatchCache.DEFAULT_MAX_TEXT_LENGTH,
+				PlaceCandidate::new, pc -> 1 + pc.getPlaceCount());
+	}
+
+	/**
+	 * @return the result cache, e.g. to report its statistics, or null if not
+	 *         caching
+	 */
+	public MatchCache<PlaceCandidate> getResultCache() {
+		return resultCache;
 	}
 
+	/** The result cache, emptied first if the gazetteer has changed since. */
+	private MatchCache<PlaceCandidate> currentResultCache() {
+		MatchCache<PlaceCandidate> cache = resultCache;
+		long version = MatcherFactory.getGazetteerVersion();
+		if (cache != null && version != resultCacheVersion) {
+			cache.clear();
+			resultCacheVersion = version;
+		}
+		return cache;
+	}
+
+	/**
+	 * Turn on chunked tagging for large texts. Texts longer than chunkSize
+	 * are split at sentence or whitespace boundaries into chunks of about
+	 * chunkSize characters, which are tagged in parallel on the
+	 * MatcherFactory's tagging executor and merged.
+	 * 
+	 * @param size
+	 *            nominal chunk size in characters, 0 to turn chunking off
+	 * @param overlap
+	 *            characters shared by neighbouring chunks, must be well
+	 *            longer than the longest place name
+	 */
+	public void setChunking(int size, int overlap) {
+		if (size > 0 && size <= 2 * overlap) {
+			throw new IllegalArgumentException("Chunk size must be more than twice the overlap");
+		}
+		chunkSize = size;
+		chunkOverlap = overlap;
+	}
+
+	/**
+	 * Tag the buffer and return all of the PlaceCandidates found.
+	 *
+	 * @param buffer
+	 *            the text to be tagged
+	 * @param docName
+	 *            name of the document, used for logging
+	 * @return the list of PlaceCandidates found
+	 */
 	public List<PlaceCandidate> matchText(String buffer, String docName) {
 
-		List<PlaceCandidate> candidates = new ArrayList<PlaceCandidate>();
-		// Setup request to tag
-		tagRequest = new SolrTaggerRequest(matchParams, SolrRequest.METHOD.POST);
-		tagRequest.setInput(buffer);
+		final List<PlaceCandidate> candidates = new ArrayList<PlaceCandidate>();
+		matchText(buffer, docName, new MatchHandler<PlaceCandidate>() {
+			@Override
+			public void handle(PlaceCandidate pc) {
+				candidates.add(pc);
+			}
+		});
+		return candidates;
+	}
 
-		QueryResponse response = null;
+	/**
+	 * Tag the buffer, streaming the gazetteer entries of the response straight
+	 * into Places and handing each PlaceCandidate to the handler as soon as it
+	 * is assembled. Neither the SolrDocumentList nor the list of candidates is
+	 * ever held in memory.
+	 *
+	 * @param buffer
+	 *            the text to be tagged
+	 * @param docName
+	 *            name of the document, used for logging
+	 * @param handler
+	 *            receives each PlaceCandidate in document order
+	 * @return the number of PlaceCandidates passed to the handler
+	 */
+	public int matchText(String buffer, String docName, MatchHandler<PlaceCandidate> handler) {
 
-		try {
-			response = tagRequest.process(solrServer);
-		} catch (SolrServerException | IOException e) {
-			LOGGER.error("Got exception when attempting to match " + docName, e);
-			return candidates;
+		MatchCache<PlaceCandidate> cache = currentResultCache();
+		if (cache == null || !cache.accepts(buffer)) {
+			return Math.max(matchUncached(buffer, docName, handler), 0);
 		}
 
-		// Process Solr Response
-		SolrDocumentList docList = response.getResults();
+		List<PlaceCandidate> candidates = cache.get(buffer);
+		if (candidates == null) {
+			candidates = tagToList(buffer, docName);
+			if (candidates == null) {
+				return 0;
+			}
+			cache.put(buffer, candidates);
+		}
+		for (PlaceCandidate pc : candidates) {
+			handler.handle(pc);
+		}
+		return candidates.size();
+	}
+
+	/** Tag the buffer, in chunks if it is large, ignoring the result cache. */
+	private int matchUncached(String buffer, String docName, MatchHandler<PlaceCandidate> handler) {
 
-		// TODO convert this section to use a StreamingResponseCallback
+		if (chunkSize > 0 && buffer.length() > chunkSize) {
+			List<PlaceCandidate> candidates = matchChunks(buffer, docName);
+			for (PlaceCandidate pc : candidates) {
+				handler.handle(pc);
+			}
+			return candidates.size();
+		}
 
-		// clear out the place id map
-		placeIDMap.clear();
+		return tag(buffer, docName, handler);
+	}
 
-		// populate the place id map from the solr documents
-		for (SolrDocument solrDoc : docList) {
-			Integer id = (Integer) solrDoc.getFirstValue("id");
-			Place place = MatcherFactory.createPlace(solrDoc);
-			placeIDMap.put(id, place);
+	/** Tag the buffer ignoring the result cache, null if it failed. */
+	private List<PlaceCandidate> tagToList(String buffer, String docName) {
+		final List<PlaceCandidate> candidates = new ArrayList<PlaceCandidate>();
+		int n = matchUncached(buffer, docName, new MatchHandler<PlaceCandidate>() {
+			@Override
+			public void handle(PlaceCandidate pc) {
+				candidates.add(pc);
+			}
+		});
+		if (n == TAG_FAILED) {
+			return null;
 		}
+		return candidates;
+	}
 
-		@SuppressWarnings("unchecked")
-		List<NamedList<?>> tags = (List<NamedList<?>>) response.getResponse().get("tags");
+	/**
+	 * Tag a buffer with a single request.
+	 * 
+	 * @return the number of PlaceCandidates passed to the handler, or
+	 *         TAG_FAILED
+	 */
+	protected int tag(String buffer, String docName, MatchHandler<PlaceCandidate> handler) {
 
-		PlaceCandidate pc = null;
-		int x1 = -1, x2 = -1;
-		Set<String> seenPlaces = new HashSet<String>();
-		double nameBias = 0.0;
-		String matchText = null;
+		// the places in this response by gazetteer id, and the places of each
+		// tag, are kept in this thread's scratch
+		TagScratch scratch = TagScratch.get();
+		try {
+			// Setup request to tag, converting gazetteer docs as they stream in
+			SolrTaggerRequest tagRequest = new SolrTaggerRequest(matchParams, SolrRequest.METHOD.POST);
+			tagRequest.setInput(buffer);
+			tagRequest.setStreamingCallback(new PlaceStreamingCallback(scratch, MatcherFactory.getGazetteerVersion()));
 
-		for (NamedList<?> tag : tags) {
-			// clear out seen places set
-			seenPlaces.clear();
+			QueryResponse response = null;
+
+			try {
+				response = tagRequest.process(solrServer);
+			} catch (SolrServerException | IOException e) {
+				LOGGER.error("Got exception when attempting to match " + docName, e);
+				return TAG_FAILED;
+			}
 
-			// get the start, end and list of matching place IDs
-			x1 = (Integer) tag.get("startOffset");
-			x2 = (Integer) tag.get("endOffset");
 			@SuppressWarnings("unchecked")
-			List<Integer> placeIDList = (List<Integer>) tag.get("ids");
-
-			// create and populate the PlaceCandidate
-			pc = new PlaceCandidate();
-			pc.setStart(x1);
-			pc.setEnd(x2);
-			matchText = buffer.substring(x1, x2);
-			pc.setPlaceName(matchText);
-			nameBias = 0.0;
-
-			boolean isValid = true;
-			boolean isLower = StringUtils.isAllLowerCase(matchText);
-
-			for (Integer placeID : placeIDList) {
-				// get the Place that corresponds to this ID
-				Place place = placeIDMap.get(placeID);
-
-				// don't tag if place name is an abbrev and matchtext is all
-				// lower case
-				if (!tagAbbrev && place.isAbbreviation() && isLower) {
-					isValid = false;
-					LOGGER.debug("Not tagging abbreviation:" + matchText);
-					break;
-				}
+			List<NamedList<?>> tags = (List<NamedList<?>>) response.getResponse().get("tags");
+
+			int count = 0;
+			for (NamedList<?> tag : tags) {
+				// get the start, end and list of matching place IDs
+				int x1 = (Integer) tag.get("startOffset");
+				int x2 = (Integer) tag.get("endOffset");
+				@SuppressWarnings("unchecked")
+				List<Integer> placeIDList = (List<Integer>) tag.get("ids");
 
-				// don't add places already on candidate
-				if (!seenPlaces.contains(place.getPlaceID())) {
-					pc.addPlaceWithScore(place, place.getIdBias());
-					seenPlaces.add(place.getPlaceID());
-					// get max name bias
-					double nBias = place.getNameBias();
-					if (nBias > nameBias) {
-						nameBias = nBias;
+				// get the Places that correspond to these IDs
+				scratch.clearPlaces();
+				for (int i = 0; i < placeIDList.size(); i++) {
+					Place place = scratch.getPlace(placeIDList.get(i));
+					if (place != null) {
+						scratch.addPlace(place);
 					}
 				}
-			} // end placeID loop
 
-			if (!isValid || !pc.hasPlaces()) {
-				continue;
+				PlaceCandidate pc = createCandidate(buffer, x1, x2, scratch);
+				if (pc != null) {
+					handler.handle(pc);
+					count++;
+				}
 			}
 
-			// if the max name bias seen >0; add apriori evidence
-			if (nameBias > 0.0) {
-				pc.addRuleAndConfidence(APRIORI_NAME_RULE, nameBias);
+			return count;
+		} finally {
+			scratch.release();
+		}
+	}
+
+	/**
+	 * Create the PlaceCandidate for a single tag.
+	 * 
+	 * @param buffer
+	 *            the text being tagged
+	 * @param start
+	 *            start offset of the tag
+	 * @param end
+	 *            end offset of the tag
+	 * @param scratch
+	 *            holds the gazetteer Places matching the tag
+	 * @return the PlaceCandidate, or null if the tag should not be reported
+	 */
+	PlaceCandidate createCandidate(String buffer, int start, int end, TagScratch scratch) {
+
+		Place[] places = scratch.getPlaces();
+		int placeCount = scratch.getPlaceCount();
+		if (placeCount == 0) {
+			return null;
+		}
+
+		// don't tag if place name is an abbrev and matchtext is all lower
+		// case
+		if (!tagAbbrev && isAllLowerCase(buffer, start, end)) {
+			for (int i = 0; i < placeCount; i++) {
+				if (places[i].isAbbreviation()) {
+					LOGGER.debug("Not tagging abbreviation:{}", buffer.subSequence(start, end));
+					return null;
+				}
 			}
-			candidates.add(pc);
 		}
 
-		// clear out the place id map
-		placeIDMap.clear();
-		return candidates;
+		// create and populate the PlaceCandidate
+		PlaceCandidate pc = new PlaceCandidate();
+		pc.setStart(start);
+		pc.setEnd(end);
+		pc.setPlaceName(buffer.substring(start, end));
+		double nameBias = 0.0;
+
+		scratch.clearPlaceIDs();
+		for (int i = 0; i < placeCount; i++) {
+			Place place = places[i];
+			// don't add places already on candidate
+			if (scratch.addPlaceID(place.getPlaceID())) {
+				pc.addPlaceWithScore(place, place.getIdBias());
+				// get max name bias
+				double nBias = place.getNameBias();
+				if (nBias > nameBias) {
+					nameBias = nBias;
+				}
+			}
+		} // end place loop
+
+		// if the max name bias seen >0; add apriori evidence
+		if (nameBias > 0.0) {
+			pc.addRuleAndConfidence(APRIORI_NAME_RULE, nameBias);
+		}
+		return pc;
+	}
+
+	/** StringUtils.isAllLowerCase on a region of the buffer. */
+	private static boolean isAllLowerCase(String buffer, int start, int end) {
+		if (start >= end) {
+			return false;
+		}
+		for (int i = start; i < end; i++) {
+			if (!Character.isLowerCase(buffer.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** The parameters this matcher was created with. */
+	protected ModifiableSolrParams getMatchParams() {
+		return matchParams;
+	}
+
+	/**
+	 * Split a large buffer into overlapping chunks, tag them in parallel and
+	 * merge the results.
+	 */
+	private List<PlaceCandidate> matchChunks(final String buffer, final String docName) {
+
+		List<int[]> chunks = TextChunker.split(buffer, chunkSize, chunkOverlap);
+		ExecutorService executor = MatcherFactory.getTaggingExecutor();
+
+		List<Future<List<PlaceCandidate>>> futures = new ArrayList<Future<List<PlaceCandidate>>>(chunks.size());
+		for (int i = 0; i < chunks.size(); i++) {
+			final int[] chunk = chunks.get(i);
+			final String chunkName = docName + "#" + i;
+			futures.add(executor.submit(new Callable<List<PlaceCandidate>>() {
+				@Override
+				public List<PlaceCandidate> call() {
+					final List<PlaceCandidate> cands = new ArrayList<PlaceCandidate>();
+					tag(buffer.substring(chunk[0], chunk[1]), chunkName, new MatchHandler<PlaceCandidate>() {
+						@Override
+						public void handle(PlaceCandidate pc) {
+							cands.add(pc);
+						}
+					});
+					return cands;
+				}
+			}));
+		}
+
+		List<List<PlaceCandidate>> chunkCands = new ArrayList<List<PlaceCandidate>>(chunks.size());
+		for (Future<List<PlaceCandidate>> f : futures) {
+			try {
+				chunkCands.add(f.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				LOGGER.error("Interrupted when matching chunks of " + docName, e);
+				chunkCands.add(new ArrayList<PlaceCandidate>());
+			} catch (ExecutionException e) {
+				LOGGER.error("Got exception when attempting to match chunk of " + docName, e.getCause());
+				chunkCands.add(new ArrayList<PlaceCandidate>());
+			}
+		}
+
+		LOGGER.debug("Tagged " + docName + " as " + chunks.size() + " chunks");
+		return TextChunker.merge(chunks, chunkCands);
+	}
+
+	/**
+	 * Tag the buffer without waiting for the response. The request is made
+	 * on the MatcherFactory's request executor.
+	 *
+	 * @param buffer
+	 *            the text to be tagged
+	 * @param docName
+	 *            name of the document, used for logging
+	 * @return a future completed with the PlaceCandidates found
+	 */
+	public CompletableFuture<List<PlaceCandidate>> matchTextAsync(final String buffer, final String docName) {
+		return MatcherFactory.async(() -> matchText(buffer, docName));
+	}
+
+	/**
+	 * Tag many short texts without waiting for the responses, see
+	 * {@link #matchTexts(List, String)}.
+	 *
+	 * @param buffers
+	 *            the texts to be tagged
+	 * @param batchName
+	 *            name of the batch, used for logging
+	 * @return a future completed with one list of PlaceCandidates per text
+	 */
+	public CompletableFuture<List<List<PlaceCandidate>>> matchTextsAsync(final List<String> buffers,
+			final String batchName) {
+		return MatcherFactory.async(() -> matchTexts(buffers, batchName));
+	}
+
+	/**
+	 * Tag many short texts (tweets, titles, table cells ...) using as few
+	 * requests as possible. The texts are joined into batches, each batch is
+	 * tagged with a single request and the PlaceCandidates are split back out
+	 * with offsets relative to the text they were found in. The rare text
+	 * whose match spans into its neighbour is re-tagged on its own.
+	 *
+	 * @param buffers
+	 *            the texts to be tagged
+	 * @param batchName
+	 *            name of the batch, used for logging
+	 * @return one list of PlaceCandidates per text, in the same order
+	 */
+	public List<List<PlaceCandidate>> matchTexts(List<String> buffers, String batchName) {
+
+		List<List<PlaceCandidate>> results = new ArrayList<List<PlaceCandidate>>(buffers.size());
+		for (int i = 0; i < buffers.size(); i++) {
+			results.add(new ArrayList<PlaceCandidate>());
+		}
+
+		// answer what we can from the result cache, tag the rest
+		MatchCache<PlaceCandidate> cache = currentResultCache();
+		List<Integer> todo = new ArrayList<Integer>(buffers.size());
+		List<String> todoBuffers = new ArrayList<String>(buffers.size());
+		for (int i = 0; i < buffers.size(); i++) {
+			List<PlaceCandidate> cached = null;
+			if (cache != null && cache.accepts(buffers.get(i))) {
+				cached = cache.get(buffers.get(i));
+			}
+			if (cached != null) {
+				results.set(i, cached);
+			} else {
+				todo.add(i);
+				todoBuffers.add(buffers.get(i));
+			}
+		}
+
+		List<List<PlaceCandidate>> todoResults = new ArrayList<List<PlaceCandidate>>(todo.size());
+		for (int i = 0; i < todo.size(); i++) {
+			todoResults.add(new ArrayList<PlaceCandidate>());
+		}
+		Set<Integer> crossed = new TreeSet<Integer>();
+		for (TextBatch batch : TextBatch.pack(todoBuffers, MAX_BATCH_CHARS)) {
+			List<PlaceCandidate> batchCands = tagToList(batch.getBuffer(), batchName);
+			if (batchCands == null) {
+				// retry each text of a failed batch by itself
+				batch.addIndices(crossed);
+				continue;
+			}
+			batch.split(batchCands, todoResults, crossed);
+		}
+
+		for (int i = 0; i < todo.size(); i++) {
+			int idx = todo.get(i);
+			if (crossed.contains(i)) {
+				// tag any text which had a match spanning a text boundary by
+				// itself
+				results.set(idx, matchText(todoBuffers.get(i), batchName + "[" + idx + "]"));
+			} else {
+				results.set(idx, todoResults.get(i));
+				if (cache != null) {
+					cache.put(todoBuffers.get(i), todoResults.get(i));
+				}
+			}
+		}
 
+		return results;
 	}
 
 	public void cleanup() {
@@ -3,14 +3,31 @@ package org.opensextant.matching;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
+import org.opensextant.phonetic.PhoneticUtils;
 import org.opensextant.placedata.Geocoord;
 import org.opensextant.placedata.Place;
 import org.opensextant.placedata.ScoredPlace;
@@ -22,6 +39,32 @@ public class PlacenameSearcher {
 	private SolrClient solrServer;
 	private ModifiableSolrParams baseSearchParams = new ModifiableSolrParams();
 
+	/** Default number of results fetched per request when streaming. */
+	public static final int DEFAULT_PAGE_SIZE = 1000;
+
+	/** Most results returned if the search params don't say. */
+	private static final int MAX_ROWS = 100000;
+
+	/** The field holding the trigrams of each name's fuzzy key. */
+	public static final String FUZZY_NAME_FIELD = "name_fuzzy";
+
+	/** The field holding the length of each name's fuzzy key. */
+	public static final String FUZZY_LENGTH_FIELD = "name_fuzzy_len";
+
+	/** Least similarity of a fuzzy name match, as the old name~0.80 query. */
+	public static final double FUZZY_MIN_SIMILARITY = 0.80;
+
+	/** Candidates fetched for re-ranking by a fuzzy name search. */
+	private static final int FUZZY_CANDIDATES = 200;
+
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+	private int pageSize = DEFAULT_PAGE_SIZE;
+
+	/** Whether the gazetteer has fuzzy keys, as of gazetteer version. */
+	private volatile boolean fuzzyKeysLoaded;
+	private volatile long fuzzyKeysCheckedAt = -1;
+
 	/** Log object. */
 	private static final Logger LOGGER = LoggerFactory.getLogger(PlacenameSearcher.class);
 
@@ -33,6 +76,7 @@ public class PlacenameSearcher {
 	private List<Place> search(ModifiableSolrParams prms) {
 
 		List<Place> places = new ArrayList<Place>();
+		long version = MatcherFactory.getGazetteerVersion();
 
 		QueryResponse response = null;
 		try {
@@ -45,8 +89,10 @@ public class PlacenameSearcher {
 		if (response != null) {
 			SolrDocumentList docList = response.getResults();
 			for (SolrDocument d : docList) {
-				Place p = MatcherFactory.createPlace(d);
-				places.add(p);
+				Place p = MatcherFactory.getPlace(d, version);
+				if (p != null) {
+					places.add(p);
+				}
 			}
 		}
 		return places;
@@ -73,6 +119,58 @@ public class PlacenameSearcher {
 
 	}
 
+	/**
+	 * Stream the raw gazetteer documents matching a query, see
+	 * {@link #searchIterator(String)}.
+	 */
+	public Iterator<SolrDocument> dumpDocsIterator(String q) {
+		return new CursorIterator<SolrDocument>(q, d -> d);
+	}
+
+	/**
+	 * Set the number of results fetched per request by the streaming
+	 * searches.
+	 * 
+	 * @param size
+	 *            results per page
+	 */
+	public void setPageSize(int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Page size must be positive");
+		}
+		pageSize = size;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Iterate over all the Places matching a query, however many there are,
+	 * fetching them a page at a time with a solr cursor so only one page is
+	 * held in memory. Suitable for exporting a whole country or feature
+	 * class. The Places are not added to the shared Place cache.
+	 * <p>
+	 * If a page can't be fetched the iterator throws an
+	 * IllegalStateException rather than silently ending early.
+	 * 
+	 * @param query
+	 *            a solr query, e.g. "cc:US"
+	 * @return the Places, in gazetteer id order
+	 */
+	public Iterator<Place> searchIterator(String query) {
+		return new CursorIterator<Place>(query, MatcherFactory::createPlace);
+	}
+
+	/**
+	 * All the Places matching a query as a sequential stream, see
+	 * {@link #searchIterator(String)}.
+	 */
+	public Stream<Place> searchStream(String query) {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(searchIterator(query), Spliterator.ORDERED
+				| Spliterator.NONNULL), false);
+	}
+
 	public List<Place> searchByQueryString(String query) {
 		ModifiableSolrParams srchParams = new ModifiableSolrParams(baseSearchParams);
 		srchParams.set("q", query);
@@ -80,13 +178,12 @@ public class PlacenameSearcher {
 	}
 
 	public List<Place> searchByPlaceName(String placeName, boolean fuzzy) {
-		ModifiableSolrParams srchParams = new ModifiableSolrParams(baseSearchParams);
-		String query = "name:";
 		if (fuzzy) {
-			query = query + placeName + "~0.80";
-		} else {
-			query = query + "\"" + placeName + "\"";
+			return searchByFuzzyName(placeName, FUZZY_MIN_SIMILARITY, baseSearchParams.getInt(CommonParams.ROWS,
+					MAX_ROWS));
 		}
+		ModifiableSolrParams srchParams = new ModifiableSolrParams(baseSearchParams);
+		String query = "name:\"" + placeName + "\"";
 
 		srchParams.set("defType", "edismax");
 
@@ -94,6 +191,203 @@ public class PlacenameSearcher {
 		return search(srchParams);
 	}
 
+	/**
+	 * Find the Places with names like the given one. Candidates are the
+	 * entries sharing the most character trigrams with the name (the
+	 * name_fuzzy field, normalized with {@link #fuzzyKey(String)}); they are
+	 * then re-ranked by edit distance similarity. This avoids enumerating
+	 * every term within an edit distance, as a Lucene fuzzy query does.
+	 * Only names whose length and number of shared trigrams allow the least
+	 * similarity are candidates, so longer names containing the given one
+	 * don't crowd out its close variants.
+	 * <p>
+	 * A gazetteer loaded without the fuzzy keys is searched with the old
+	 * name:X~0.80 fuzzy query instead, and a warning logged.
+	 * 
+	 * @param placeName
+	 *            the name, perhaps misspelled
+	 * @param minSimilarity
+	 *            the least similarity kept, 0 to 1 (1 being identical)
+	 * @param maxResults
+	 *            the most Places to return
+	 * @return the Places found, most similar first
+	 */
+	public List<Place> searchByFuzzyName(String placeName, double minSimilarity, int maxResults) {
+		String key = fuzzyKey(placeName);
+		if (key.trim().isEmpty()) {
+			return new ArrayList<Place>();
+		}
+
+		ModifiableSolrParams srchParams = new ModifiableSolrParams(baseSearchParams);
+		srchParams.set("defType", "edismax");
+		if (hasFuzzyKeys()) {
+			// the name's trigrams, the entries sharing the rarest and most of
+			// them first
+			StringBuilder query = new StringBuilder();
+			Set<String> grams = new LinkedHashSet<String>();
+			for (int i = 0; i + 3 <= key.length(); i++) {
+				grams.add(key.substring(i, i + 3));
+			}
+			for (String g : grams) {
+				query.append('"').append(g.replace("\\", "\\\\").replace("\"", "\\\"")).append("\" ");
+			}
+			srchParams.set(CommonParams.Q, query.toString());
+			srchParams.set("qf", FUZZY_NAME_FIELD);
+
+			// a name at least minSimilarity like the key is no more than
+			// key / minSimilarity long, and each of its edits changes at most
+			// three of the key's trigrams
+			int minLength = (int) Math.ceil(key.length() * minSimilarity - 1e-9);
+			int maxLength = (int) Math.floor(key.length() / Math.max(minSimilarity, 1e-3) + 1e-9);
+			int maxEdits = (int) Math.floor((1 - minSimilarity) * maxLength + 1e-9);
+			srchParams.set("mm", Math.max(1, grams.size() - 3 * maxEdits));
+			srchParams.add(CommonParams.FQ, FUZZY_LENGTH_FIELD + ":[" + minLength + " TO " + maxLength + "]");
+		} else {
+			srchParams.set(CommonParams.Q, "name:" + placeName + "~0.80");
+		}
+		srchParams.set(CommonParams.ROWS, Math.max(FUZZY_CANDIDATES, maxResults));
+		// only what the re-rank needs, Places are made for the matches kept
+		srchParams.set(CommonParams.FL, "id,name");
+
+		long version = MatcherFactory.getGazetteerVersion();
+		SolrDocumentList candidates;
+		try {
+			candidates = solrServer.query(srchParams).getResults();
+		} catch (SolrServerException | IOException e) {
+			LOGGER.error("Got exception when processing query.", e);
+			return new ArrayList<Place>();
+		}
+
+		List<FuzzyMatch> matches = new ArrayList<FuzzyMatch>();
+		for (SolrDocument d : candidates) {
+			Object name = d.getFirstValue("name");
+			if (name != null) {
+				double sim = similarity(key, fuzzyKey(name.toString()));
+				if (sim >= minSimilarity) {
+					matches.add(new FuzzyMatch(MatcherFactory.getInteger(d, "id"), sim));
+				}
+			}
+		}
+		// most similar first
+		Collections.sort(matches);
+		if (matches.size() > maxResults) {
+			matches = matches.subList(0, maxResults);
+		}
+		return getPlaces(matches, version);
+	}
+
+	/**
+	 * The Places of fuzzy name matches, in order: from the Place cache or the
+	 * attribute store if there, the rest fetched from solr by id.
+	 */
+	private List<Place> getPlaces(List<FuzzyMatch> matches, long version) {
+		Map<Integer, Place> found = new HashMap<Integer, Place>();
+		StringBuilder missing = new StringBuilder();
+		int missingCount = 0;
+		for (FuzzyMatch m : matches) {
+			Place p = MatcherFactory.getCachedPlace(m.id, version);
+			if (p != null) {
+				found.put(m.id, p);
+			} else {
+				missing.append(missingCount == 0 ? "" : ",").append(m.id);
+				missingCount++;
+			}
+		}
+
+		if (missingCount > 0) {
+			ModifiableSolrParams prms = new ModifiableSolrParams(baseSearchParams);
+			prms.set(CommonParams.Q, "{!terms f=id}" + missing);
+			prms.set(CommonParams.ROWS, missingCount);
+			try {
+				for (SolrDocument d : solrServer.query(prms).getResults()) {
+					Place p = MatcherFactory.getPlace(d, version);
+					if (p != null) {
+						found.put(MatcherFactory.getInteger(d, "id"), p);
+					}
+				}
+			} catch (SolrServerException | IOException e) {
+				LOGGER.error("Got exception when processing query.", e);
+			}
+		}
+
+		List<Place> places = new ArrayList<Place>(matches.size());
+		for (FuzzyMatch m : matches) {
+			Place p = found.get(m.id);
+			if (p != null) {
+				places.add(p);
+			}
+		}
+		return places;
+	}
+
+	/**
+	 * Whether the gazetteer was loaded with fuzzy keys, checked again after
+	 * each gazetteer change.
+	 */
+	private boolean hasFuzzyKeys() {
+		long version = MatcherFactory.getGazetteerVersion();
+		if (fuzzyKeysCheckedAt == version) {
+			return fuzzyKeysLoaded;
+		}
+		ModifiableSolrParams prms = new ModifiableSolrParams();
+		prms.set(CommonParams.Q, FUZZY_LENGTH_FIELD + ":[* TO *]");
+		prms.set(CommonParams.ROWS, 0);
+		boolean loaded;
+		try {
+			loaded = solrServer.query(prms).getResults().getNumFound() > 0;
+		} catch (SolrServerException | IOException | RuntimeException e) {
+			// e.g. a schema without the field
+			LOGGER.debug("Could not check for fuzzy keys", e);
+			loaded = false;
+		}
+		if (!loaded) {
+			LOGGER.warn("The gazetteer has no " + FUZZY_NAME_FIELD
+					+ " keys (it was loaded before they were added), using the slower name~0.80 query for fuzzy "
+					+ "searches. Reload the gazetteer to fix.");
+		}
+		fuzzyKeysLoaded = loaded;
+		fuzzyKeysCheckedAt = version;
+		return loaded;
+	}
+
+	/**
+	 * The form of a name indexed in the name_fuzzy field: the name without
+	 * punctuation, diacritics or case, padded with a space each end so the
+	 * trigrams mark where words start and end.
+	 * 
+	 * @param name
+	 *            a place name
+	 * @return the fuzzy key
+	 */
+	public static String fuzzyKey(String name) {
+		String norm = PhoneticUtils.removeCase(PhoneticUtils.removeDiacritics(PhoneticUtils.removePunctuation(name)));
+		return " " + WHITESPACE.matcher(norm.trim()).replaceAll(" ") + " ";
+	}
+
+	/** Edit distance similarity, 1 - distance / length of the longer. */
+	private static double similarity(String a, String b) {
+		int longest = Math.max(a.length(), b.length());
+		if (longest == 0) {
+			return 1.0;
+		}
+		int[] prev = new int[b.length() + 1];
+		int[] cur = new int[b.length() + 1];
+		for (int j = 0; j <= b.length(); j++) {
+			prev[j] = j;
+		}
+		for (int i = 1; i <= a.length(); i++) {
+			cur[0] = i;
+			for (int j = 1; j <= b.length(); j++) {
+				int sub = prev[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+				cur[j] = Math.min(sub, Math.min(prev[j], cur[j - 1]) + 1);
+			}
+			int[] tmp = prev;
+			prev = cur;
+			cur = tmp;
+		}
+		return 1.0 - (double) prev[b.length()] / longest;
+	}
+
 	/** Distance in kilometers. */
 	public List<ScoredPlace> searchByCircle(Geocoord center, double distance) {
 		return searchByCircle(center.getLatitude(), center.getLongitude(), distance);
@@ -101,12 +395,41 @@ public class PlacenameSearcher {
 
 	/** Distance in kilometers. */
 	public List<ScoredPlace> searchByCircle(double lat, double lon, double distance) {
+		return searchNearest(lat, lon, distance, baseSearchParams.getInt(CommonParams.ROWS, MAX_ROWS));
+	}
+
+	/**
+	 * Find the nearest Places to a point. Solr sorts by distance and returns
+	 * only the k nearest, scored with their distance in kilometers.
+	 * 
+	 * @param center
+	 *            the point
+	 * @param distance
+	 *            the search radius in kilometers
+	 * @param k
+	 *            the most Places to return
+	 * @return up to k Places, nearest first
+	 */
+	public List<ScoredPlace> searchNearest(Geocoord center, double distance, int k) {
+		return searchNearest(center.getLatitude(), center.getLongitude(), distance, k);
+	}
+
+	/** See {@link #searchNearest(Geocoord, double, int)}. */
+	public List<ScoredPlace> searchNearest(double lat, double lon, double distance, int k) {
 		ModifiableSolrParams srchParams = new ModifiableSolrParams(baseSearchParams);
-		String query = "{!geofilt pt=" + lat + "," + lon + " sfield=geo" + " d=" + distance + "}";
+		// score each match by its distance from the center
+		String query = "{!geofilt pt=" + lat + "," + lon + " sfield=geo" + " d=" + distance
+				+ " score=kilometers filter=true}";
 
-		srchParams.set("q", query);
+		srchParams.set(CommonParams.Q, query);
+		srchParams.set(CommonParams.SORT, "score " + SolrQuery.ORDER.asc);
+		srchParams.set(CommonParams.ROWS, k);
+		if (MatcherFactory.hasAttributeStore()) {
+			srchParams.set(CommonParams.FL, "id,score");
+		}
 
 		List<ScoredPlace> places = new ArrayList<ScoredPlace>();
+		long version = MatcherFactory.getGazetteerVersion();
 
 		QueryResponse response = null;
 		try {
@@ -119,18 +442,178 @@ public class PlacenameSearcher {
 		if (response != null) {
 			SolrDocumentList docList = response.getResults();
 			for (SolrDocument d : docList) {
-				Place p = MatcherFactory.createPlace(d);
-				double dist = p.getGeocoord().distance(lat, lon);
-				places.add(new ScoredPlace(p, dist));
+				Place p = MatcherFactory.getPlace(d, version);
+				if (p != null) {
+					places.add(new ScoredPlace(p, ((Number) d.getFieldValue("score")).doubleValue()));
+				}
 			}
 		}
 
-		// sort by distance (ascending)
-		Collections.sort(places);
-		Collections.reverse(places);
-
 		return places;
+	}
+
+	/**
+	 * Find the Places inside a bounding box, e.g. a map viewport. A box whose
+	 * west edge is east of its east edge crosses the dateline.
+	 * 
+	 * @param south
+	 *            the southern latitude
+	 * @param west
+	 *            the western longitude
+	 * @param north
+	 *            the northern latitude
+	 * @param east
+	 *            the eastern longitude
+	 * @param maxResults
+	 *            the most Places to return
+	 * @return the Places found
+	 */
+	public List<Place> searchByBoundingBox(double south, double west, double north, double east, int maxResults) {
+		String shape = "ENVELOPE(" + west + ", " + east + ", " + north + ", " + south + ")";
+		return searchByShape(shape, maxResults);
+	}
+
+	/**
+	 * Find the Places inside a polygon.
+	 * 
+	 * @param vertices
+	 *            the polygon's vertices in order; it is closed if the last
+	 *            isn't the same as the first
+	 * @param maxResults
+	 *            the most Places to return
+	 * @return the Places found
+	 */
+	public List<Place> searchByPolygon(List<Geocoord> vertices, int maxResults) {
+		if (vertices.size() < 3) {
+			throw new IllegalArgumentException("A polygon needs at least three vertices");
+		}
+		// WKT lists x (longitude) before y (latitude)
+		StringBuilder shape = new StringBuilder("POLYGON((");
+		for (Geocoord v : vertices) {
+			shape.append(v.getLongitude()).append(' ').append(v.getLatitude()).append(", ");
+		}
+		Geocoord first = vertices.get(0);
+		Geocoord last = vertices.get(vertices.size() - 1);
+		if (!first.getLatitude().equals(last.getLatitude()) || !first.getLongitude().equals(last.getLongitude())) {
+			shape.append(first.getLongitude()).append(' ').append(first.getLatitude());
+		} else {
+			shape.setLength(shape.length() - 2);
+		}
+		shape.append("))");
+		return searchByShape(shape.toString(), maxResults);
+	}
 
+	private List<Place> searchByShape(String shape, int maxResults) {
+		ModifiableSolrParams srchParams = new ModifiableSolrParams(baseSearchParams);
+		srchParams.set(CommonParams.Q, "*:*");
+		srchParams.set(CommonParams.FQ, "{!field f=geo}Intersects(" + shape + ")");
+		srchParams.set(CommonParams.ROWS, maxResults);
+		if (MatcherFactory.hasAttributeStore()) {
+			srchParams.set(CommonParams.FL, "id");
+		}
+		return search(srchParams);
+	}
+
+	/**
+	 * Search without waiting for the response, see
+	 * {@link #searchByQueryString(String)}. The request is made on the
+	 * MatcherFactory's request executor.
+	 */
+	public CompletableFuture<List<Place>> searchByQueryStringAsync(final String query) {
+		return MatcherFactory.async(() -> searchByQueryString(query));
+	}
+
+	/** Search without waiting for the response, see {@link #searchByPlaceName(String, boolean)}. */
+	public CompletableFuture<List<Place>> searchByPlaceNameAsync(final String placeName, final boolean fuzzy) {
+		return MatcherFactory.async(() -> searchByPlaceName(placeName, fuzzy));
+	}
+
+	/** Search without waiting for the response, see {@link #searchByCircle(double, double, double)}. */
+	public CompletableFuture<List<ScoredPlace>> searchByCircleAsync(final double lat, final double lon,
+			final double distance) {
+		return MatcherFactory.async(() -> searchByCircle(lat, lon, distance));
+	}
+
+	/** Search without waiting for the response, see {@link #searchNearest(double, double, double, int)}. */
+	public CompletableFuture<List<ScoredPlace>> searchNearestAsync(final double lat, final double lon,
+			final double distance, final int k) {
+		return MatcherFactory.async(() -> searchNearest(lat, lon, distance, k));
+	}
+
+	/** A gazetteer id and its name's similarity to the name searched for. */
+	private static class FuzzyMatch implements Comparable<FuzzyMatch> {
+		private final int id;
+		private final double similarity;
+
+		FuzzyMatch(int id, double similarity) {
+			this.id = id;
+			this.similarity = similarity;
+		}
+
+		/** Most similar first. */
+		@Override
+		public int compareTo(FuzzyMatch other) {
+			return Double.compare(other.similarity, similarity);
+		}
+	}
+
+	/**
+	 * Pages through the results of a query with cursorMark, converting each
+	 * document as it is handed out.
+	 */
+	private class CursorIterator<T> implements Iterator<T> {
+
+		private final ModifiableSolrParams params;
+		private final Function<SolrDocument, T> converter;
+		private String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+		private Iterator<SolrDocument> page = Collections.<SolrDocument> emptyIterator();
+		private boolean done;
+
+		CursorIterator(String query, Function<SolrDocument, T> converter) {
+			this.converter = converter;
+			params = new ModifiableSolrParams(baseSearchParams);
+			params.set(CommonParams.Q, query);
+			params.set(CommonParams.ROWS, pageSize);
+			// a cursor needs a total order, so sort on the unique key
+			params.set(CommonParams.SORT, "id " + SolrQuery.ORDER.asc);
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (!page.hasNext() && !done) {
+				fetchPage();
+			}
+			return page.hasNext();
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return converter.apply(page.next());
+		}
+
+		private void fetchPage() {
+			params.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+			QueryResponse response;
+			try {
+				response = solrServer.query(params);
+			} catch (SolrServerException | IOException e) {
+				LOGGER.error("Got exception when processing query.", e);
+				done = true;
+				throw new IllegalStateException("Could not fetch the next page of results", e);
+			}
+			SolrDocumentList docList = response.getResults();
+			page = docList.iterator();
+
+			// the cursor stops moving at the end of the results
+			String next = response.getNextCursorMark();
+			if (next == null || next.equals(cursorMark) || docList.size() < pageSize) {
+				done = true;
+			}
+			cursorMark = next;
+		}
 	}
 
 	/**
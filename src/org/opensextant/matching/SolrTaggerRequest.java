@@ -30,6 +30,8 @@ import java.util.Collection;
 import java.util.Collections;
 
 import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.StreamingResponseCallback;
+import org.apache.solr.client.solrj.impl.StreamingBinaryResponseParser;
 import org.apache.solr.client.solrj.request.QueryRequest;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.ContentStream;
@@ -64,6 +66,18 @@ public class SolrTaggerRequest extends QueryRequest {
 		this.input = input;
 	}
 
+	/**
+	 * Stream the documents of the response to the given callback instead of
+	 * collecting them into a SolrDocumentList.
+	 *
+	 * @param callback
+	 *            the callback to receive each document
+	 */
+	public void setStreamingCallback(StreamingResponseCallback callback) {
+		setStreamingResponseCallback(callback);
+		setResponseParser(new StreamingBinaryResponseParser(callback));
+	}
+
 	@Override
 	public Collection<ContentStream> getContentStreams() {
 		ContentStreamBase.StringStream stream = new ContentStreamBase.StringStream(input);
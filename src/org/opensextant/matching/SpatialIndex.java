@@ -0,0 +1,321 @@
+package org.opensextant.matching;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntFunction;
+
+import org.opensextant.placedata.Geocoord;
+import org.opensextant.placedata.Place;
+import org.opensextant.placedata.ScoredPlace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-memory index of the gazetteer's points for reverse geocoding: finding
+ * the named places nearest to a coordinate without a solr query.
+ * <p>
+ * The points are bucketed into a fixed grid of {@value #CELL_DEGREES} degree
+ * cells, stored as flat arrays sorted by cell and then latitude. A lookup scans
+ * the latitude band of the cells covering a small radius around the
+ * coordinate, doubling the radius until enough places are found, so only the
+ * points near the coordinate are ever looked at.
+ */
+public class SpatialIndex {
+
+	/** Size of a grid cell in degrees. */
+	public static final double CELL_DEGREES = 0.2;
+
+	private static final int LAT_CELLS = (int) Math.ceil(180 / CELL_DEGREES);
+	private static final int LON_CELLS = (int) Math.ceil(360 / CELL_DEGREES);
+
+	/**
+	 * Kilometers per degree of latitude, a little under the true 111.2 so the
+	 * area scanned always covers the radius.
+	 */
+	private static final double KM_PER_DEGREE = 111.0;
+
+	/** The first radius searched, in km. */
+	private static final double START_RADIUS = 2.0;
+
+	/** Index into the point arrays of the first point of each cell. */
+	private final int[] cellStart;
+	private final int[] ids;
+	private final float[] lats;
+	private final float[] lons;
+
+	/** Gets the Place for a gazetteer id. */
+	private final IntFunction<Place> places;
+
+	/** Log object. */
+	private static final Logger LOGGER = LoggerFactory.getLogger(SpatialIndex.class);
+
+	private SpatialIndex(int[] ids, double[] lats, double[] lons, int size, IntFunction<Place> places) {
+		this.places = places;
+
+		// count the points in each cell, then lay the cells out in order
+		int[] cells = new int[size];
+		cellStart = new int[LAT_CELLS * LON_CELLS + 1];
+		for (int i = 0; i < size; i++) {
+			cells[i] = cell(latCell(lats[i]), lonCell(lons[i]));
+			cellStart[cells[i] + 1]++;
+		}
+		for (int c = 0; c < LAT_CELLS * LON_CELLS; c++) {
+			cellStart[c + 1] = cellStart[c + 1] + cellStart[c];
+		}
+		int[] order = new int[size];
+		int[] fill = Arrays.copyOf(cellStart, cellStart.length - 1);
+		for (int i = 0; i < size; i++) {
+			order[fill[cells[i]]++] = i;
+		}
+
+		// within each cell sort by latitude, so a lookup can skip to the
+		// points in its latitude band
+		long[] keys = new long[0];
+		for (int c = 0; c < LAT_CELLS * LON_CELLS; c++) {
+			int from = cellStart[c];
+			int n = cellStart[c + 1] - from;
+			if (n < 2) {
+				continue;
+			}
+			if (keys.length < n) {
+				keys = new long[Math.max(n, keys.length * 2)];
+			}
+			for (int j = 0; j < n; j++) {
+				int i = order[from + j];
+				keys[j] = ((long) Float.floatToIntBits((float) (lats[i] + 90)) << 32) | i;
+			}
+			Arrays.sort(keys, 0, n);
+			for (int j = 0; j < n; j++) {
+				order[from + j] = (int) keys[j];
+			}
+		}
+
+		this.ids = new int[size];
+		this.lats = new float[size];
+		this.lons = new float[size];
+		for (int at = 0; at < size; at++) {
+			int i = order[at];
+			this.ids[at] = ids[i];
+			this.lats[at] = (float) lats[i];
+			this.lons[at] = (float) lons[i];
+		}
+	}
+
+	/**
+	 * Build the index from an attribute store, which serves as the snapshot
+	 * of the gazetteer points. Places are read through the shared Place cache.
+	 * 
+	 * @param store
+	 *            the gazetteer attribute store
+	 * @return the index
+	 */
+	public static SpatialIndex build(final GazetteerStore store) {
+		long start = System.currentTimeMillis();
+		int size = store.size();
+		int[] ids = new int[size];
+		double[] lats = new double[size];
+		double[] lons = new double[size];
+		for (int row = 0; row < size; row++) {
+			ids[row] = store.idAt(row);
+			lats[row] = store.latitudeAt(row);
+			lons[row] = store.longitudeAt(row);
+		}
+		SpatialIndex index = new SpatialIndex(ids, lats, lons, size, id -> {
+			Place p = MatcherFactory.getCachedPlace(id);
+			return p != null ? p : store.getPlace(id);
+		});
+		LOGGER.info("Built spatial index of " + size + " points from the attribute store in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		return index;
+	}
+
+	/**
+	 * Build the index from the gazetteer core, streaming every entry matching
+	 * the query. The Places are kept by the index.
+	 * 
+	 * @param searcher
+	 *            a searcher on the gazetteer
+	 * @param query
+	 *            the entries to index, e.g. "*:*"
+	 * @return the index
+	 */
+	public static SpatialIndex build(PlacenameSearcher searcher, String query) {
+		long start = System.currentTimeMillis();
+		int size = 0;
+		int[] ids = new int[1024];
+		double[] lats = new double[1024];
+		double[] lons = new double[1024];
+		List<Place> kept = new ArrayList<Place>();
+		Iterator<Place> iter = searcher.searchIterator(query);
+		while (iter.hasNext()) {
+			Place p = iter.next();
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+				lats = Arrays.copyOf(lats, size * 2);
+				lons = Arrays.copyOf(lons, size * 2);
+			}
+			// the index keeps its own ids, the positions of its Places
+			ids[size] = size;
+			lats[size] = p.getLatitude();
+			lons[size] = p.getLongitude();
+			kept.add(p);
+			size++;
+		}
+		final Place[] placeArray = kept.toArray(new Place[size]);
+		SpatialIndex index = new SpatialIndex(ids, lats, lons, size, i -> placeArray[i]);
+		LOGGER.info("Built spatial index of " + size + " points from solr in " + (System.currentTimeMillis() - start)
+				+ " ms");
+		return index;
+	}
+
+	/** The number of points indexed. */
+	public int size() {
+		return ids.length;
+	}
+
+	/**
+	 * Find the places nearest to a coordinate. Names of the same place (the
+	 * same place ID) are only returned once.
+	 * 
+	 * @param coord
+	 *            the coordinate
+	 * @param n
+	 *            the most places to return
+	 * @param maxDistance
+	 *            the furthest to look, in km
+	 * @return up to n places, nearest first, scored with their distance in km
+	 */
+	public List<ScoredPlace> nearest(Geocoord coord, int n, double maxDistance) {
+		return nearest(coord.getLatitude(), coord.getLongitude(), n, maxDistance);
+	}
+
+	/** See {@link #nearest(Geocoord, int, double)}. */
+	public List<ScoredPlace> nearest(double lat, double lon, int n, double maxDistance) {
+		double radius = Math.min(START_RADIUS, maxDistance);
+		while (true) {
+			List<ScoredPlace> found = within(lat, lon, radius, n);
+			// everything within the radius was looked at, so these are the nearest
+			if (found.size() >= n || radius >= maxDistance) {
+				return found;
+			}
+			radius = Math.min(radius * 2, maxDistance);
+		}
+	}
+
+	/**
+	 * Find the nearest places to each of a document's coordinates. Repeated
+	 * coordinates are only looked up once.
+	 * 
+	 * @param coords
+	 *            the coordinates
+	 * @param n
+	 *            the most places to return for each
+	 * @param maxDistance
+	 *            the furthest to look, in km
+	 * @return a list of places per coordinate, in the same order
+	 */
+	public List<List<ScoredPlace>> nearest(List<Geocoord> coords, int n, double maxDistance) {
+		List<List<ScoredPlace>> results = new ArrayList<List<ScoredPlace>>(coords.size());
+		Map<String, List<ScoredPlace>> seen = new HashMap<String, List<ScoredPlace>>();
+		for (Geocoord coord : coords) {
+			String key = coord.getLatitude() + "," + coord.getLongitude();
+			List<ScoredPlace> found = seen.get(key);
+			if (found == null) {
+				found = nearest(coord, n, maxDistance);
+				seen.put(key, found);
+			}
+			results.add(found);
+		}
+		return results;
+	}
+
+	/** The n nearest places within a radius. */
+	private List<ScoredPlace> within(double lat, double lon, double radius, int n) {
+		// the points within the radius as (distance, position) packed into
+		// longs; a non-negative float's bits sort like the float
+		int count = 0;
+		long[] hits = new long[64];
+
+		double latSpan = radius / KM_PER_DEGREE;
+		int latLo = latCell(Math.max(-90, lat - latSpan));
+		int latHi = latCell(Math.min(90, lat + latSpan));
+		// the longitude span widens towards the poles
+		double cosLat = Math.cos(Math.toRadians(Math.min(90, Math.abs(lat) + latSpan)));
+		int lonCellSpan = LON_CELLS;
+		if (cosLat > 1e-6) {
+			lonCellSpan = (int) Math.ceil(radius / (KM_PER_DEGREE * cosLat) / CELL_DEGREES);
+		}
+		int lonCenter = lonCell(lon);
+		int lonLo = lonCenter - lonCellSpan;
+		int lonHi = lonCenter + lonCellSpan;
+		if (lonHi - lonLo + 1 >= LON_CELLS) {
+			lonLo = 0;
+			lonHi = LON_CELLS - 1;
+		}
+
+		float minLat = (float) (lat - latSpan);
+		float maxLat = (float) (lat + latSpan);
+		for (int latC = latLo; latC <= latHi; latC++) {
+			for (int lonC = lonLo; lonC <= lonHi; lonC++) {
+				// wrap around the dateline
+				int c = cell(latC, Math.floorMod(lonC, LON_CELLS));
+				int end = cellStart[c + 1];
+				for (int i = firstAtOrAbove(cellStart[c], end, minLat); i < end && lats[i] <= maxLat; i++) {
+					double d = Geocoord.distance(lat, lon, lats[i], lons[i]);
+					if (d > radius) {
+						continue;
+					}
+					if (count == hits.length) {
+						hits = Arrays.copyOf(hits, count * 2);
+					}
+					hits[count++] = ((long) Float.floatToIntBits((float) d) << 32) | i;
+				}
+			}
+		}
+		Arrays.sort(hits, 0, count);
+
+		List<ScoredPlace> found = new ArrayList<ScoredPlace>(Math.min(n, count));
+		Set<String> placeIDs = new HashSet<String>();
+		for (int h = 0; h < count && found.size() < n; h++) {
+			int i = (int) hits[h];
+			Place p = places.apply(ids[i]);
+			if (p != null && placeIDs.add(p.getPlaceID())) {
+				found.add(new ScoredPlace(p, Geocoord.distance(lat, lon, lats[i], lons[i])));
+			}
+		}
+		return found;
+	}
+
+	/** The first point of a cell at or north of a latitude. */
+	private int firstAtOrAbove(int from, int to, float lat) {
+		int lo = from;
+		int hi = to;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (lats[mid] < lat) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private static int latCell(double lat) {
+		return Math.min(LAT_CELLS - 1, Math.max(0, (int) ((lat + 90) / CELL_DEGREES)));
+	}
+
+	private static int lonCell(double lon) {
+		return Math.floorMod((int) Math.floor((lon + 180) / CELL_DEGREES), LON_CELLS);
+	}
+
+	private static int cell(int latCell, int lonCell) {
+		return latCell * LON_CELLS + lonCell;
+	}
+}
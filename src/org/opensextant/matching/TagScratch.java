@@ -0,0 +1,193 @@
+package org.opensextant.matching;
+
+import java.util.Arrays;
+
+import org.opensextant.placedata.Place;
+
+/**
+ * Reusable per-thread working storage for turning tags into PlaceCandidates,
+ * so that assembling candidates creates no garbage beyond the candidates
+ * themselves: an int keyed map of gazetteer id to Place, a set of place IDs
+ * already added to the current candidate, and a buffer for the Places of the
+ * current tag. The map and set use open addressing and remember the slots
+ * they used so clearing costs only what was put in.
+ */
+class TagScratch {
+
+	private static final ThreadLocal<TagScratch> SCRATCH = new ThreadLocal<TagScratch>() {
+		@Override
+		protected TagScratch initialValue() {
+			return new TagScratch();
+		}
+	};
+
+	/** Gazetteer id to Place map. */
+	private int[] mapKeys = new int[256];
+	private Place[] mapValues = new Place[256];
+	private int[] mapUsed = new int[256];
+	private int mapSize;
+
+	/** Set of place IDs, compared by equals. */
+	private String[] setSlots = new String[64];
+	private int[] setUsed = new int[64];
+	private int setSize;
+
+	/** The Places of the current tag. */
+	private Place[] places = new Place[64];
+	private int placeCount;
+
+	/** Set while a tag() call on this thread is using this scratch. */
+	private boolean inUse;
+
+	private TagScratch() {
+	}
+
+	/**
+	 * Get this thread's scratch. If it is already in use (a handler tagging
+	 * another text) a new one is returned instead. Must be released.
+	 *
+	 * @return an empty scratch
+	 */
+	static TagScratch get() {
+		TagScratch s = SCRATCH.get();
+		if (s.inUse) {
+			s = new TagScratch();
+		}
+		s.inUse = true;
+		return s;
+	}
+
+	/** Done with the scratch; drops the references to Places it holds. */
+	void release() {
+		clearMap();
+		clearPlaces();
+		clearPlaceIDs();
+		inUse = false;
+	}
+
+	// ---- the id to Place map ----
+
+	Place getPlace(int id) {
+		int mask = mapKeys.length - 1;
+		for (int i = mix(id) & mask;; i = (i + 1) & mask) {
+			Place p = mapValues[i];
+			if (p == null) {
+				return null;
+			}
+			if (mapKeys[i] == id) {
+				return p;
+			}
+		}
+	}
+
+	void putPlace(int id, Place place) {
+		if ((mapSize + 1) * 2 > mapKeys.length) {
+			growMap();
+		}
+		int mask = mapKeys.length - 1;
+		for (int i = mix(id) & mask;; i = (i + 1) & mask) {
+			if (mapValues[i] == null) {
+				mapKeys[i] = id;
+				mapValues[i] = place;
+				mapUsed[mapSize++] = i;
+				return;
+			}
+			if (mapKeys[i] == id) {
+				mapValues[i] = place;
+				return;
+			}
+		}
+	}
+
+	private void clearMap() {
+		for (int i = 0; i < mapSize; i++) {
+			mapValues[mapUsed[i]] = null;
+		}
+		mapSize = 0;
+	}
+
+	private void growMap() {
+		int[] oldKeys = mapKeys;
+		Place[] oldValues = mapValues;
+		int[] oldUsed = mapUsed;
+		int oldSize = mapSize;
+		mapKeys = new int[oldKeys.length * 2];
+		mapValues = new Place[oldKeys.length * 2];
+		mapUsed = new int[oldKeys.length * 2];
+		mapSize = 0;
+		for (int i = 0; i < oldSize; i++) {
+			putPlace(oldKeys[oldUsed[i]], oldValues[oldUsed[i]]);
+		}
+	}
+
+	// ---- the set of place IDs ----
+
+	/**
+	 * Add a place ID to the set.
+	 *
+	 * @return true if it wasn't already there
+	 */
+	boolean addPlaceID(String placeID) {
+		if ((setSize + 1) * 2 > setSlots.length) {
+			growSet();
+		}
+		int mask = setSlots.length - 1;
+		for (int i = mix(placeID.hashCode()) & mask;; i = (i + 1) & mask) {
+			String s = setSlots[i];
+			if (s == null) {
+				setSlots[i] = placeID;
+				setUsed[setSize++] = i;
+				return true;
+			}
+			if (s.equals(placeID)) {
+				return false;
+			}
+		}
+	}
+
+	void clearPlaceIDs() {
+		for (int i = 0; i < setSize; i++) {
+			setSlots[setUsed[i]] = null;
+		}
+		setSize = 0;
+	}
+
+	private void growSet() {
+		String[] oldSlots = setSlots;
+		int[] oldUsed = setUsed;
+		int oldSize = setSize;
+		setSlots = new String[oldSlots.length * 2];
+		setUsed = new int[oldSlots.length * 2];
+		setSize = 0;
+		for (int i = 0; i < oldSize; i++) {
+			addPlaceID(oldSlots[oldUsed[i]]);
+		}
+	}
+
+	// ---- the Places of the current tag ----
+
+	void addPlace(Place place) {
+		if (placeCount == places.length) {
+			places = Arrays.copyOf(places, placeCount * 2);
+		}
+		places[placeCount++] = place;
+	}
+
+	Place[] getPlaces() {
+		return places;
+	}
+
+	int getPlaceCount() {
+		return placeCount;
+	}
+
+	void clearPlaces() {
+		Arrays.fill(places, 0, placeCount, null);
+		placeCount = 0;
+	}
+
+	private static int mix(int h) {
+		h = h * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
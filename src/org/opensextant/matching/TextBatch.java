@@ -0,0 +1,115 @@
+package org.opensextant.matching;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.opensextant.tagger.Match;
+
+/**
+ * A group of short texts joined into a single buffer so they can be tagged
+ * with one request. Keeps the offset of each text in the joined buffer so the
+ * matches can be split back out per text.
+ */
+class TextBatch {
+
+	/** Placed between texts so tokens from neighbouring texts don't join. */
+	static final String SEPARATOR = "\n\n";
+
+	/** Index of the first text of this batch in the caller's list. */
+	private int firstIndex;
+	/** Start and end offsets of each text within the joined buffer. */
+	private int[] starts;
+	private int[] ends;
+	private String buffer;
+
+	private TextBatch(int firstIndex, List<String> texts) {
+		this.firstIndex = firstIndex;
+		starts = new int[texts.size()];
+		ends = new int[texts.size()];
+		StringBuilder buff = new StringBuilder();
+		for (int i = 0; i < texts.size(); i++) {
+			if (i > 0) {
+				buff.append(SEPARATOR);
+			}
+			starts[i] = buff.length();
+			buff.append(texts.get(i));
+			ends[i] = buff.length();
+		}
+		buffer = buff.toString();
+	}
+
+	/**
+	 * Pack a list of texts into batches of at most maxChars characters. A
+	 * single text longer than maxChars gets a batch of its own.
+	 */
+	static List<TextBatch> pack(List<String> texts, int maxChars) {
+		List<TextBatch> batches = new ArrayList<TextBatch>();
+		int first = 0;
+		int size = 0;
+		for (int i = 0; i < texts.size(); i++) {
+			int len = texts.get(i).length() + SEPARATOR.length();
+			if (i > first && size + len > maxChars) {
+				batches.add(new TextBatch(first, texts.subList(first, i)));
+				first = i;
+				size = 0;
+			}
+			size = size + len;
+		}
+		if (first < texts.size()) {
+			batches.add(new TextBatch(first, texts.subList(first, texts.size())));
+		}
+		return batches;
+	}
+
+	String getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Assign each match to the text it was found in, shifting its offsets to
+	 * be relative to that text. Matches which span the boundary between two
+	 * texts can't be assigned; the indices of the texts involved are added to
+	 * crossed so the caller can tag them individually.
+	 *
+	 * @param matches
+	 *            the matches found in the joined buffer
+	 * @param results
+	 *            the per text match lists, indexed as the caller's list
+	 * @param crossed
+	 *            collects indices of texts which must be re-tagged
+	 */
+	<T extends Match> void split(List<T> matches, List<List<T>> results, Set<Integer> crossed) {
+		for (T m : matches) {
+			int idx = textAt((int) m.getStart());
+			if (m.getEnd() > ends[idx]) {
+				int last = textAt((int) m.getEnd() - 1);
+				for (int i = idx; i <= last; i++) {
+					crossed.add(firstIndex + i);
+				}
+				continue;
+			}
+			m.setStart(m.getStart() - starts[idx]);
+			m.setEnd(m.getEnd() - starts[idx]);
+			results.get(firstIndex + idx).add(m);
+		}
+	}
+
+	/** Add the caller's indices of all the texts in this batch to the set. */
+	void addIndices(Set<Integer> indices) {
+		for (int i = 0; i < starts.length; i++) {
+			indices.add(firstIndex + i);
+		}
+	}
+
+	/** Find the index of the text containing the given buffer offset. */
+	private int textAt(int offset) {
+		int idx = Arrays.binarySearch(starts, offset);
+		if (idx < 0) {
+			// insertion point - 1 is the text starting before this offset
+			idx = -idx - 2;
+		}
+		return Math.max(idx, 0);
+	}
+}
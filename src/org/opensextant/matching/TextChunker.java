@@ -0,0 +1,145 @@
+package org.opensextant.matching;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.opensextant.tagger.Match;
+
+/**
+ * Splits a large text into overlapping chunks which can be tagged
+ * independently, and merges the matches found in each chunk back into a
+ * single list for the whole text.
+ * <p>
+ * Chunks end at a sentence boundary if one is near the nominal chunk size,
+ * otherwise at whitespace. Each chunk starts overlap characters before the
+ * previous one ended so that a name cut by a chunk boundary is seen whole by
+ * at least one chunk. When merging, each chunk owns the matches which start
+ * before the middle of its overlap with the next chunk; any matches which
+ * still overlap are resolved with the same LONGEST_DOMINANT_RIGHT rule the
+ * tagger uses.
+ */
+class TextChunker {
+
+	/** How far back from the nominal end to look for a sentence boundary. */
+	private static final int SENTENCE_SEARCH_FRACTION = 4;
+
+	private TextChunker() {
+	}
+
+	/**
+	 * Compute the chunk boundaries for a text.
+	 *
+	 * @param text
+	 *            the text to split
+	 * @param chunkSize
+	 *            the nominal size of each chunk
+	 * @param overlap
+	 *            number of characters shared by neighbouring chunks
+	 * @return a list of {start, end} offset pairs, in order
+	 */
+	static List<int[]> split(String text, int chunkSize, int overlap) {
+		List<int[]> chunks = new ArrayList<int[]>();
+		int len = text.length();
+		int start = 0;
+
+		while (start < len) {
+			int end = Math.min(start + chunkSize, len);
+			if (end < len) {
+				end = findBoundary(text, start + overlap + 1, end);
+			}
+			chunks.add(new int[] { start, end });
+			if (end >= len) {
+				break;
+			}
+
+			// back up by the overlap, then forward to the start of a word
+			int next = Math.max(end - overlap, start + 1);
+			while (next < end && !Character.isWhitespace(text.charAt(next - 1))) {
+				next++;
+			}
+			start = next;
+		}
+		return chunks;
+	}
+
+	/**
+	 * Find the best place at or before end (but after min) to end a chunk: a
+	 * sentence boundary, then whitespace, then just end.
+	 */
+	private static int findBoundary(String text, int min, int end) {
+		int sentenceMin = Math.max(min, end - (end - min) / SENTENCE_SEARCH_FRACTION);
+		for (int i = end; i > sentenceMin; i--) {
+			char prev = text.charAt(i - 1);
+			if (prev == '\n' || (Character.isWhitespace(text.charAt(i)) && (prev == '.' || prev == '!' || prev == '?'))) {
+				return i;
+			}
+		}
+		for (int i = end; i > min; i--) {
+			if (Character.isWhitespace(text.charAt(i - 1))) {
+				return i;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Merge the matches found in each chunk into one list for the whole text.
+	 * The matches of each chunk must have offsets relative to the chunk; they
+	 * are shifted to be relative to the whole text.
+	 *
+	 * @param chunks
+	 *            the chunk boundaries as returned by split
+	 * @param chunkMatches
+	 *            the matches found in each chunk
+	 * @return the merged matches in document order
+	 */
+	static <T extends Match> List<T> merge(List<int[]> chunks, List<List<T>> chunkMatches) {
+		List<T> all = new ArrayList<T>();
+		for (int i = 0; i < chunks.size(); i++) {
+			int[] chunk = chunks.get(i);
+			// this chunk owns matches starting between the middles of its
+			// overlaps with its neighbours
+			long from = 0;
+			if (i > 0) {
+				from = (chunk[0] + chunks.get(i - 1)[1]) / 2;
+			}
+			long to = Long.MAX_VALUE;
+			if (i < chunks.size() - 1) {
+				to = (chunks.get(i + 1)[0] + chunk[1]) / 2;
+			}
+
+			for (T m : chunkMatches.get(i)) {
+				m.setStart(m.getStart() + chunk[0]);
+				m.setEnd(m.getEnd() + chunk[0]);
+				if (m.getStart() >= from && m.getStart() < to) {
+					all.add(m);
+				}
+			}
+		}
+
+		Collections.sort(all, new Comparator<Match>() {
+			@Override
+			public int compare(Match a, Match b) {
+				return Long.compare(a.getStart(), b.getStart());
+			}
+		});
+
+		// resolve any remaining overlaps: longest wins, ties go to the right
+		List<T> merged = new ArrayList<T>(all.size());
+		for (T m : all) {
+			if (merged.isEmpty()) {
+				merged.add(m);
+				continue;
+			}
+			T last = merged.get(merged.size() - 1);
+			if (m.getStart() >= last.getEnd()) {
+				merged.add(m);
+			} else if (m.getEnd() - m.getStart() >= last.getEnd() - last.getStart()) {
+				merged.set(merged.size() - 1, m);
+			}
+		}
+		return merged;
+	}
+}
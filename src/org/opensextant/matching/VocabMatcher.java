@@ -5,6 +5,9 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrRequest;
@@ -19,13 +22,22 @@ import org.opensextant.vocab.VocabMatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Finds vocabulary phrases in text by tagging it against the vocabulary core.
+ * <p>
+ * A VocabMatcher keeps no per-document state, so a single instance can be
+ * used by many threads at once (see {@link MatcherFactory#getSharedVocabMatcher()}).
+ */
 public class VocabMatcher {
 
 	private SolrClient solrServer;
 	private ModifiableSolrParams matchParams;
 
-	private SolrTaggerRequest tagRequest;
-	private Map<Integer, Vocab> vocabIDMap = new HashMap<Integer, Vocab>(100);
+	/** Maximum size of the joined buffer sent by matchTexts. */
+	private static final int MAX_BATCH_CHARS = 1000000;
+
+	/** Matches already found in short texts, null if not caching. */
+	private volatile MatchCache<VocabMatch> resultCache;
 
 	/** Log object. */
 	private static final Logger LOGGER = LoggerFactory.getLogger(VocabMatcher.class);
@@ -35,11 +47,58 @@ public class VocabMatcher {
 		matchParams = new ModifiableSolrParams(prms);
 	}
 
+	/**
+	 * Remember the VocabMatches found in short texts, so an identical text is
+	 * answered without tagging it again. The cache is bounded by weight: one
+	 * per text, plus one per match and one per Vocab on each match.
+	 * 
+	 * @param maxWeight
+	 *            the maximum weight of the cache, 0 to turn caching off
+	 */
+	public void enableResultCache(long maxWeight) {
+		if (maxWeight <= 0) {
+			resultCache = null;
+			return;
+		}
+		resultCache = new MatchCache<VocabMatch>(maxWeight, MatchCache.DEFAULT_MAX_TEXT_LENGTH, VocabMatch::new,
+				vm -> 1 + vm.getVocabs().size());
+	}
+
+	/**
+	 * @return the result cache, e.g. to report its statistics, or null if not
+	 *         caching
+	 */
+	public MatchCache<VocabMatch> getResultCache() {
+		return resultCache;
+	}
+
 	public List<VocabMatch> matchText(String buffer, String docName) {
 
+		MatchCache<VocabMatch> cache = resultCache;
+		if (cache == null || !cache.accepts(buffer)) {
+			List<VocabMatch> matches = tag(buffer, docName);
+			return matches == null ? new ArrayList<VocabMatch>() : matches;
+		}
+
+		List<VocabMatch> matches = cache.get(buffer);
+		if (matches == null) {
+			matches = tag(buffer, docName);
+			if (matches == null) {
+				return new ArrayList<VocabMatch>();
+			}
+			cache.put(buffer, matches);
+		}
+		return matches;
+	}
+
+	/** Tag the buffer ignoring the result cache, null if it failed. */
+	private List<VocabMatch> tag(String buffer, String docName) {
+
 		List<VocabMatch> matches = new ArrayList<VocabMatch>();
+		// the vocab entries in this response, by id
+		Map<Integer, Vocab> vocabIDMap = new HashMap<Integer, Vocab>(100);
 		// Setup request to tag
-		tagRequest = new SolrTaggerRequest(matchParams, SolrRequest.METHOD.POST);
+		SolrTaggerRequest tagRequest = new SolrTaggerRequest(matchParams, SolrRequest.METHOD.POST);
 		tagRequest.setInput(buffer);
 
 		QueryResponse response = null;
@@ -48,7 +107,7 @@ public class VocabMatcher {
 			response = tagRequest.process(solrServer);
 		} catch (SolrServerException | IOException e) {
 			LOGGER.error("Got exception when attempting to match " + docName, e);
-			return matches;
+			return null;
 		}
 
 		// Process Solr Response
@@ -95,6 +154,86 @@ public class VocabMatcher {
 
 	}
 
+	/**
+	 * Tag the buffer without waiting for the response. The request is made
+	 * on the MatcherFactory's request executor.
+	 *
+	 * @param buffer
+	 *            the text to be tagged
+	 * @param docName
+	 *            name of the document, used for logging
+	 * @return a future completed with the VocabMatches found
+	 */
+	public CompletableFuture<List<VocabMatch>> matchTextAsync(final String buffer, final String docName) {
+		return MatcherFactory.async(() -> matchText(buffer, docName));
+	}
+
+	/**
+	 * Tag many short texts using as few requests as possible, see
+	 * {@link PlacenameMatcher#matchTexts(List, String)}.
+	 *
+	 * @param buffers
+	 *            the texts to be tagged
+	 * @param batchName
+	 *            name of the batch, used for logging
+	 * @return one list of VocabMatches per text, in the same order
+	 */
+	public List<List<VocabMatch>> matchTexts(List<String> buffers, String batchName) {
+
+		List<List<VocabMatch>> results = new ArrayList<List<VocabMatch>>(buffers.size());
+		for (int i = 0; i < buffers.size(); i++) {
+			results.add(new ArrayList<VocabMatch>());
+		}
+
+		// answer what we can from the result cache, tag the rest
+		MatchCache<VocabMatch> cache = resultCache;
+		List<Integer> todo = new ArrayList<Integer>(buffers.size());
+		List<String> todoBuffers = new ArrayList<String>(buffers.size());
+		for (int i = 0; i < buffers.size(); i++) {
+			List<VocabMatch> cached = null;
+			if (cache != null && cache.accepts(buffers.get(i))) {
+				cached = cache.get(buffers.get(i));
+			}
+			if (cached != null) {
+				results.set(i, cached);
+			} else {
+				todo.add(i);
+				todoBuffers.add(buffers.get(i));
+			}
+		}
+
+		List<List<VocabMatch>> todoResults = new ArrayList<List<VocabMatch>>(todo.size());
+		for (int i = 0; i < todo.size(); i++) {
+			todoResults.add(new ArrayList<VocabMatch>());
+		}
+		Set<Integer> crossed = new TreeSet<Integer>();
+		for (TextBatch batch : TextBatch.pack(todoBuffers, MAX_BATCH_CHARS)) {
+			List<VocabMatch> batchMatches = tag(batch.getBuffer(), batchName);
+			if (batchMatches == null) {
+				// retry each text of a failed batch by itself
+				batch.addIndices(crossed);
+				continue;
+			}
+			batch.split(batchMatches, todoResults, crossed);
+		}
+
+		for (int i = 0; i < todo.size(); i++) {
+			int idx = todo.get(i);
+			if (crossed.contains(i)) {
+				// tag any text which had a match spanning a text boundary by
+				// itself
+				results.set(idx, matchText(todoBuffers.get(i), batchName + "[" + idx + "]"));
+			} else {
+				results.set(idx, todoResults.get(i));
+				if (cache != null) {
+					cache.put(todoBuffers.get(i), todoResults.get(i));
+				}
+			}
+		}
+
+		return results;
+	}
+
 	public void cleanup() {
 		MatcherFactory.shutdown(this);
 	}
@@ -0,0 +1,90 @@
+package org.opensextant.placedata;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A shared, append only dictionary of the values of one Place attribute (e.g.
+ * country code), so each Place holds a small integer code instead of a
+ * reference to its own copy of the string. Code 0 is null. Looking up a value
+ * already in the dictionary takes no lock. Once full, new values get
+ * {@link #FULL} and the caller keeps the string itself.
+ */
+final class AttributeDictionary {
+
+	/** The code of a value which doesn't fit in the full dictionary. */
+	static final int FULL = -1;
+
+	/** The attribute, for toString(). */
+	private final String attribute;
+	/** The most distinct values, including null. */
+	private final int maxSize;
+
+	private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<String, Integer>();
+	/** The values by code; only ever replaced by a larger copy. */
+	private volatile String[] values = new String[64];
+	private int size = 1;
+
+	AttributeDictionary(String attribute, int maxSize) {
+		this.attribute = attribute;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * The code of a value, adding it if it is new.
+	 *
+	 * @param value
+	 *            the value, may be null
+	 * @return its code, or FULL if it is new and the dictionary full
+	 */
+	int code(String value) {
+		if (value == null) {
+			return 0;
+		}
+		Integer c = codes.get(value);
+		if (c != null) {
+			return c;
+		}
+		return add(value);
+	}
+
+	/**
+	 * The value of a code.
+	 *
+	 * @param code
+	 *            a code returned by code()
+	 * @return the (shared) value
+	 */
+	String value(int code) {
+		return values[code];
+	}
+
+	/** The number of distinct values, including null. */
+	synchronized int size() {
+		return size;
+	}
+
+	private synchronized int add(String value) {
+		Integer c = codes.get(value);
+		if (c != null) {
+			return c;
+		}
+		if (size == maxSize) {
+			return FULL;
+		}
+		String[] v = values;
+		if (size == v.length) {
+			v = Arrays.copyOf(v, Math.min(v.length * 2, maxSize));
+		}
+		v[size] = value;
+		values = v;
+		// the value is in place before anyone can see its code
+		codes.put(value, size);
+		return size++;
+	}
+
+	@Override
+	public String toString() {
+		return attribute + " dictionary of " + size() + "/" + maxSize + " values";
+	}
+}
@@ -23,6 +23,13 @@ package org.opensextant.placedata;
 
 /**
  * A Geocoord represents spatial coordinates on the globe.
+ * <p>
+ * Besides the haversine distance, a Geocoord can be compared with other points
+ * by the chord between them through the unit sphere. Each point's unit vector
+ * is computed once (and cached on the Geocoord), after which comparing two
+ * points, or testing whether they are within a given distance, is a handful
+ * of multiplications with no trigonometry. Distance thresholds are converted
+ * to squared chords with {@link #chordSquaredOf(double)}.
  */
 public class Geocoord implements java.io.Serializable {
 	private static final long serialVersionUID = -3313528469542406371L;
@@ -36,6 +43,12 @@ public class Geocoord implements java.io.Serializable {
 	 */
 	private boolean isValid;
 
+	/** The point as a unit vector, computed when first needed. */
+	private transient double x;
+	private transient double y;
+	private transient double z;
+	private transient boolean hasVector;
+
 	/** Radius of the earth in kilometers, used for distance calc. */
 	public static final double R = 6372.8;
 
@@ -96,12 +109,160 @@ public class Geocoord implements java.io.Serializable {
 		return R * c;
 	}
 
+	/**
+	 * The distance in kilometers to another point, computed from the chord
+	 * between them; see {@link #distance(Geocoord)} for the haversine.
+	 * 
+	 * @return distance from the given Geocoord, in kilometers.
+	 */
+	public double distanceTo(Geocoord another) {
+		return distanceOfChordSquared(chordSquared(another));
+	}
+
+	/**
+	 * Is another point within a distance of this one? No trigonometry once
+	 * both points' unit vectors are known.
+	 * 
+	 * @param another
+	 *            the other point
+	 * @param km
+	 *            the distance in kilometers
+	 * @return true if the distance between them is less than km
+	 */
+	public boolean isWithin(Geocoord another, double km) {
+		return chordSquared(another) < chordSquaredOf(km);
+	}
+
+	/**
+	 * The square of the chord between this point and another, on the unit
+	 * sphere. It increases with the distance between them, so can be compared
+	 * instead of the distance.
+	 */
+	public double chordSquared(Geocoord another) {
+		vector();
+		another.vector();
+		double dx = x - another.x;
+		double dy = y - another.y;
+		double dz = z - another.z;
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	/**
+	 * The square of the chord between this point and one given as a unit
+	 * vector, see {@link #unitVector(double, double, double[], int)}.
+	 * 
+	 * @param xyz
+	 *            holds the unit vector
+	 * @param offset
+	 *            the offset of its x in xyz
+	 */
+	public double chordSquared(double[] xyz, int offset) {
+		vector();
+		double dx = x - xyz[offset];
+		double dy = y - xyz[offset + 1];
+		double dz = z - xyz[offset + 2];
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	/**
+	 * The squared chords from this point to many, each given as a unit vector.
+	 * 
+	 * @param xyz
+	 *            the unit vectors, packed x,y,z,x,y,z,...
+	 * @param count
+	 *            the number of points
+	 * @param out
+	 *            receives the squared chord to each point
+	 */
+	public void chordsSquared(double[] xyz, int count, double[] out) {
+		vector();
+		double px = x;
+		double py = y;
+		double pz = z;
+		for (int i = 0, j = 0; i < count; i++, j += 3) {
+			double dx = px - xyz[j];
+			double dy = py - xyz[j + 1];
+			double dz = pz - xyz[j + 2];
+			out[i] = dx * dx + dy * dy + dz * dz;
+		}
+	}
+
+	/**
+	 * The distances in kilometers from this point to many, see
+	 * {@link #chordsSquared(double[], int, double[])}.
+	 */
+	public void distances(double[] xyz, int count, double[] out) {
+		chordsSquared(xyz, count, out);
+		for (int i = 0; i < count; i++) {
+			out[i] = distanceOfChordSquared(out[i]);
+		}
+	}
+
+	/**
+	 * Put the unit vector of a point into an array, e.g. to build the batch
+	 * for {@link #chordsSquared(double[], int, double[])}.
+	 * 
+	 * @param lat
+	 *            latitude in degrees
+	 * @param lon
+	 *            longitude in degrees
+	 * @param xyz
+	 *            receives x,y,z
+	 * @param offset
+	 *            where to put x
+	 */
+	public static void unitVector(double lat, double lon, double[] xyz, int offset) {
+		double latRads = Math.toRadians(lat);
+		double lonRads = Math.toRadians(lon);
+		double cosLat = Math.cos(latRads);
+		xyz[offset] = cosLat * Math.cos(lonRads);
+		xyz[offset + 1] = cosLat * Math.sin(lonRads);
+		xyz[offset + 2] = Math.sin(latRads);
+	}
+
+	/**
+	 * The squared chord, on the unit sphere, of a distance along the surface.
+	 * 
+	 * @param km
+	 *            the distance in kilometers
+	 */
+	public static double chordSquaredOf(double km) {
+		if (km >= Math.PI * R) {
+			// at least half way round, further than any two points
+			return 4.0 + Math.ulp(4.0);
+		}
+		double chord = 2 * Math.sin(km / (2 * R));
+		return chord * chord;
+	}
+
+	/**
+	 * The distance in kilometers along the surface of a squared chord on the
+	 * unit sphere.
+	 */
+	public static double distanceOfChordSquared(double chordSquared) {
+		double halfChord = Math.sqrt(chordSquared) / 2;
+		return 2 * R * Math.asin(Math.min(1.0, halfChord));
+	}
+
+	private void vector() {
+		if (!hasVector) {
+			double latRads = Math.toRadians(latitude);
+			double lonRads = Math.toRadians(longitude);
+			double cosLat = Math.cos(latRads);
+			x = cosLat * Math.cos(lonRads);
+			y = cosLat * Math.sin(lonRads);
+			z = Math.sin(latRads);
+			hasVector = true;
+		}
+	}
+
 	public Double getLatitude() {
 		return latitude;
 	}
 
 	public void setLatitude(Double latitude) {
 		this.latitude = latitude;
+		hasVector = false;
 	}
 
 	public Double getLongitude() {
@@ -110,6 +271,7 @@ public class Geocoord implements java.io.Serializable {
 
 	public void setLongitude(Double longitude) {
 		this.longitude = longitude;
+		hasVector = false;
 	}
 
 	@Override
@@ -21,6 +21,9 @@
  **/
 package org.opensextant.placedata;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 import org.apache.commons.lang3.builder.HashCodeBuilder;
@@ -31,40 +34,77 @@ import org.apache.commons.lang3.builder.HashCodeBuilder;
  * country it is part of or located in, what type of place it is (e.g. city,
  * river, province) and the original source of this information. These reflect
  * the data traditionally found in gazetteers.
+ * <p>
+ * Gazetteers hold millions of Places, so the layout is compact: the attributes
+ * with few distinct values (country, admin codes, feature class and code, name
+ * type, source) are held as codes into dictionaries shared by all Places, and
+ * the location and biases as primitives. A value which no longer fits in its
+ * (bounded) dictionary is held as a string by the Place instead.
  */
 public class Place implements Comparable<Object>, Serializable {
-	private static final long serialVersionUID = 2389068012345L;
+	// the coded attributes are serialized as their values
+	private static final long serialVersionUID = 2389068012346L;
+
+	// the shared dictionaries of the coded attributes, a char code each but
+	// for admin2; the largest char code means the value is in overflow
+	private static final char CHAR_FULL = Character.MAX_VALUE;
+	private static final AttributeDictionary NAME_TYPES = new AttributeDictionary("nameType", Character.MAX_VALUE);
+	private static final AttributeDictionary NAME_TYPE_SYSTEMS = new AttributeDictionary("nameTypeSystem",
+			Character.MAX_VALUE);
+	private static final AttributeDictionary COUNTRY_CODES = new AttributeDictionary("countryCode",
+			Character.MAX_VALUE);
+	private static final AttributeDictionary ADMIN1S = new AttributeDictionary("admin1", Character.MAX_VALUE);
+	private static final AttributeDictionary ADMIN2S = new AttributeDictionary("admin2", 1 << 20);
+	private static final AttributeDictionary FEATURE_CLASSES = new AttributeDictionary("featureClass",
+			Character.MAX_VALUE);
+	private static final AttributeDictionary FEATURE_CODES = new AttributeDictionary("featureCode",
+			Character.MAX_VALUE);
+	private static final AttributeDictionary SOURCES = new AttributeDictionary("source", Character.MAX_VALUE);
+
+	// the index in overflow of each coded attribute
+	private static final int NAME_TYPE_SLOT = 0;
+	private static final int NAME_TYPE_SYSTEM_SLOT = 1;
+	private static final int COUNTRY_CODE_SLOT = 2;
+	private static final int ADMIN1_SLOT = 3;
+	private static final int ADMIN2_SLOT = 4;
+	private static final int FEATURE_CLASS_SLOT = 5;
+	private static final int FEATURE_CODE_SLOT = 6;
+	private static final int SOURCE_SLOT = 7;
 
 	// Name metadata
 	private String placeName;
 	private String expandedPlaceName; // only present for abbrev/codes
-	private String nameType;
-	private String nameTypeSystem;
+	private transient char nameType;
+	private transient char nameTypeSystem;
 
 	// The geospatial data
-	private String countryCode; // ISO2 code
-	// private String countryCodeFIPS; // FIPS code
-	// private String countryCodeISO3; // ISO3 code
-	private String admin1;
-	private String admin2;
+	private transient char countryCode; // ISO2 code
+	private transient char admin1;
+	// admin2 codes are only unique within a country, there can be many
+	private transient int admin2;
 
 	// what type of place this is
-	private String featureClass;
-	private String featureCode;
+	private transient char featureClass;
+	private transient char featureCode;
 
-	// its location as a point
-	private transient Geocoord geocoord = new Geocoord();
+	// its location as a point, NaN if not set
+	private double latitude = Double.NaN;
+	private double longitude = Double.NaN;
 
 	// identifiers for this name and place
 	private String sourceNameID;
 	private String sourceFeatureID;
 	private String placeID;
 	// original source of this data
-	private String source;
+	private transient char source;
 
-	// the a priori estimates
-	private double nameBias;
-	private double idBias;
+	// the a priori estimates, with the gazetteer's (float) precision
+	private float nameBias;
+	private float idBias;
+
+	// the values of coded attributes whose dictionary is full, by slot; null
+	// until there is one
+	private transient String[] overflow;
 
 	// values used for nameType
 	public static final String ABBREV_TYPE = "abbrev";
@@ -86,9 +126,10 @@ public class Place implements Comparable<Object>, Serializable {
 		String output = "";
 		if (this.expandedPlaceName != null) {
 			output = this.placeName + " (" + this.expandedPlaceName + ")" + "(" + this.getAdmin1() + ","
-					+ this.countryCode + "," + this.featureCode + ")";
+					+ this.getCountryCode() + "," + this.getFeatureCode() + ")";
 		} else {
-			output = this.placeName + " (" + this.getAdmin1() + "," + this.countryCode + "," + this.featureCode + ")";
+			output = this.placeName + " (" + this.getAdmin1() + "," + this.getCountryCode() + ","
+					+ this.getFeatureCode() + ")";
 		}
 
 		return output;
@@ -133,7 +174,7 @@ public class Place implements Comparable<Object>, Serializable {
 	 * @return - true if this is a country or "country-like" place
 	 */
 	public boolean isACountry() {
-		return featureCode.startsWith("PCL");
+		return getFeatureCode().startsWith("PCL");
 	}
 
 	/**
@@ -143,7 +184,7 @@ public class Place implements Comparable<Object>, Serializable {
 	 *         area
 	 */
 	public boolean isAnAdmin1() {
-		return "ADM1".equalsIgnoreCase(featureCode);
+		return "ADM1".equalsIgnoreCase(getFeatureCode());
 	}
 
 	/**
@@ -152,7 +193,7 @@ public class Place implements Comparable<Object>, Serializable {
 	 * @return - true if this is a a national Capital area
 	 */
 	public boolean isNationalCapital() {
-		return "PPLC".equalsIgnoreCase(featureCode);
+		return "PPLC".equalsIgnoreCase(getFeatureCode());
 	}
 
 	/**
@@ -162,11 +203,12 @@ public class Place implements Comparable<Object>, Serializable {
 	 */
 	public boolean isAbbreviation() {
 
-		if (ABBREV_TYPE.equalsIgnoreCase(this.nameType)) {
+		String type = getNameType();
+		if (ABBREV_TYPE.equalsIgnoreCase(type)) {
 			return true;
 		}
 
-		if (CODE_TYPE.equalsIgnoreCase(this.nameType)) {
+		if (CODE_TYPE.equalsIgnoreCase(type)) {
 			return true;
 		}
 
@@ -191,43 +233,43 @@ public class Place implements Comparable<Object>, Serializable {
 	}
 
 	public String getCountryCode() {
-		return countryCode;
+		return value(COUNTRY_CODES, countryCode, COUNTRY_CODE_SLOT);
 	}
 
 	public void setCountryCode(String countryCode) {
-		this.countryCode = countryCode;
+		this.countryCode = charCode(COUNTRY_CODES, countryCode, COUNTRY_CODE_SLOT);
 	}
 
 	public String getFeatureClass() {
-		return featureClass;
+		return value(FEATURE_CLASSES, featureClass, FEATURE_CLASS_SLOT);
 	}
 
 	public void setFeatureClass(String featureClass) {
-		this.featureClass = featureClass;
+		this.featureClass = charCode(FEATURE_CLASSES, featureClass, FEATURE_CLASS_SLOT);
 	}
 
 	public String getFeatureCode() {
-		return featureCode;
+		return value(FEATURE_CODES, featureCode, FEATURE_CODE_SLOT);
 	}
 
 	public void setFeatureCode(String featureCode) {
-		this.featureCode = featureCode;
+		this.featureCode = charCode(FEATURE_CODES, featureCode, FEATURE_CODE_SLOT);
 	}
 
 	public Double getLatitude() {
-		return this.geocoord.getLatitude();
+		return Double.isNaN(latitude) ? null : latitude;
 	}
 
 	public void setLatitude(Double latitude) {
-		this.geocoord.setLatitude(latitude);
+		this.latitude = latitude == null ? Double.NaN : latitude;
 	}
 
 	public Double getLongitude() {
-		return this.geocoord.getLongitude();
+		return Double.isNaN(longitude) ? null : longitude;
 	}
 
 	public void setLongitude(Double longitude) {
-		this.geocoord.setLongitude(longitude);
+		this.longitude = longitude == null ? Double.NaN : longitude;
 	}
 
 	public String getSourceNameID() {
@@ -255,38 +297,41 @@ public class Place implements Comparable<Object>, Serializable {
 	}
 
 	public String getAdmin1() {
-		return admin1;
+		return value(ADMIN1S, admin1, ADMIN1_SLOT);
 	}
 
 	public void setAdmin1(String key) {
-		this.admin1 = key;
+		this.admin1 = charCode(ADMIN1S, key, ADMIN1_SLOT);
 	}
 
 	public String getAdmin2() {
-		return admin2;
+		if (admin2 == AttributeDictionary.FULL) {
+			return overflow[ADMIN2_SLOT];
+		}
+		return ADMIN2S.value(admin2);
 	}
 
 	public void setAdmin2(String key) {
-		this.admin2 = key;
+		this.admin2 = code(ADMIN2S, key, ADMIN2_SLOT);
 	}
 
 	/**
 	 * Get the original source of this information.
 	 */
 	public String getSource() {
-		return source;
+		return value(SOURCES, source, SOURCE_SLOT);
 	}
 
 	public void setSource(String source) {
-		this.source = source;
+		this.source = charCode(SOURCES, source, SOURCE_SLOT);
 	}
 
 	public String getNameType() {
-		return nameType;
+		return value(NAME_TYPES, nameType, NAME_TYPE_SLOT);
 	}
 
 	public void setNameType(String nameType) {
-		this.nameType = nameType;
+		this.nameType = charCode(NAME_TYPES, nameType, NAME_TYPE_SLOT);
 	}
 
 	/**
@@ -298,7 +343,7 @@ public class Place implements Comparable<Object>, Serializable {
 	}
 
 	public void setNameBias(double nameBias) {
-		this.nameBias = nameBias;
+		this.nameBias = (float) nameBias;
 	}
 
 	/**
@@ -310,23 +355,89 @@ public class Place implements Comparable<Object>, Serializable {
 	}
 
 	public void setIdBias(double idBias) {
-		this.idBias = idBias;
+		this.idBias = (float) idBias;
 	}
 
+	/**
+	 * The location of this Place, as a new Geocoord each call. The Place
+	 * holds its location as two doubles, so changing the Geocoord returned no
+	 * longer moves the Place as it once did; use setGeocoord() for that.
+	 * 
+	 * @return a copy of the location, its latitude and longitude null if not
+	 *         set
+	 */
 	public Geocoord getGeocoord() {
-		return geocoord;
+		Geocoord geo = new Geocoord();
+		geo.setLatitude(getLatitude());
+		geo.setLongitude(getLongitude());
+		return geo;
 	}
 
 	public void setGeocoord(Geocoord geocoord) {
-		this.geocoord = geocoord;
+		setLatitude(geocoord.getLatitude());
+		setLongitude(geocoord.getLongitude());
 	}
 
 	public String getNameTypeSystem() {
-		return nameTypeSystem;
+		return value(NAME_TYPE_SYSTEMS, nameTypeSystem, NAME_TYPE_SYSTEM_SLOT);
 	}
 
 	public void setNameTypeSystem(String nameTypeSystem) {
-		this.nameTypeSystem = nameTypeSystem;
+		this.nameTypeSystem = charCode(NAME_TYPE_SYSTEMS, nameTypeSystem, NAME_TYPE_SYSTEM_SLOT);
+	}
+
+	/** The value of a char coded attribute. */
+	private String value(AttributeDictionary dict, char code, int slot) {
+		if (code == CHAR_FULL) {
+			return overflow[slot];
+		}
+		return dict.value(code);
+	}
+
+	/** The char code of a value, keeping it in overflow if there is none. */
+	private char charCode(AttributeDictionary dict, String value, int slot) {
+		int code = code(dict, value, slot);
+		return code == AttributeDictionary.FULL ? CHAR_FULL : (char) code;
+	}
+
+	/** The code of a value, keeping it in overflow if it has none. */
+	private int code(AttributeDictionary dict, String value, int slot) {
+		int code = dict.code(value);
+		if (code == AttributeDictionary.FULL) {
+			if (overflow == null) {
+				overflow = new String[SOURCE_SLOT + 1];
+			}
+			overflow[slot] = value;
+		} else if (overflow != null) {
+			overflow[slot] = null;
+		}
+		return code;
+	}
+
+	// the codes are only meaningful in this JVM, so serialize the values
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeObject(getNameType());
+		out.writeObject(getNameTypeSystem());
+		out.writeObject(getCountryCode());
+		out.writeObject(getAdmin1());
+		out.writeObject(getAdmin2());
+		out.writeObject(getFeatureClass());
+		out.writeObject(getFeatureCode());
+		out.writeObject(getSource());
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		setNameType((String) in.readObject());
+		setNameTypeSystem((String) in.readObject());
+		setCountryCode((String) in.readObject());
+		setAdmin1((String) in.readObject());
+		setAdmin2((String) in.readObject());
+		setFeatureClass((String) in.readObject());
+		setFeatureCode((String) in.readObject());
+		setSource((String) in.readObject());
 	}
 
 }
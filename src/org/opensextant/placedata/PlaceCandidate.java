@@ -23,10 +23,10 @@ package org.opensextant.placedata;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import org.opensextant.tagger.Match;
 
@@ -42,10 +42,19 @@ import org.opensextant.tagger.Match;
  * <li>bestPlace - Of all the places with the same/similar names, which place is
  * it?
  * </ul>
+ * Ambiguous names can have thousands of Places, so the places and scores are
+ * held in parallel arrays, the ranking is kept until a score changes, and the
+ * rule and evidence lists are only created when first used.
  */
 public class PlaceCandidate extends Match implements Serializable {
 	private static final long serialVersionUID = 1L;
 
+	private static final Place[] NO_PLACES = new Place[0];
+	private static final double[] NO_SCORES = new double[0];
+
+	/** Below this many places, they are found by a scan rather than an index. */
+	private static final int INDEX_THRESHOLD = 8;
+
 	public String getPlaceName(){
 		return this.getMatchText();
 	}
@@ -65,13 +74,21 @@ public class PlaceCandidate extends Match implements Serializable {
 
 	/**
 	 * --------------Disambiguation stuff ---------------------- the places
-	 * along with their disambiguation scores.
+	 * along with their disambiguation scores and hash codes, in the order they
+	 * were added.
 	 */
-	private transient Map<Place, Double> scoredPlaces;
+	private transient Place[] places = NO_PLACES;
+	private transient double[] scores = NO_SCORES;
+	private transient int[] hashes;
+	private transient int placeCount;
+
+	/** Open addressing index of the places: position + 1 by hash, or null. */
+	private transient int[] placeIndex;
 
-	/** Temporary lists to hold the ranked places and scores. */
+	/** The ranked places and scores, null until ranked or a score changes. */
 	private transient List<Place> rankedPlaces;
 	private transient List<Double> rankedScores;
+	private transient int bestPosition = -1;
 
 	/**
 	 * The list of PlaceEvidences accumulated from the document about this PC.
@@ -80,12 +97,37 @@ public class PlaceCandidate extends Match implements Serializable {
 
 	/** Basic constructor. */
 	public PlaceCandidate() {
-		scoredPlaces = new HashMap<Place, Double>();
-		rankedPlaces = new ArrayList<Place>();
-		rankedScores = new ArrayList<Double>();
-		evidence = new ArrayList<PlaceEvidence>();
-		rules = new ArrayList<String>();
-		placeConfidences = new ArrayList<Double>();
+	}
+
+	/**
+	 * Copy constructor. The scores, rules and evidence are copied; the Places
+	 * themselves are shared.
+	 */
+	public PlaceCandidate(PlaceCandidate old) {
+		this();
+		this.start = old.start;
+		this.end = old.end;
+		this.type = old.type;
+		this.matchText = old.matchText;
+		this.features = new HashMap<String, Object>(old.features);
+		if (old.placeCount > 0) {
+			this.places = Arrays.copyOf(old.places, old.placeCount);
+			this.scores = Arrays.copyOf(old.scores, old.placeCount);
+			this.hashes = Arrays.copyOf(old.hashes, old.placeCount);
+			this.placeCount = old.placeCount;
+		}
+		if (old.rules != null) {
+			this.rules = new ArrayList<String>(old.rules);
+		}
+		if (old.placeConfidences != null) {
+			this.placeConfidences = new ArrayList<Double>(old.placeConfidences);
+		}
+		if (old.evidence != null) {
+			this.evidence = new ArrayList<PlaceEvidence>(old.evidence.size());
+			for (PlaceEvidence ev : old.evidence) {
+				this.evidence.add(new PlaceEvidence(ev));
+			}
+		}
 	}
 
 	// ---- the getters and setters ---------
@@ -93,12 +135,11 @@ public class PlaceCandidate extends Match implements Serializable {
 	 * Get the most highly ranked Place, or Null if empty list.
 	 */
 	public Place getBestPlace() {
-		sort();
-		List<Place> l = getPlaces();
-		if (l.isEmpty()) {
+		int best = best();
+		if (best < 0) {
 			return null;
 		}
-		return l.get(0);
+		return places[best];
 	}
 
 	/**
@@ -106,12 +147,11 @@ public class PlaceCandidate extends Match implements Serializable {
 	 * empty list.
 	 */
 	public double getBestPlaceScore() {
-		sort();
-		List<Double> l = getScores();
-		if (l.isEmpty()) {
+		int best = best();
+		if (best < 0) {
 			return 0.0;
 		}
-		return l.get(0);
+		return scores[best];
 	}
 
 	/**
@@ -123,21 +163,37 @@ public class PlaceCandidate extends Match implements Serializable {
 
 
 	/**
-	 * Get a ranked list of places.
+	 * Get a ranked list of places. The list is read only, and is not changed
+	 * by later changes to the scores.
 	 */
 	public List<Place> getPlaces() {
-		sort();
+		rank();
 		return this.rankedPlaces;
 	}
 
 	/**
-	 * Get a ranked list of scores.
+	 * Get a ranked list of scores, see {@link #getPlaces()}.
 	 */
 	public List<Double> getScores() {
-		sort();
+		rank();
 		return this.rankedScores;
 	}
 
+	/** The number of places, without ranking them. */
+	public int getPlaceCount() {
+		return placeCount;
+	}
+
+	/** The place at a position, in the order added. */
+	Place placeAt(int pos) {
+		return places[pos];
+	}
+
+	/** The score of the place at a position, in the order added. */
+	double scoreAt(int pos) {
+		return scores[pos];
+	}
+
 	/** Add a new place with a default score. */
 	public void addPlace(Place place) {
 		addPlaceWithScore(place, 0.0);
@@ -145,36 +201,69 @@ public class PlaceCandidate extends Match implements Serializable {
 
 	/** Add a new place with a specific score. */
 	public void addPlaceWithScore(Place place, double score) {
-		this.scoredPlaces.put(place, score);
+		int hash = place.hashCode();
+		int pos = find(place, hash);
+		if (pos >= 0) {
+			setScore(pos, score);
+			return;
+		}
+
+		if (placeCount == places.length) {
+			int capacity = Math.max(4, placeCount * 2);
+			places = Arrays.copyOf(places, capacity);
+			scores = Arrays.copyOf(scores, capacity);
+			hashes = hashes == null ? new int[capacity] : Arrays.copyOf(hashes, capacity);
+		}
+		places[placeCount] = place;
+		scores[placeCount] = score;
+		hashes[placeCount] = hash;
+		placeCount++;
+		if (placeIndex != null) {
+			if (placeCount * 2 > placeIndex.length) {
+				buildIndex();
+			} else {
+				index(placeCount - 1);
+			}
+		} else if (placeCount > INDEX_THRESHOLD) {
+			buildIndex();
+		}
+		invalidateRanking();
 	}
 
 	/** Increment the score of an existing place. */
 	public void incrementPlaceScore(Place place, double score) {
-		Double currentScore = this.scoredPlaces.get(place);
-		if (currentScore != null) {
-			this.scoredPlaces.put(place, currentScore + score);
+		int pos = find(place, place.hashCode());
+		if (pos >= 0) {
+			setScore(pos, scores[pos] + score);
 		}
 	}
 
 	/** Set the score of an existing place. */
 	public void setPlaceScore(Place place, double score) {
-		if (!this.scoredPlaces.containsKey(place)) {
-			return;
+		int pos = find(place, place.hashCode());
+		if (pos >= 0) {
+			setScore(pos, score);
 		}
-		this.scoredPlaces.put(place, score);
 	}
 
 	public List<String> getRules() {
+		if (rules == null) {
+			rules = new ArrayList<String>();
+		}
 		return rules;
 	}
 
 	public List<Double> getConfidences() {
+		if (placeConfidences == null) {
+			placeConfidences = new ArrayList<Double>();
+		}
 		return placeConfidences;
 	}
 
 	/** Check if at least one of the Places has the given country code. */
 	public boolean possibleCountry(String cc) {
-		for (Place p : rankedPlaces) {
+		for (int i = 0; i < placeCount; i++) {
+			Place p = places[i];
 			if (p.getCountryCode() != null && p.getCountryCode().equalsIgnoreCase(cc)) {
 				return true;
 			}
@@ -185,14 +274,16 @@ public class PlaceCandidate extends Match implements Serializable {
 	/** Check if at least one of the Places has the given admin code. */
 	public boolean possibleAdmin(String adm, String cc) {
 		// check the non-null admins first
-		for (Place p : rankedPlaces) {
+		for (int i = 0; i < placeCount; i++) {
+			Place p = places[i];
 			if (p.getAdmin1() != null && p.getAdmin1().equalsIgnoreCase(adm)) {
 				return true;
 			}
 		}
 		// some adm1codes are null, a null admin of the correct country could be
 		// possible match
-		for (Place p : rankedPlaces) {
+		for (int i = 0; i < placeCount; i++) {
+			Place p = places[i];
 			if (p.getAdmin1() == null && p.getCountryCode().equalsIgnoreCase(cc)) {
 				return true;
 			}
@@ -201,8 +292,8 @@ public class PlaceCandidate extends Match implements Serializable {
 	}
 
 	public void addRuleAndConfidence(String rule, double conf) {
-		rules.add(rule);
-		placeConfidences.add(conf);
+		getRules().add(rule);
+		getConfidences().add(conf);
 	}
 
 	/**
@@ -211,7 +302,7 @@ public class PlaceCandidate extends Match implements Serializable {
 	 * other entity.
 	 */
 	public double getPlaceConfidenceScore() {
-		if (placeConfidences.isEmpty()) {
+		if (placeConfidences == null || placeConfidences.isEmpty()) {
 			return 0.0;
 		}
 		// average of placeConfidences
@@ -237,15 +328,19 @@ public class PlaceCandidate extends Match implements Serializable {
 	 * confidences.
 	 */
 	public void setPlaceConfidenceScore(double score) {
-		placeConfidences.clear();
-		rules.clear();
+		if (placeConfidences != null) {
+			placeConfidences.clear();
+		}
+		if (rules != null) {
+			rules.clear();
+		}
 		if (Math.abs(score) > 0.0) { // don't add a 0.0 strength rule
 			addRuleAndConfidence("Calibrate", score);
 		}
 	}
 
 	public void addEvidence(PlaceEvidence evidence) {
-		this.evidence.add(evidence);
+		getEvidence().add(evidence);
 	}
 
 	/** Some convenience methods to add evidence. */
@@ -269,7 +364,7 @@ public class PlaceCandidate extends Match implements Serializable {
 		if (geo != null) {
 			ev.setGeocoord(geo);
 		}
-		this.evidence.add(ev);
+		getEvidence().add(ev);
 	}
 
 	public void addCountryEvidence(String rule, Double weight, String cc) {
@@ -277,7 +372,7 @@ public class PlaceCandidate extends Match implements Serializable {
 		ev.setRule(rule);
 		ev.setWeight(weight);
 		ev.setCountryCode(cc);
-		this.evidence.add(ev);
+		getEvidence().add(ev);
 	}
 
 	public void addAdmin1Evidence(String rule, double weight, String adm1, String cc) {
@@ -286,7 +381,7 @@ public class PlaceCandidate extends Match implements Serializable {
 		ev.setWeight(weight);
 		ev.setAdmin1(adm1);
 		ev.setCountryCode(cc);
-		this.evidence.add(ev);
+		getEvidence().add(ev);
 	}
 
 	public void addFeatureClassEvidence(String rule, double weight, String fclass) {
@@ -294,7 +389,7 @@ public class PlaceCandidate extends Match implements Serializable {
 		ev.setRule(rule);
 		ev.setWeight(weight);
 		ev.setFeatureClass(fclass);
-		this.evidence.add(ev);
+		getEvidence().add(ev);
 	}
 
 	public void addFeatureCodeEvidence(String rule, double weight, String fcode) {
@@ -302,7 +397,7 @@ public class PlaceCandidate extends Match implements Serializable {
 		ev.setRule(rule);
 		ev.setWeight(weight);
 		ev.setFeatureCode(fcode);
-		this.evidence.add(ev);
+		getEvidence().add(ev);
 	}
 
 	public void addGeocoordEvidence(String rule, double weight, Geocoord coord) {
@@ -310,39 +405,162 @@ public class PlaceCandidate extends Match implements Serializable {
 		ev.setRule(rule);
 		ev.setWeight(weight);
 		ev.setGeocoord(coord);
-		this.evidence.add(ev);
+		getEvidence().add(ev);
 	}
 
 	public List<PlaceEvidence> getEvidence() {
+		if (this.evidence == null) {
+			this.evidence = new ArrayList<PlaceEvidence>();
+		}
 		return this.evidence;
 	}
 
 	/** Convenience method for determining the state of a PlaceCandidate. */
 	public boolean hasPlaces() {
-		return !this.scoredPlaces.isEmpty();
+		return placeCount > 0;
 	}
 
-	private void sort() {
-		this.rankedPlaces.clear();
-		this.rankedScores.clear();
-		List<ScoredPlace> tmp = new ArrayList<ScoredPlace>();
-		for (Place pl : this.scoredPlaces.keySet()) {
-			tmp.add(new ScoredPlace(pl, scoredPlaces.get(pl)));
+	private void setScore(int pos, double score) {
+		if (scores[pos] != score) {
+			scores[pos] = score;
+			invalidateRanking();
 		}
-		Collections.sort(tmp);
-		for (ScoredPlace spl : tmp) {
-			this.rankedPlaces.add(spl.getPlace());
-			this.rankedScores.add(spl.getScore());
+	}
+
+	private void invalidateRanking() {
+		rankedPlaces = null;
+		rankedScores = null;
+		bestPosition = -1;
+	}
+
+	/** The position of the best place without ranking them all, -1 if none. */
+	private int best() {
+		if (bestPosition < 0 && placeCount > 0) {
+			// the first of the highest scores, as a stable sort would rank it
+			int best = 0;
+			for (int i = 1; i < placeCount; i++) {
+				if (Double.compare(scores[i], scores[best]) > 0) {
+					best = i;
+				}
+			}
+			bestPosition = best;
+		}
+		return bestPosition;
+	}
+
+	/** Rank the places by descending score, ties in the order added. */
+	private void rank() {
+		if (rankedPlaces != null) {
+			return;
+		}
+		int[] order = new int[placeCount];
+		for (int i = 0; i < placeCount; i++) {
+			order[i] = i;
+		}
+		if (placeCount > 1) {
+			mergeSort(order, new int[placeCount], 0, placeCount);
+		}
+		Place[] p = new Place[placeCount];
+		Double[] s = new Double[placeCount];
+		for (int i = 0; i < placeCount; i++) {
+			p[i] = places[order[i]];
+			s[i] = scores[order[i]];
+		}
+		rankedPlaces = Collections.unmodifiableList(Arrays.asList(p));
+		rankedScores = Collections.unmodifiableList(Arrays.asList(s));
+		if (placeCount > 0) {
+			bestPosition = order[0];
+		}
+	}
+
+	/** Stable sort of positions by descending score. */
+	private void mergeSort(int[] order, int[] tmp, int from, int to) {
+		if (to - from < 8) {
+			for (int i = from + 1; i < to; i++) {
+				int pos = order[i];
+				int j = i - 1;
+				while (j >= from && Double.compare(scores[order[j]], scores[pos]) < 0) {
+					order[j + 1] = order[j];
+					j--;
+				}
+				order[j + 1] = pos;
+			}
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		mergeSort(order, tmp, from, mid);
+		mergeSort(order, tmp, mid, to);
+		int i = from;
+		int j = mid;
+		int k = from;
+		while (i < mid && j < to) {
+			// take from the left unless the right is strictly higher
+			if (Double.compare(scores[order[j]], scores[order[i]]) > 0) {
+				tmp[k++] = order[j++];
+			} else {
+				tmp[k++] = order[i++];
+			}
+		}
+		while (i < mid) {
+			tmp[k++] = order[i++];
 		}
+		while (j < to) {
+			tmp[k++] = order[j++];
+		}
+		System.arraycopy(tmp, from, order, from, to - from);
+	}
+
+	/** The position of a place, -1 if it isn't here. */
+	private int find(Place place, int hash) {
+		if (placeIndex == null) {
+			for (int i = 0; i < placeCount; i++) {
+				if (hashes[i] == hash && (places[i] == place || places[i].equals(place))) {
+					return i;
+				}
+			}
+			return -1;
+		}
+		int mask = placeIndex.length - 1;
+		for (int slot = mix(hash) & mask;; slot = (slot + 1) & mask) {
+			int pos = placeIndex[slot] - 1;
+			if (pos < 0) {
+				return -1;
+			}
+			if (hashes[pos] == hash && (places[pos] == place || places[pos].equals(place))) {
+				return pos;
+			}
+		}
+	}
+
+	private void buildIndex() {
+		int size = Integer.highestOneBit(placeCount * 4 - 1) << 1;
+		placeIndex = new int[size];
+		for (int i = 0; i < placeCount; i++) {
+			index(i);
+		}
+	}
+
+	private void index(int pos) {
+		int mask = placeIndex.length - 1;
+		int slot = mix(hashes[pos]) & mask;
+		while (placeIndex[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		placeIndex[slot] = pos + 1;
+	}
+
+	private static int mix(int h) {
+		h = h * 0x9E3779B9;
+		return h ^ (h >>> 16);
 	}
 
 	/** An overide of toString to get a meaningful representation of this PC. */
 	@Override
 	public String toString() {
-		String tmp = this.getMatchText() + "(" + getPlaceConfidenceScore() + "/" + this.scoredPlaces.size() + ")" + "\n";
-		tmp = tmp + "Rules=" + this.rules + "\n";
-		tmp = tmp + "Evidence=" + this.evidence + "\n";
-		sort();
+		String tmp = this.getMatchText() + "(" + getPlaceConfidenceScore() + "/" + placeCount + ")" + "\n";
+		tmp = tmp + "Rules=" + (rules == null ? "[]" : rules) + "\n";
+		tmp = tmp + "Evidence=" + (evidence == null ? "[]" : evidence) + "\n";
+		rank();
 		tmp = tmp + "Places=";
 		for (int i = 0; i < this.rankedPlaces.size(); i++) {
 			tmp = tmp + this.rankedPlaces.get(i) + "=" + this.rankedScores.get(i) + "\n";
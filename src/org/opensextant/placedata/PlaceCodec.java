@@ -0,0 +1,655 @@
+package org.opensextant.placedata;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact, versioned binary encoding of PlaceCandidates (with their Places,
+ * scores, rules and evidence) and of Places, for persisting intermediate
+ * results or passing them between JVMs. Unlike Java serialization nothing is
+ * lost: all of a candidate's state is written.
+ * <p>
+ * Each message is the magic bytes "OSPC", a version byte, the length of the
+ * body and the body. Numbers and offsets in the body are varints; strings and
+ * Places are written the first time they occur and after that by reference,
+ * so the shared values of a document (country codes, the Places of a name
+ * that occurs several times) cost a byte or two. Candidate features are kept
+ * if they are strings, numbers (decoded as Long or Double) or booleans, other
+ * features are dropped. Decoded Places are new objects, not those of the
+ * gazetteer cache.
+ */
+public final class PlaceCodec {
+
+	/** The current version of the encoding. */
+	public static final int VERSION = 1;
+
+	private static final byte[] MAGIC = { 'O', 'S', 'P', 'C' };
+
+	/** The kinds of message. */
+	private static final int CANDIDATES = 1;
+	private static final int PLACES = 2;
+
+	/** Tags of the feature value types. */
+	private static final int NULL_VALUE = 0;
+	private static final int STRING_VALUE = 1;
+	private static final int LONG_VALUE = 2;
+	private static final int DOUBLE_VALUE = 3;
+	private static final int BOOLEAN_VALUE = 4;
+
+	/** Bits of the flags byte of a Geocoord. */
+	private static final int HAS_LATITUDE = 1;
+	private static final int HAS_LONGITUDE = 2;
+
+	private static final PlaceEvidence.Scope[] SCOPES = PlaceEvidence.Scope.values();
+
+	private PlaceCodec() {
+	}
+
+	/**
+	 * Encode PlaceCandidates.
+	 *
+	 * @param candidates
+	 *            the candidates
+	 * @return the encoded bytes
+	 */
+	public static byte[] encode(List<PlaceCandidate> candidates) {
+		Writer w = new Writer();
+		w.candidates(candidates);
+		return w.message(CANDIDATES);
+	}
+
+	/**
+	 * Decode PlaceCandidates encoded by {@link #encode(List)}.
+	 *
+	 * @param bytes
+	 *            the encoded bytes
+	 * @return the candidates
+	 * @throws IOException
+	 *             if the bytes are not a valid message of a known version
+	 */
+	public static List<PlaceCandidate> decode(byte[] bytes) throws IOException {
+		return new Reader(body(bytes, CANDIDATES)).candidates();
+	}
+
+	/**
+	 * Encode Places.
+	 *
+	 * @param places
+	 *            the Places
+	 * @return the encoded bytes
+	 */
+	public static byte[] encodePlaces(List<Place> places) {
+		Writer w = new Writer();
+		w.varint(places.size());
+		for (Place p : places) {
+			w.place(p);
+		}
+		return w.message(PLACES);
+	}
+
+	/**
+	 * Decode Places encoded by {@link #encodePlaces(List)}.
+	 *
+	 * @param bytes
+	 *            the encoded bytes
+	 * @return the Places
+	 * @throws IOException
+	 *             if the bytes are not a valid message of a known version
+	 */
+	public static List<Place> decodePlaces(byte[] bytes) throws IOException {
+		Body body = body(bytes, PLACES);
+		Reader r = new Reader(body);
+		int count = body.varint();
+		List<Place> places = new ArrayList<Place>(count);
+		for (int i = 0; i < count; i++) {
+			places.add(r.place());
+		}
+		return places;
+	}
+
+	/**
+	 * Write PlaceCandidates to a stream; several messages can be written to
+	 * the same stream and read back one at a time.
+	 *
+	 * @param candidates
+	 *            the candidates
+	 * @param out
+	 *            the stream
+	 * @throws IOException
+	 *             if the stream can't be written
+	 */
+	public static void write(List<PlaceCandidate> candidates, OutputStream out) throws IOException {
+		out.write(encode(candidates));
+	}
+
+	/**
+	 * Read the next message of PlaceCandidates from a stream.
+	 *
+	 * @param in
+	 *            the stream
+	 * @return the candidates, or null at the end of the stream
+	 * @throws IOException
+	 *             if the stream can't be read or doesn't hold a valid message
+	 */
+	public static List<PlaceCandidate> read(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		byte[] header = new byte[MAGIC.length + 2];
+		int first = data.read();
+		if (first < 0) {
+			return null;
+		}
+		header[0] = (byte) first;
+		data.readFully(header, 1, header.length - 1);
+
+		// the body length follows the header
+		int length = 0;
+		int lengthBytes = 0;
+		byte[] lengthVarint = new byte[5];
+		for (int shift = 0;; shift += 7) {
+			int b = data.read();
+			if (b < 0) {
+				throw new EOFException("Truncated PlaceCodec message");
+			}
+			if (shift > 28) {
+				throw new IOException("Bad PlaceCodec message length");
+			}
+			lengthVarint[lengthBytes++] = (byte) b;
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+		}
+		byte[] message = new byte[header.length + lengthBytes + length];
+		System.arraycopy(header, 0, message, 0, header.length);
+		System.arraycopy(lengthVarint, 0, message, header.length, lengthBytes);
+		data.readFully(message, header.length + lengthBytes, length);
+		return decode(message);
+	}
+
+	/** Check the header of a message and return a reader over its body. */
+	private static Body body(byte[] bytes, int kind) throws IOException {
+		if (bytes.length < MAGIC.length + 2) {
+			throw new IOException("Not a PlaceCodec message");
+		}
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (bytes[i] != MAGIC[i]) {
+				throw new IOException("Not a PlaceCodec message");
+			}
+		}
+		int version = bytes[MAGIC.length] & 0xFF;
+		if (version < 1 || version > VERSION) {
+			throw new IOException("Unsupported PlaceCodec version " + version);
+		}
+		if ((bytes[MAGIC.length + 1] & 0xFF) != kind) {
+			throw new IOException("Wrong kind of PlaceCodec message " + bytes[MAGIC.length + 1]);
+		}
+		Body body = new Body(bytes, MAGIC.length + 2);
+		int length = body.varint();
+		if (length != bytes.length - body.pos) {
+			throw new IOException("PlaceCodec message length " + length + " doesn't match "
+					+ (bytes.length - body.pos));
+		}
+		return body;
+	}
+
+	/** Encodes into a growable buffer. */
+	private static final class Writer {
+		private byte[] buf = new byte[1024];
+		private int pos;
+		private final Map<String, Integer> strings = new HashMap<String, Integer>();
+		private final Map<Place, Integer> places = new IdentityHashMap<Place, Integer>();
+
+		/** The finished message: header, body length and body. */
+		byte[] message(int kind) {
+			int bodyLength = pos;
+			byte[] length = new byte[5];
+			int lengthBytes = 0;
+			int v = bodyLength;
+			while ((v & ~0x7F) != 0) {
+				length[lengthBytes++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			length[lengthBytes++] = (byte) v;
+
+			byte[] message = new byte[MAGIC.length + 2 + lengthBytes + bodyLength];
+			System.arraycopy(MAGIC, 0, message, 0, MAGIC.length);
+			message[MAGIC.length] = (byte) VERSION;
+			message[MAGIC.length + 1] = (byte) kind;
+			System.arraycopy(length, 0, message, MAGIC.length + 2, lengthBytes);
+			System.arraycopy(buf, 0, message, MAGIC.length + 2 + lengthBytes, bodyLength);
+			return message;
+		}
+
+		void candidates(List<PlaceCandidate> candidates) {
+			varint(candidates.size());
+			for (PlaceCandidate pc : candidates) {
+				candidate(pc);
+			}
+		}
+
+		private void candidate(PlaceCandidate pc) {
+			varlong(pc.getStart());
+			varlong(pc.getEnd() - pc.getStart());
+			string(pc.getType());
+			string(pc.getMatchText());
+
+			Map<String, Object> features = pc.getFeatures();
+			int count = 0;
+			if (features != null) {
+				for (Object value : features.values()) {
+					if (isEncodable(value)) {
+						count++;
+					}
+				}
+			}
+			varint(count);
+			if (count > 0) {
+				for (Map.Entry<String, Object> f : features.entrySet()) {
+					if (isEncodable(f.getValue())) {
+						string(f.getKey());
+						value(f.getValue());
+					}
+				}
+			}
+
+			int placeCount = pc.getPlaceCount();
+			varint(placeCount);
+			for (int i = 0; i < placeCount; i++) {
+				placeRef(pc.placeAt(i));
+				fixed64(Double.doubleToRawLongBits(pc.scoreAt(i)));
+			}
+
+			List<String> rules = pc.getRules();
+			varint(rules.size());
+			for (String rule : rules) {
+				string(rule);
+			}
+			List<Double> confidences = pc.getConfidences();
+			varint(confidences.size());
+			for (Double conf : confidences) {
+				fixed64(Double.doubleToRawLongBits(conf));
+			}
+
+			List<PlaceEvidence> evidence = pc.getEvidence();
+			varint(evidence.size());
+			for (PlaceEvidence ev : evidence) {
+				evidence(ev);
+			}
+		}
+
+		private void evidence(PlaceEvidence ev) {
+			string(ev.getPlaceName());
+			string(ev.getCountryCode());
+			string(ev.getAdmin1());
+			string(ev.getFeatureClass());
+			string(ev.getFeatureCode());
+			string(ev.getRule());
+			varint(ev.getScope() == null ? 0 : ev.getScope().ordinal() + 1);
+			Double weight = ev.getWeight();
+			if (weight == null) {
+				varint(0);
+			} else {
+				varint(1);
+				fixed64(Double.doubleToRawLongBits(weight));
+			}
+			Geocoord geo = ev.getGeocoord();
+			if (geo == null) {
+				varint(0);
+			} else {
+				varint(1);
+				int flags = (geo.latitude != null ? HAS_LATITUDE : 0) | (geo.longitude != null ? HAS_LONGITUDE : 0);
+				varint(flags);
+				if (geo.latitude != null) {
+					fixed64(Double.doubleToRawLongBits(geo.latitude));
+				}
+				if (geo.longitude != null) {
+					fixed64(Double.doubleToRawLongBits(geo.longitude));
+				}
+				string(geo.expression);
+			}
+		}
+
+		/** A Place, by reference if already written. */
+		private void placeRef(Place p) {
+			Integer ref = places.get(p);
+			if (ref != null) {
+				varint(ref + 1);
+				return;
+			}
+			places.put(p, places.size());
+			varint(0);
+			place(p);
+		}
+
+		void place(Place p) {
+			string(p.getPlaceID());
+			string(p.getPlaceName());
+			string(p.getExpandedPlaceName());
+			string(p.getNameType());
+			string(p.getNameTypeSystem());
+			string(p.getCountryCode());
+			string(p.getAdmin1());
+			string(p.getAdmin2());
+			string(p.getFeatureClass());
+			string(p.getFeatureCode());
+			string(p.getSourceNameID());
+			string(p.getSourceFeatureID());
+			string(p.getSource());
+			Double lat = p.getLatitude();
+			Double lon = p.getLongitude();
+			fixed64(Double.doubleToRawLongBits(lat == null ? Double.NaN : lat));
+			fixed64(Double.doubleToRawLongBits(lon == null ? Double.NaN : lon));
+			fixed32(Float.floatToRawIntBits((float) p.getNameBias()));
+			fixed32(Float.floatToRawIntBits((float) p.getIdBias()));
+		}
+
+		private static boolean isEncodable(Object value) {
+			return value == null || value instanceof String || value instanceof Number || value instanceof Boolean;
+		}
+
+		private void value(Object value) {
+			if (value == null) {
+				varint(NULL_VALUE);
+			} else if (value instanceof String) {
+				varint(STRING_VALUE);
+				string((String) value);
+			} else if (value instanceof Long || value instanceof Integer || value instanceof Short
+					|| value instanceof Byte) {
+				varint(LONG_VALUE);
+				long v = ((Number) value).longValue();
+				varlong((v << 1) ^ (v >> 63));
+			} else if (value instanceof Number) {
+				varint(DOUBLE_VALUE);
+				fixed64(Double.doubleToRawLongBits(((Number) value).doubleValue()));
+			} else {
+				varint(BOOLEAN_VALUE);
+				varint((Boolean) value ? 1 : 0);
+			}
+		}
+
+		/** 0 is null, 1 a new string which follows, 2+ a string already written. */
+		private void string(String s) {
+			if (s == null) {
+				varint(0);
+				return;
+			}
+			Integer ref = strings.get(s);
+			if (ref != null) {
+				varint(ref + 2);
+				return;
+			}
+			strings.put(s, strings.size());
+			varint(1);
+			byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+			varint(utf8.length);
+			ensure(utf8.length);
+			System.arraycopy(utf8, 0, buf, pos, utf8.length);
+			pos += utf8.length;
+		}
+
+		void varint(int v) {
+			varlong(v & 0xFFFFFFFFL);
+		}
+
+		private void varlong(long v) {
+			ensure(10);
+			while ((v & ~0x7FL) != 0) {
+				buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buf[pos++] = (byte) v;
+		}
+
+		private void fixed64(long v) {
+			ensure(8);
+			for (int i = 0; i < 8; i++) {
+				buf[pos++] = (byte) v;
+				v >>>= 8;
+			}
+		}
+
+		private void fixed32(int v) {
+			ensure(4);
+			for (int i = 0; i < 4; i++) {
+				buf[pos++] = (byte) v;
+				v >>>= 8;
+			}
+		}
+
+		private void ensure(int n) {
+			if (pos + n > buf.length) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+			}
+		}
+	}
+
+	/** The body of a message being decoded. */
+	private static final class Body {
+		private final byte[] bytes;
+		private int pos;
+
+		Body(byte[] bytes, int pos) {
+			this.bytes = bytes;
+			this.pos = pos;
+		}
+
+		int varint() throws IOException {
+			long v = varlong();
+			if (v > Integer.MAX_VALUE) {
+				throw new IOException("Bad PlaceCodec varint " + v);
+			}
+			return (int) v;
+		}
+
+		long varlong() throws IOException {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = next();
+				v |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return v;
+				}
+			}
+			throw new IOException("Bad PlaceCodec varint");
+		}
+
+		long fixed64() throws IOException {
+			long v = 0;
+			for (int i = 0; i < 8; i++) {
+				v |= (long) (next() & 0xFF) << (8 * i);
+			}
+			return v;
+		}
+
+		int fixed32() throws IOException {
+			int v = 0;
+			for (int i = 0; i < 4; i++) {
+				v |= (next() & 0xFF) << (8 * i);
+			}
+			return v;
+		}
+
+		String utf8(int length) throws IOException {
+			if (length < 0 || pos + length > bytes.length) {
+				throw new EOFException("Truncated PlaceCodec message");
+			}
+			String s = new String(bytes, pos, length, StandardCharsets.UTF_8);
+			pos += length;
+			return s;
+		}
+
+		private byte next() throws IOException {
+			if (pos >= bytes.length) {
+				throw new EOFException("Truncated PlaceCodec message");
+			}
+			return bytes[pos++];
+		}
+	}
+
+	/** Decodes a message body. */
+	private static final class Reader {
+		private final Body in;
+		private final List<String> strings = new ArrayList<String>();
+		private final List<Place> places = new ArrayList<Place>();
+
+		Reader(Body in) {
+			this.in = in;
+		}
+
+		List<PlaceCandidate> candidates() throws IOException {
+			int count = in.varint();
+			List<PlaceCandidate> candidates = new ArrayList<PlaceCandidate>(Math.min(count, 1024));
+			for (int i = 0; i < count; i++) {
+				candidates.add(candidate());
+			}
+			return candidates;
+		}
+
+		private PlaceCandidate candidate() throws IOException {
+			PlaceCandidate pc = new PlaceCandidate();
+			long start = in.varlong();
+			pc.setStart(start);
+			pc.setEnd(start + in.varlong());
+			pc.setType(string());
+			pc.setMatchText(string());
+
+			int features = in.varint();
+			for (int i = 0; i < features; i++) {
+				String key = string();
+				pc.getFeatures().put(key, value());
+			}
+
+			int placeCount = in.varint();
+			for (int i = 0; i < placeCount; i++) {
+				Place p = placeRef();
+				pc.addPlaceWithScore(p, Double.longBitsToDouble(in.fixed64()));
+			}
+
+			int ruleCount = in.varint();
+			for (int i = 0; i < ruleCount; i++) {
+				pc.getRules().add(string());
+			}
+			int confCount = in.varint();
+			for (int i = 0; i < confCount; i++) {
+				pc.getConfidences().add(Double.longBitsToDouble(in.fixed64()));
+			}
+
+			int evidenceCount = in.varint();
+			for (int i = 0; i < evidenceCount; i++) {
+				pc.addEvidence(evidence());
+			}
+			return pc;
+		}
+
+		private PlaceEvidence evidence() throws IOException {
+			PlaceEvidence ev = new PlaceEvidence();
+			ev.setPlaceName(string());
+			ev.setCountryCode(string());
+			ev.setAdmin1(string());
+			ev.setFeatureClass(string());
+			ev.setFeatureCode(string());
+			ev.setRule(string());
+			int scope = in.varint();
+			if (scope > SCOPES.length) {
+				throw new IOException("Bad PlaceCodec evidence scope " + scope);
+			}
+			ev.setScope(scope == 0 ? null : SCOPES[scope - 1]);
+			if (in.varint() != 0) {
+				ev.setWeight(Double.longBitsToDouble(in.fixed64()));
+			}
+			if (in.varint() != 0) {
+				Geocoord geo = new Geocoord();
+				int flags = in.varint();
+				if ((flags & HAS_LATITUDE) != 0) {
+					geo.setLatitude(Double.longBitsToDouble(in.fixed64()));
+				}
+				if ((flags & HAS_LONGITUDE) != 0) {
+					geo.setLongitude(Double.longBitsToDouble(in.fixed64()));
+				}
+				geo.expression = string();
+				ev.setGeocoord(geo);
+			}
+			return ev;
+		}
+
+		private Place placeRef() throws IOException {
+			int ref = in.varint();
+			if (ref == 0) {
+				Place p = place();
+				places.add(p);
+				return p;
+			}
+			if (ref > places.size()) {
+				throw new IOException("Bad PlaceCodec place reference " + ref);
+			}
+			return places.get(ref - 1);
+		}
+
+		Place place() throws IOException {
+			Place p = new Place(string(), string());
+			p.setExpandedPlaceName(string());
+			p.setNameType(string());
+			p.setNameTypeSystem(string());
+			p.setCountryCode(string());
+			p.setAdmin1(string());
+			p.setAdmin2(string());
+			p.setFeatureClass(string());
+			p.setFeatureCode(string());
+			p.setSourceNameID(string());
+			p.setSourceFeatureID(string());
+			p.setSource(string());
+			double lat = Double.longBitsToDouble(in.fixed64());
+			double lon = Double.longBitsToDouble(in.fixed64());
+			p.setLatitude(Double.isNaN(lat) ? null : lat);
+			p.setLongitude(Double.isNaN(lon) ? null : lon);
+			p.setNameBias(Float.intBitsToFloat(in.fixed32()));
+			p.setIdBias(Float.intBitsToFloat(in.fixed32()));
+			return p;
+		}
+
+		private Object value() throws IOException {
+			int tag = in.varint();
+			switch (tag) {
+			case NULL_VALUE:
+				return null;
+			case STRING_VALUE:
+				return string();
+			case LONG_VALUE:
+				long v = in.varlong();
+				return (v >>> 1) ^ -(v & 1);
+			case DOUBLE_VALUE:
+				return Double.longBitsToDouble(in.fixed64());
+			case BOOLEAN_VALUE:
+				return in.varint() != 0;
+			default:
+				throw new IOException("Bad PlaceCodec feature type " + tag);
+			}
+		}
+
+		private String string() throws IOException {
+			int ref = in.varint();
+			if (ref == 0) {
+				return null;
+			}
+			if (ref == 1) {
+				String s = in.utf8(in.varint());
+				strings.add(s);
+				return s;
+			}
+			if (ref - 2 >= strings.size()) {
+				throw new IOException("Bad PlaceCodec string reference " + ref);
+			}
+			return strings.get(ref - 2);
+		}
+	}
+}
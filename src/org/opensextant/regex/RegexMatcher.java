@@ -8,9 +8,11 @@ import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -41,6 +43,8 @@ public class RegexMatcher {
 
 	/** Has this mather been sucessfully initialized. */
 	boolean isInited;
+	/** Skip rules which can't match a text, and search from where they could. */
+	boolean prefilterEnabled = true;
 	/** Log object. */
 	private static final Logger LOGGER = LoggerFactory.getLogger(RegexMatcher.class);
 
@@ -62,11 +66,33 @@ public class RegexMatcher {
 			return matches;
 		}
 
+		// the characters in the input, to rule out rules which can't match
+		BitSet present = null;
+		if (prefilterEnabled) {
+			present = new BitSet(128);
+			RegexPrefilter.charactersOf(input, present);
+		}
+
 		for (RegexRule r : rules) {
 			String t = r.getEntityType();
 			Normalizer normer = r.getNormalizer();
 			// Do the matching, looping over the rules
 			Matcher matcher = r.getPattern().matcher(input);
+			RegexPrefilter filter = r.getPrefilter();
+			if (present != null && filter != null) {
+				boolean skip = !filter.mayMatch(present);
+				r.countEvaluated(skip);
+				if (skip) {
+					continue;
+				}
+				// no match starts before this, lookarounds still see the
+				// whole input
+				matcher.useTransparentBounds(true);
+				matcher.useAnchoringBounds(false);
+				matcher.region(filter.firstPossibleStart(input), input.length());
+			} else {
+				r.countEvaluated(false);
+			}
 			while (matcher.find()) {
 				// for each hit from the regex, create a RegexAnnotation
 				RegexAnnotation tmp = new RegexAnnotation(t, matcher.group(0), matcher.start(), matcher.end());
@@ -216,6 +242,10 @@ public class RegexMatcher {
 			// it
 			r.setModifedPatternString(tmpRulePattern);
 			r.setPattern(Pattern.compile(r.getModifedPatternString()));
+			r.setPrefilter(RegexPrefilter.of(r.getModifedPatternString()));
+			if (r.getPrefilter() == null) {
+				LOGGER.debug("No prefilter for rule " + r.getRuleFamily() + "-" + r.getRuleName());
+			}
 			// resolve and attach the normalizer object
 			if (normalizerClassnames.containsKey(r.getEntityType())) {
 				String normClassName = normalizerClassnames.get(r.getEntityType());
@@ -293,4 +323,43 @@ public class RegexMatcher {
 		return types;
 	}
 
+	public boolean isPrefilterEnabled() {
+		return prefilterEnabled;
+	}
+
+	/**
+	 * Whether to skip rules which can't match a text. On by default, the
+	 * matches found are the same either way.
+	 */
+	public void setPrefilterEnabled(boolean prefilterEnabled) {
+		this.prefilterEnabled = prefilterEnabled;
+	}
+
+	/**
+	 * A report of how often each rule was skipped because the text couldn't
+	 * match it, one line per rule.
+	 */
+	public String getSkipReport() {
+		StringBuilder report = new StringBuilder();
+		long evaluated = 0;
+		long skipped = 0;
+		for (RegexRule r : rules) {
+			evaluated += r.getEvaluatedCount();
+			skipped += r.getSkippedCount();
+			report.append(String.format(Locale.US, "%-12s %-30s %8d %8d %6.1f%%%s%n", r.getEntityType(),
+					r.getRuleFamily() + "-" + r.getRuleName(), r.getEvaluatedCount(), r.getSkippedCount(),
+					100.0 * r.getSkipRate(), r.isPrefiltered() ? "" : " (not prefiltered)"));
+		}
+		report.append(String.format(Locale.US, "%-12s %-30s %8d %8d %6.1f%%%n", "", "all rules", evaluated, skipped,
+				evaluated == 0 ? 0.0 : 100.0 * skipped / evaluated));
+		return report.toString();
+	}
+
+	/** Zero the per rule evaluated and skipped counts. */
+	public void resetSkipCounts() {
+		for (RegexRule r : rules) {
+			r.resetCounts();
+		}
+	}
+
 }
@@ -0,0 +1,617 @@
+package org.opensextant.regex;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A cheap test of whether a rule's pattern can match a text, worked out from
+ * the pattern when the rule is loaded. The pattern is analyzed for the
+ * characters a match can start with and for sets of characters of which a
+ * match must contain at least one (e.g. a digit). If the text doesn't contain
+ * a character of every such set, the rule can't match and needn't be run; if
+ * it does, the search can start at the first character a match can start
+ * with.
+ * <p>
+ * The analysis is conservative: any construct it doesn't understand (property
+ * classes, class intersections, classes nested in a negated class,
+ * backreferences, comments mode ...) makes the rule run on every text, as it
+ * did before.
+ */
+final class RegexPrefilter {
+
+	/** The number of chars; supplementary characters count as surrogates. */
+	private static final int CHARS = Character.MAX_VALUE + 1;
+
+	/** The characters a match can start with. */
+	private final BitSet first;
+	/** A match contains at least one character of each of these. */
+	private final List<BitSet> required;
+
+	private RegexPrefilter(BitSet first, List<BitSet> required) {
+		this.first = first;
+		this.required = required;
+	}
+
+	/**
+	 * Analyze a pattern.
+	 *
+	 * @param regex
+	 *            the pattern, as given to Pattern.compile() without flags
+	 * @return the prefilter, or null if the pattern can't be filtered
+	 */
+	static RegexPrefilter of(String regex) {
+		Parser parser = new Parser(regex);
+		Info info;
+		try {
+			info = parser.alternation();
+			if (parser.pos != regex.length()) {
+				return null;
+			}
+		} catch (Unsupported e) {
+			return null;
+		}
+		if (info.nullable) {
+			// can match the empty string, so can match anything
+			return null;
+		}
+		List<BitSet> required = new ArrayList<BitSet>();
+		for (BitSet set : info.required) {
+			if (parser.caseInsensitive) {
+				set = caseFold(set);
+			}
+			// a set of every character tells us nothing
+			if (set.cardinality() < CHARS) {
+				required.add(set);
+			}
+		}
+		BitSet first = parser.caseInsensitive ? caseFold(info.first) : info.first;
+		return new RegexPrefilter(first, required);
+	}
+
+	/**
+	 * Can a match be found in a text containing these characters?
+	 *
+	 * @param present
+	 *            the characters in the text
+	 */
+	boolean mayMatch(BitSet present) {
+		for (BitSet set : required) {
+			if (!set.intersects(present)) {
+				return false;
+			}
+		}
+		return first.intersects(present);
+	}
+
+	/**
+	 * The first position in a text at which a match could start.
+	 *
+	 * @return the position, or the length of the text if none
+	 */
+	int firstPossibleStart(CharSequence text) {
+		int n = text.length();
+		for (int i = 0; i < n; i++) {
+			if (first.get(text.charAt(i))) {
+				return i;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * The characters in a text.
+	 *
+	 * @param text
+	 *            the text
+	 * @param present
+	 *            cleared and filled with the text's characters
+	 */
+	static void charactersOf(CharSequence text, BitSet present) {
+		present.clear();
+		int n = text.length();
+		for (int i = 0; i < n; i++) {
+			present.set(text.charAt(i));
+		}
+	}
+
+	/** Add the other cases of any letters. */
+	private static BitSet caseFold(BitSet set) {
+		BitSet folded = (BitSet) set.clone();
+		for (int c = set.nextSetBit(0); c >= 0; c = set.nextSetBit(c + 1)) {
+			if (Character.isLetter(c)) {
+				folded.set(Character.toUpperCase(c));
+				folded.set(Character.toLowerCase(c));
+				folded.set(Character.toTitleCase(c));
+			}
+		}
+		return folded;
+	}
+
+	/** What is known about (part of) a pattern. */
+	private static final class Info {
+		/** The characters a non-empty match can start with. */
+		private final BitSet first;
+		/** Can it match the empty string? */
+		private final boolean nullable;
+		/** Sets of which every match contains at least one character. */
+		private final List<BitSet> required;
+
+		Info(BitSet first, boolean nullable, List<BitSet> required) {
+			this.first = first;
+			this.nullable = nullable;
+			this.required = required;
+		}
+
+		/** Something which consumes one character from a set. */
+		static Info of(BitSet chars) {
+			List<BitSet> required = new ArrayList<BitSet>(1);
+			required.add(chars);
+			return new Info(chars, false, required);
+		}
+
+		/** Something which consumes nothing, e.g. an anchor. */
+		static Info empty() {
+			return new Info(new BitSet(), true, new ArrayList<BitSet>(0));
+		}
+
+		/** Something which could match anything, including nothing. */
+		static Info any() {
+			return new Info(all(), true, new ArrayList<BitSet>(0));
+		}
+
+		/** The same, but optional. */
+		Info optional() {
+			return new Info(first, true, new ArrayList<BitSet>(0));
+		}
+	}
+
+	/** A construct the analysis doesn't handle. */
+	private static final class Unsupported extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/** A recursive descent parser of (the common subset of) Java regex. */
+	private static final class Parser {
+		private final String regex;
+		private int pos;
+		private boolean caseInsensitive;
+
+		Parser(String regex) {
+			this.regex = regex;
+		}
+
+		/** a|b|... */
+		Info alternation() throws Unsupported {
+			Info info = sequence();
+			while (pos < regex.length() && regex.charAt(pos) == '|') {
+				pos++;
+				Info next = sequence();
+				BitSet first = (BitSet) info.first.clone();
+				first.or(next.first);
+				boolean nullable = info.nullable || next.nullable;
+				List<BitSet> required = new ArrayList<BitSet>(1);
+				if (!nullable) {
+					required.add(first);
+				}
+				info = new Info(first, nullable, required);
+			}
+			return info;
+		}
+
+		/** abc... */
+		private Info sequence() throws Unsupported {
+			BitSet first = new BitSet();
+			boolean nullable = true;
+			List<BitSet> required = new ArrayList<BitSet>();
+			while (pos < regex.length() && regex.charAt(pos) != '|' && regex.charAt(pos) != ')') {
+				Info element = quantified();
+				if (nullable) {
+					first.or(element.first);
+				}
+				nullable = nullable && element.nullable;
+				required.addAll(element.required);
+			}
+			return new Info(first, nullable, required);
+		}
+
+		/** An atom and any quantifier. */
+		private Info quantified() throws Unsupported {
+			Info atom = atom();
+			if (pos >= regex.length()) {
+				return atom;
+			}
+			char c = regex.charAt(pos);
+			boolean optional;
+			if (c == '*' || c == '?') {
+				pos++;
+				optional = true;
+			} else if (c == '+') {
+				pos++;
+				optional = false;
+			} else if (c == '{' && isRepetition()) {
+				int close = regex.indexOf('}', pos);
+				String min = regex.substring(pos + 1, close).split(",", -1)[0].trim();
+				optional = Integer.parseInt(min) == 0;
+				pos = close + 1;
+			} else {
+				return atom;
+			}
+			// lazy or possessive
+			if (pos < regex.length() && (regex.charAt(pos) == '?' || regex.charAt(pos) == '+')) {
+				pos++;
+			}
+			return optional ? atom.optional() : atom;
+		}
+
+		private boolean isRepetition() {
+			int close = regex.indexOf('}', pos);
+			return close > pos + 1 && regex.substring(pos + 1, close).matches("\\d+(,\\d*)?");
+		}
+
+		private Info atom() throws Unsupported {
+			char c = regex.charAt(pos);
+			switch (c) {
+			case '(':
+				return group();
+			case '[':
+				return Info.of(charClass());
+			case '.':
+				pos++;
+				return Info.of(all());
+			case '^':
+			case '$':
+				pos++;
+				return Info.empty();
+			case '\\':
+				return escape();
+			case '*':
+			case '+':
+			case '?':
+				// a dangling quantifier, Pattern would reject it
+				throw new Unsupported();
+			default:
+				int cp = regex.codePointAt(pos);
+				pos += Character.charCount(cp);
+				return Info.of(single(cp));
+			}
+		}
+
+		private Info group() throws Unsupported {
+			pos++;
+			boolean zeroWidth = false;
+			if (regex.startsWith("?", pos)) {
+				if (regex.startsWith("?:", pos) || regex.startsWith("?>", pos)) {
+					pos += 2;
+				} else if (regex.startsWith("?=", pos) || regex.startsWith("?!", pos)) {
+					pos += 2;
+					zeroWidth = true;
+				} else if (regex.startsWith("?<=", pos) || regex.startsWith("?<!", pos)) {
+					pos += 3;
+					zeroWidth = true;
+				} else if (regex.startsWith("?<", pos)) {
+					// named group
+					int close = regex.indexOf('>', pos);
+					if (close < 0) {
+						throw new Unsupported();
+					}
+					pos = close + 1;
+				} else {
+					// flags, (?idmsux-idmsux) or (?idmsux-idmsux:X)
+					int p = pos + 1;
+					boolean on = true;
+					while (p < regex.length() && regex.charAt(p) != ')' && regex.charAt(p) != ':') {
+						char f = regex.charAt(p);
+						if (f == '-') {
+							on = false;
+						} else if (f == 'i') {
+							// scoped, but assume it applies to all the pattern
+							caseInsensitive = caseInsensitive || on;
+						} else if (f == 'x' || f == 'u' || f == 'U') {
+							// changes how the pattern or classes are read
+							if (on) {
+								throw new Unsupported();
+							}
+						} else if ("dms".indexOf(f) < 0) {
+							throw new Unsupported();
+						}
+						p++;
+					}
+					if (p >= regex.length()) {
+						throw new Unsupported();
+					}
+					if (regex.charAt(p) == ')') {
+						pos = p + 1;
+						return Info.empty();
+					}
+					pos = p + 1;
+				}
+			}
+			Info inner = alternation();
+			if (pos >= regex.length() || regex.charAt(pos) != ')') {
+				throw new Unsupported();
+			}
+			pos++;
+			return zeroWidth ? Info.empty() : inner;
+		}
+
+		private Info escape() throws Unsupported {
+			pos++;
+			if (pos >= regex.length()) {
+				throw new Unsupported();
+			}
+			char c = regex.charAt(pos);
+			switch (c) {
+			case 'b':
+			case 'B':
+			case 'A':
+			case 'z':
+			case 'Z':
+			case 'G':
+				pos++;
+				return Info.empty();
+			case 'Q':
+				int end = regex.indexOf("\\E", pos);
+				String quoted = end < 0 ? regex.substring(pos + 1) : regex.substring(pos + 1, end);
+				pos = end < 0 ? regex.length() : end + 2;
+				if (quoted.isEmpty()) {
+					return Info.empty();
+				}
+				List<BitSet> required = new ArrayList<BitSet>();
+				for (int i = 0; i < quoted.length(); i++) {
+					required.add(single(quoted.charAt(i)));
+				}
+				return new Info(single(quoted.codePointAt(0)), false, required);
+			case 'k':
+			case 'R':
+			case 'X':
+				// backreference or multi-char sequences
+				throw new Unsupported();
+			default:
+				if (c >= '1' && c <= '9') {
+					throw new Unsupported();
+				}
+				return Info.of(escapedChars());
+			}
+		}
+
+		/** [...] */
+		private BitSet charClass() throws Unsupported {
+			pos++;
+			boolean negated = false;
+			if (pos < regex.length() && regex.charAt(pos) == '^') {
+				negated = true;
+				pos++;
+			}
+			BitSet set = new BitSet();
+			boolean firstItem = true;
+			while (true) {
+				if (pos >= regex.length()) {
+					throw new Unsupported();
+				}
+				char c = regex.charAt(pos);
+				if (c == ']' && !firstItem) {
+					pos++;
+					break;
+				}
+				firstItem = false;
+				if (c == '[') {
+					// on Java 8 [^a[b]] is [^a] union [b], not the negated union
+					if (negated) {
+						throw new Unsupported();
+					}
+					set.or(charClass());
+					continue;
+				}
+				if (c == '&' && regex.startsWith("&&", pos)) {
+					throw new Unsupported();
+				}
+				int low;
+				if (c == '\\') {
+					pos++;
+					if (pos >= regex.length()) {
+						throw new Unsupported();
+					}
+					char e = regex.charAt(pos);
+					if ("dDsSwWhHvVpP".indexOf(e) >= 0) {
+						set.or(escapedChars());
+						continue;
+					}
+					if (e == 'Q') {
+						throw new Unsupported();
+					}
+					low = escapedChar();
+				} else {
+					low = regex.codePointAt(pos);
+					pos += Character.charCount(low);
+				}
+				// a range?
+				if (pos + 1 < regex.length() && regex.charAt(pos) == '-' && regex.charAt(pos + 1) != ']') {
+					pos++;
+					int high;
+					if (regex.charAt(pos) == '\\') {
+						pos++;
+						high = escapedChar();
+					} else if (regex.charAt(pos) == '[') {
+						throw new Unsupported();
+					} else {
+						high = regex.codePointAt(pos);
+						pos += Character.charCount(high);
+					}
+					if (high < low) {
+						throw new Unsupported();
+					}
+					addRange(set, low, high);
+				} else {
+					set.or(single(low));
+				}
+			}
+			if (negated) {
+				set.flip(0, CHARS);
+			}
+			return set;
+		}
+
+		/** The characters of the escape at pos (after the backslash). */
+		private BitSet escapedChars() throws Unsupported {
+			char c = regex.charAt(pos);
+			BitSet set = new BitSet();
+			switch (c) {
+			case 'd':
+			case 'D':
+				set.set('0', '9' + 1);
+				break;
+			case 's':
+			case 'S':
+				set.set(' ');
+				set.set('\t');
+				set.set('\n');
+				set.set(0x0B);
+				set.set('\f');
+				set.set('\r');
+				break;
+			case 'w':
+			case 'W':
+				set.set('a', 'z' + 1);
+				set.set('A', 'Z' + 1);
+				set.set('0', '9' + 1);
+				set.set('_');
+				break;
+			case 'h':
+			case 'H':
+				set.set(' ');
+				set.set('\t');
+				set.set(0xA0);
+				set.set(0x1680);
+				set.set(0x180e);
+				set.set(0x2000, 0x200a + 1);
+				set.set(0x202f);
+				set.set(0x205f);
+				set.set(0x3000);
+				break;
+			case 'v':
+			case 'V':
+				set.set('\n');
+				set.set(0x0B);
+				set.set('\f');
+				set.set('\r');
+				set.set(0x85);
+				set.set(0x2028);
+				set.set(0x2029);
+				break;
+			case 'p':
+			case 'P':
+				// unicode properties, not worth modelling
+				throw new Unsupported();
+			default:
+				return single(escapedChar());
+			}
+			pos++;
+			if (Character.isUpperCase(c)) {
+				set.flip(0, CHARS);
+			}
+			return set;
+		}
+
+		/** The code point of a single character escape at pos. */
+		private int escapedChar() throws Unsupported {
+			char c = regex.charAt(pos);
+			pos++;
+			switch (c) {
+			case 't':
+				return '\t';
+			case 'n':
+				return '\n';
+			case 'r':
+				return '\r';
+			case 'f':
+				return '\f';
+			case 'a':
+				return 0x07;
+			case 'e':
+				return 0x1B;
+			case '0':
+				int octal = 0;
+				int digits = 0;
+				while (pos < regex.length() && digits < 3 && regex.charAt(pos) >= '0' && regex.charAt(pos) <= '7') {
+					octal = octal * 8 + (regex.charAt(pos) - '0');
+					pos++;
+					digits++;
+				}
+				if (digits == 0 || octal > 0377) {
+					throw new Unsupported();
+				}
+				return octal;
+			case 'x':
+				if (pos < regex.length() && regex.charAt(pos) == '{') {
+					int close = regex.indexOf('}', pos);
+					if (close < 0) {
+						throw new Unsupported();
+					}
+					int cp = hex(pos + 1, close);
+					pos = close + 1;
+					return cp;
+				}
+				int x = hex(pos, pos + 2);
+				pos += 2;
+				return x;
+			case 'u':
+				int u = hex(pos, pos + 4);
+				pos += 4;
+				return u;
+			case 'c':
+				if (pos >= regex.length()) {
+					throw new Unsupported();
+				}
+				return regex.charAt(pos++) ^ 64;
+			default:
+				if (Character.isLetterOrDigit(c)) {
+					// an escape we don't know
+					throw new Unsupported();
+				}
+				return c;
+			}
+		}
+
+		private int hex(int from, int to) throws Unsupported {
+			if (to > regex.length() || to <= from) {
+				throw new Unsupported();
+			}
+			try {
+				int cp = Integer.parseInt(regex.substring(from, to), 16);
+				if (cp > Character.MAX_CODE_POINT) {
+					throw new Unsupported();
+				}
+				return cp;
+			} catch (NumberFormatException e) {
+				throw new Unsupported();
+			}
+		}
+	}
+
+	/** The set holding just one character (the high surrogate if supplementary). */
+	private static BitSet single(int cp) {
+		BitSet set = new BitSet();
+		set.set(cp < CHARS ? cp : Character.highSurrogate(cp));
+		return set;
+	}
+
+	private static void addRange(BitSet set, int low, int high) {
+		if (high < CHARS) {
+			set.set(low, high + 1);
+			return;
+		}
+		// supplementary characters are found by their high surrogates
+		if (low < CHARS) {
+			set.set(low, CHARS);
+			low = CHARS;
+		}
+		set.set(Character.highSurrogate(low), Character.highSurrogate(high) + 1);
+	}
+
+	private static BitSet all() {
+		BitSet set = new BitSet(CHARS);
+		set.set(0, CHARS);
+		return set;
+	}
+}
@@ -2,6 +2,7 @@ package org.opensextant.regex;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 public class RegexRule {
@@ -14,6 +15,11 @@ public class RegexRule {
 	private Pattern pattern;
 	private Normalizer normalizer;
 	private Map<Integer, String> elementMap = new HashMap<Integer, String>();
+	/** The cheap test of whether the pattern can match a text, null if none. */
+	private RegexPrefilter prefilter;
+	/** The number of texts this rule was matched against, and skipped. */
+	private final AtomicLong evaluatedCount = new AtomicLong();
+	private final AtomicLong skippedCount = new AtomicLong();
 
 	public String getEntityType() {
 		return entityType;
@@ -79,6 +85,47 @@ public class RegexRule {
 		this.elementMap = elementMap;
 	}
 
+	RegexPrefilter getPrefilter() {
+		return prefilter;
+	}
+
+	void setPrefilter(RegexPrefilter prefilter) {
+		this.prefilter = prefilter;
+	}
+
+	/** Can texts be checked for this rule without running its pattern? */
+	public boolean isPrefiltered() {
+		return prefilter != null;
+	}
+
+	/** The number of texts this rule has been matched against. */
+	public long getEvaluatedCount() {
+		return evaluatedCount.get();
+	}
+
+	/** The number of those texts skipped because the rule couldn't match. */
+	public long getSkippedCount() {
+		return skippedCount.get();
+	}
+
+	/** The fraction of texts skipped, 0 if none evaluated. */
+	public double getSkipRate() {
+		long evaluated = evaluatedCount.get();
+		return evaluated == 0 ? 0.0 : (double) skippedCount.get() / evaluated;
+	}
+
+	void countEvaluated(boolean skipped) {
+		evaluatedCount.incrementAndGet();
+		if (skipped) {
+			skippedCount.incrementAndGet();
+		}
+	}
+
+	public void resetCounts() {
+		evaluatedCount.set(0);
+		skippedCount.set(0);
+	}
+
 	public String getTaxo() {
 		return taxo;
 	}
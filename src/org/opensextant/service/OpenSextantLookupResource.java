@@ -9,6 +9,7 @@ import org.opensextant.placedata.Place;
 import org.restlet.Request;
 import org.restlet.data.MediaType;
 import org.restlet.data.Reference;
+import org.restlet.data.Status;
 import org.restlet.ext.jackson.JacksonRepresentation;
 import org.restlet.representation.Representation;
 import org.restlet.representation.StringRepresentation;
@@ -35,7 +36,6 @@ public class OpenSextantLookupResource extends ServerResource {
 		String country = (String) attrs.get("country");
 		String rawQuery = (String) attrs.get("query");
 
-		PlacenameSearcher s = MatcherFactory.getSearcher();
 		String query;
 
 		if (rawQuery == null) {
@@ -47,7 +47,18 @@ public class OpenSextantLookupResource extends ServerResource {
 			query = Reference.decode(rawQuery);
 		}
 
-		List<Place> placesFound = s.searchByQueryString(query);
+		// borrow a searcher rather than leak a new one on every request
+		PlacenameSearcher s = MatcherFactory.borrowSearcher();
+		if (s == null) {
+			setStatus(Status.SERVER_ERROR_SERVICE_UNAVAILABLE);
+			return new StringRepresentation("Server busy, no searcher available");
+		}
+		List<Place> placesFound;
+		try {
+			placesFound = s.searchByQueryString(query);
+		} finally {
+			s.cleanup();
+		}
 		LOGGER.info("Found " + placesFound.size() + " places");
 
 		if ("json".equalsIgnoreCase(format)) {
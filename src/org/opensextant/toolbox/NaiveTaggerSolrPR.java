@@ -23,9 +23,13 @@ package org.opensextant.toolbox;
 
 import java.util.List;
 
+import org.opensextant.matching.CombinedMatcher;
+import org.opensextant.matching.CombinedMatches;
 import org.opensextant.matching.MatcherFactory;
 import org.opensextant.matching.PlacenameMatcher;
+import org.opensextant.matching.VocabMatcher;
 import org.opensextant.placedata.PlaceCandidate;
+import org.opensextant.vocab.VocabMatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -59,6 +63,7 @@ public class NaiveTaggerSolrPR extends AbstractLanguageAnalyser implements Proce
 	// Log object
 	private static final Logger LOGGER = LoggerFactory.getLogger(NaiveTaggerSolrPR.class);
 	private transient PlacenameMatcher matcher;
+	private transient CombinedMatcher combinedMatcher;
 	private String outputASName;
 	private String annotationType;
 
@@ -70,6 +75,9 @@ public class NaiveTaggerSolrPR extends AbstractLanguageAnalyser implements Proce
 	// The parameters passed in by the user
 	String inputASName; // The name of the input AnnotationSet
 	Boolean tagAbbreviations; // tag placenames which are abreviations or codes
+	Integer chunkSize; // documents larger than this are tagged in parallel chunks
+	Boolean tagVocabulary; // also tag the vocabulary, in the same pass
+	String vocabAnnotationType; // annotation type of the vocabulary matches
 	// TODO expose calibrate and calibrateScore as PR parameters
 	// to force all confidences to calibrateScore for calibration
 	boolean calibrate = false;
@@ -117,12 +125,22 @@ public class NaiveTaggerSolrPR extends AbstractLanguageAnalyser implements Proce
 			return this;
 		}
 
-		matcher = MatcherFactory.getMatcher();
+		// all duplicates of this PR with the same options share one matcher
+		int chunk = chunkSize == null ? 0 : chunkSize;
+		matcher = MatcherFactory.getSharedMatcher(Boolean.TRUE.equals(tagAbbreviations), chunk);
 		if (matcher == null) {
 			LOGGER.error("Could not get a matcher from MatcherFactory. Not configured?");
 			return this;
 		}
-		matcher.tagAbbreviations(tagAbbreviations);
+
+		if (Boolean.TRUE.equals(tagVocabulary)) {
+			VocabMatcher vocabMatcher = MatcherFactory.getSharedVocabMatcher();
+			if (vocabMatcher == null) {
+				LOGGER.error("Could not get a vocabulary matcher from MatcherFactory. Not configured?");
+				return this;
+			}
+			combinedMatcher = new CombinedMatcher(matcher, vocabMatcher);
+		}
 		return this;
 	}
 
@@ -132,7 +150,9 @@ public class NaiveTaggerSolrPR extends AbstractLanguageAnalyser implements Proce
 	@Override
 	public void cleanup() {
 		super.cleanup();
-		if (matcher != null) {
+		if (combinedMatcher != null) {
+			combinedMatcher.cleanup();
+		} else if (matcher != null) {
 			matcher.cleanup();
 		}
 	}
@@ -146,8 +166,15 @@ public class NaiveTaggerSolrPR extends AbstractLanguageAnalyser implements Proce
 			throw new IllegalStateException("This PR hasn't been init'ed!");
 		}
 		List<PlaceCandidate> matches = null;
+		List<VocabMatch> vocabMatches = null;
 		try {
-			matches = matcher.matchText(document.getContent().toString(), document.getName());
+			if (combinedMatcher != null) {
+				CombinedMatches both = combinedMatcher.matchText(document.getContent().toString(), document.getName());
+				matches = both.getPlaceCandidates();
+				vocabMatches = both.getVocabMatches();
+			} else {
+				matches = matcher.matchText(document.getContent().toString(), document.getName());
+			}
 		} catch (Exception err) {
 			LOGGER.error("Error when tagging document " + document.getName(), err);
 			return;
@@ -169,6 +196,19 @@ public class NaiveTaggerSolrPR extends AbstractLanguageAnalyser implements Proce
 				LOGGER.error("Error when adding PlaceCandidate to document in " + document.getName(), offsetErr);
 			}
 		}
+
+		if (vocabMatches != null) {
+			for (VocabMatch vm : vocabMatches) {
+				FeatureMap feats = Factory.newFeatureMap();
+				feats.put("string", vm.getMatchText());
+				feats.put("vocabMatch", vm);
+				try {
+					annotSet.add(vm.getStart(), vm.getEnd(), vocabAnnotationType, feats);
+				} catch (InvalidOffsetException offsetErr) {
+					LOGGER.error("Error when adding VocabMatch to document in " + document.getName(), offsetErr);
+				}
+			}
+		}
 	}
 
 	/**
@@ -241,4 +281,35 @@ public class NaiveTaggerSolrPR extends AbstractLanguageAnalyser implements Proce
 	public void setTagAbbreviations(Boolean tagAbbreviations) {
 		this.tagAbbreviations = tagAbbreviations;
 	}
+
+	public Integer getChunkSize() {
+		return chunkSize;
+	}
+
+	@Optional
+	@CreoleParameter(defaultValue = "0", comment = "Documents longer than this are tagged in parallel chunks, 0 = never")
+	public void setChunkSize(Integer chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	public Boolean getTagVocabulary() {
+		return tagVocabulary;
+	}
+
+	@Optional
+	@CreoleParameter(defaultValue = "false", comment = "Also tag the vocabulary, at the same time as the gazetteer")
+	public void setTagVocabulary(Boolean tagVocabulary) {
+		this.tagVocabulary = tagVocabulary;
+	}
+
+	public String getVocabAnnotationType() {
+		return vocabAnnotationType;
+	}
+
+	@Optional
+	@RunTime
+	@CreoleParameter(defaultValue = "vocabmatch")
+	public void setVocabAnnotationType(String vocabAnnotationType) {
+		this.vocabAnnotationType = vocabAnnotationType;
+	}
 }
@@ -74,6 +74,12 @@ public class Scorer {
 	double geoNearScore = 1.0;
 	double geoMidScore = 0.5;
 	double geoFarScore = -1.0;
+	// the thresholds as squared chords, set for each score() call
+	private double geoInnerChord;
+	private double geoOuterChord;
+	// the unit vector of the place being scored, computed when first needed
+	private final double[] placeVector = new double[3];
+	private boolean hasPlaceVector;
 	// feature class/code similarity scores
 	double featureTypeClassScore = 0.8;
 	double featureTypeConfusedScore = 0.2;
@@ -93,10 +99,13 @@ public class Scorer {
 	 * @param pcList
 	 */
 	public void score(List<PlaceCandidate> pcList) {
+		geoInnerChord = Geocoord.chordSquaredOf(geoInnerDist);
+		geoOuterChord = Geocoord.chordSquaredOf(geoOuterDist);
 		// for each PC in the list
 		for (PlaceCandidate pc : pcList) {
 			// for each Place on the PC
 			for (Place p : pc.getPlaces()) {
+				hasPlaceVector = false;
 				double prior = biasWeight * p.getIdBias();
 				double evidenceScore = scoreEvidence(p, pc.getEvidence());
 				double totalScore = (prior + evidenceScore) / 2.0;
@@ -210,21 +219,25 @@ public class Scorer {
 	private double scoreGeocoord(PlaceEvidence evidence, Place place) {
 		// the two geocoords to compare
 		Geocoord evidenceGeo = evidence.getGeocoord();
-		Geocoord gazetteerGeo = place.getGeocoord();
 		double weight = evidence.getWeight();
 		// no evidence zero score
 		if (evidenceGeo == null) {
 			return MIN_EVIDENCE;
 		}
-		// distance between candidate and evidence (in kms)
-		double dist = gazetteerGeo.distance(evidenceGeo);
+		if (!hasPlaceVector) {
+			Geocoord.unitVector(place.getLatitude(), place.getLongitude(), placeVector, 0);
+			hasPlaceVector = true;
+		}
+		// distance between candidate and evidence, as the squared chord
+		// (which orders the same as kms) so no trig per pair
+		double dist = evidenceGeo.chordSquared(placeVector, 0);
 		// non-null coords, check the thresholds
 		// if near
-		if (dist < geoInnerDist) {
+		if (dist < geoInnerChord) {
 			return geoNearScore * weight;
 		}
 		// if mid range
-		if (dist > geoInnerDist && dist < geoOuterDist) {
+		if (dist > geoInnerChord && dist < geoOuterChord) {
 			return geoMidScore * weight;
 		}
 		// must be far away
@@ -1,6 +1,7 @@
 package org.opensextant.vocab;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 import org.opensextant.tagger.Match;
@@ -10,6 +11,19 @@ public class VocabMatch extends Match{
 	/** The vocab entries this has been matched to. */
 	private List<Vocab> vocabs = new ArrayList<Vocab>();
 
+	public VocabMatch() {
+	}
+
+	/** Copy constructor. The Vocabs themselves are shared. */
+	public VocabMatch(VocabMatch old) {
+		this.start = old.start;
+		this.end = old.end;
+		this.type = old.type;
+		this.matchText = old.matchText;
+		this.features = new HashMap<String, Object>(old.features);
+		this.vocabs = new ArrayList<Vocab>(old.vocabs);
+	}
+
 	public List<Vocab> getVocabs() {
 		return vocabs;
 	}
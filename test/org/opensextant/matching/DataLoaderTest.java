@@ -0,0 +1,100 @@
+package org.opensextant.matching;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Reads tab separated rows the way the DataLoader reads the gazetteer.
+ */
+public class DataLoaderTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private DataLoader.CsvRows rows(String text) throws IOException {
+		File f = tmp.newFile("rows.txt");
+		Files.write(f.toPath(), text.getBytes(StandardCharsets.UTF_8));
+		return new DataLoader.CsvRows(f);
+	}
+
+	@Test
+	public void skipsHeaderAndKeepsEmptyFields() throws IOException {
+		DataLoader.CsvRows rows = rows("id\tname\tcc\n1\tKabul\t\n2\t\tUS\n");
+		assertArrayEquals(new String[] { "1", "Kabul", "" }, rows.next());
+		assertArrayEquals(new String[] { "2", "", "US" }, rows.next());
+		assertFalse(rows.hasNext());
+	}
+
+	@Test
+	public void readsQuotedFields() throws IOException {
+		DataLoader.CsvRows rows = rows("id\tname\tcc\n1\t\"Washington, \"\"D.C.\"\"\t\"\t\"\tUS\"\n2\t\"Two\nLines\"\tUS\n");
+		assertArrayEquals(new String[] { "1", "Washington, \"D.C.\"\t", "\tUS" }, rows.next());
+		assertTrue(rows.hasNext());
+		assertArrayEquals(new String[] { "2", "Two\nLines", "US" }, rows.next());
+		assertFalse(rows.hasNext());
+	}
+
+	@Test(timeout = 60000)
+	public void loadsEveryRowWhenSolrIsSlowerThanTheReader() throws Exception {
+		SlowClient solr = new SlowClient();
+		Iterator<String[]> rows = new Iterator<String[]>() {
+			private int n;
+
+			@Override
+			public boolean hasNext() {
+				return n < 50000;
+			}
+
+			@Override
+			public String[] next() {
+				n++;
+				return new String[] { Integer.toString(n), "Place " + n };
+			}
+		};
+		assertTrue(DataLoader.load(solr, rows, new String[] { "id", "name" }, 2, false, null, null));
+		assertEquals(50000, solr.added.get());
+	}
+
+	/** Takes a while over each update, so the reader fills the queue. */
+	private static class SlowClient extends SolrClient {
+		private static final long serialVersionUID = 1L;
+
+		private final AtomicLong added = new AtomicLong();
+
+		@SuppressWarnings("rawtypes")
+		@Override
+		public NamedList<Object> request(SolrRequest request, String collection) {
+			if (request instanceof UpdateRequest && ((UpdateRequest) request).getDocuments() != null) {
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				added.addAndGet(((UpdateRequest) request).getDocuments().size());
+			}
+			return new NamedList<Object>();
+		}
+
+		@Override
+		@Deprecated
+		public void shutdown() {
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package org.opensextant.matching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensextant.placedata.Place;
+
+/**
+ * Runs gazetteer rows, read the way the DataLoader reads them, through the
+ * shipped edge filter profile.
+ */
+public class GazetteerFilterTest {
+
+	private static final File PROFILE = new File("etc/gazetteer-filter-edge.properties");
+	private static final File SAMPLE = new File("LanguageResources/TestData/GazetteerTestData/gazetteer_sample.txt");
+
+	/** Accepted or not, by name. */
+	private Map<String, Boolean> results;
+	private GazetteerFilter filter;
+
+	@Before
+	public void filterSample() throws IOException {
+		filter = GazetteerFilter.load(PROFILE);
+		results = new HashMap<String, Boolean>();
+		String[] fieldNames = MatcherFactory.getGazetteerFieldNamesLoader().split(",");
+		DataLoader.CsvRows rows = new DataLoader.CsvRows(SAMPLE);
+		while (rows.hasNext()) {
+			SolrInputDocument doc = DataLoader.toDocument(fieldNames, rows.next());
+			results.put(doc.getFieldValue("name").toString(), filter.accept(doc));
+		}
+	}
+
+	@Test
+	public void sampleUsesGazetteerNameTypes() throws IOException {
+		String[] fieldNames = MatcherFactory.getGazetteerFieldNamesLoader().split(",");
+		DataLoader.CsvRows rows = new DataLoader.CsvRows(SAMPLE);
+		while (rows.hasNext()) {
+			Object type = DataLoader.toDocument(fieldNames, rows.next()).getFieldValue("name_type");
+			assertTrue("Unexpected name_type " + type, Place.NAME_TYPE.equals(type) || Place.ABBREV_TYPE.equals(type)
+					|| Place.CODE_TYPE.equals(type));
+		}
+	}
+
+	@Test
+	public void keepsNamesOfPlacesAndRegions() {
+		assertTrue(results.get("Kabul"));
+		assertTrue(results.get("Massachusetts"));
+		assertTrue(results.get("Boston"));
+		assertEquals(3, filter.getAcceptedCount());
+		assertEquals(results.size() - 3, filter.getRejectedCount());
+	}
+
+	@Test
+	public void dropsCodesAndAbbreviations() {
+		assertFalse(results.get("KBL"));
+		assertFalse(results.get("MA"));
+	}
+
+	@Test
+	public void dropsOtherFeatureClasses() {
+		assertFalse(results.get("Charles River"));
+		assertFalse(results.get("Mount Washington"));
+	}
+
+	@Test
+	public void dropsLowNameBias() {
+		assertFalse(results.get("Deh"));
+	}
+}
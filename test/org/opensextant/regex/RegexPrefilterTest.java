@@ -0,0 +1,108 @@
+package org.opensextant.regex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks that the prefilter never rules out a rule which could match.
+ */
+public class RegexPrefilterTest {
+
+	private static final File PATTERNS = new File("LanguageResources/resources/patterns");
+	private static final File TEST_DATA = new File("LanguageResources/TestData/RegexTestData");
+
+	/** The test phrases of every regex test file, and their lower case forms. */
+	private static List<String> phrases = new ArrayList<String>();
+
+	@BeforeClass
+	public static void readPhrases() throws IOException {
+		for (File f : TEST_DATA.listFiles()) {
+			for (String line : FileUtils.readLines(f, "UTF-8")) {
+				if (line.startsWith("#") || line.trim().isEmpty()) {
+					continue;
+				}
+				String[] pieces = line.split("[\t\\s]+", 3);
+				if (pieces.length == 3) {
+					phrases.add(pieces[2]);
+					phrases.add(pieces[2].toLowerCase(Locale.ENGLISH));
+				}
+			}
+		}
+		assertTrue(phrases.size() > 1000);
+	}
+
+	@Test
+	public void sameMatchesWithAndWithoutThePrefilter() {
+		for (File cfg : PATTERNS.listFiles()) {
+			RegexMatcher filtered = new RegexMatcher(cfg);
+			filtered.setPrefilterEnabled(true);
+			RegexMatcher unfiltered = new RegexMatcher(cfg);
+			unfiltered.setPrefilterEnabled(false);
+			for (String phrase : phrases) {
+				assertEquals(cfg.getName() + ": " + phrase, describe(unfiltered.match(phrase)),
+						describe(filtered.match(phrase)));
+			}
+		}
+	}
+
+	@Test
+	public void negatedClassWithNestedClassIsNotFiltered() {
+		// on Java 8 [^a[b]] is [^a] union [b] and matches "b", on later Javas
+		// it is the negated union
+		assertNull(RegexPrefilter.of("[^a[b]]"));
+		assertNull(RegexPrefilter.of("x[^a[b-d]]"));
+		assertNotNull(RegexPrefilter.of("[^a]"));
+		assertNotNull(RegexPrefilter.of("[a[b]]"));
+	}
+
+	@Test
+	public void neverRulesOutAMatch() {
+		String[] regexes = { "[^a]", "[a[b]]", "\\d+", "[^\\d]x", "(?i)kabul", "ab|cd", "a?b", "(?:a|b)*c", "x{0,2}y",
+				"\\bN\\b", "[\\-+]\\d", "(?=a)\\w", "[a-c&&b]", "\\p{L}z", "[^a[b]]" };
+		String[] texts = { "a", "b", "c", "ab", "cd", "y", "xy", "KABUL", "Kabul", "-5", "+5", "bz", "N", " N ", "yx", "" };
+		BitSet present = new BitSet();
+		for (String regex : regexes) {
+			RegexPrefilter filter = RegexPrefilter.of(regex);
+			if (filter == null) {
+				continue;
+			}
+			Pattern p = Pattern.compile(regex);
+			for (String text : texts) {
+				RegexPrefilter.charactersOf(text, present);
+				if (p.matcher(text).find()) {
+					assertTrue(regex + " on " + text, filter.mayMatch(present));
+					assertTrue(regex + " on " + text, filter.firstPossibleStart(text) <= firstMatch(p, text));
+				}
+			}
+		}
+	}
+
+	private static int firstMatch(Pattern p, String text) {
+		Matcher m = p.matcher(text);
+		m.find();
+		return m.start();
+	}
+
+	private static List<String> describe(List<RegexAnnotation> annos) {
+		List<String> d = new ArrayList<String>();
+		for (RegexAnnotation a : annos) {
+			d.add(a + " " + a.getRule());
+		}
+		return d;
+	}
+}